@@ -0,0 +1,168 @@
+package fxpractice;
+
+/**
+ * ボール木
+ * 
+ * <pre>
+ * 点の集合を中心と半径で表した球で囲って2分割していく。
+ * 分割面ではなく球で枝刈りするので、kd木より次元が高くても効きやすい。
+ * </pre>
+ */
+class BallTree implements SpatialIndex {
+    
+    /** 葉に持たせる点の数 */
+    private static final int LEAF_SIZE = 16;
+    
+    /** 点（行優先） */
+    private final double[] features;
+    
+    /** 点の次元 */
+    private final int dimension;
+    
+    /** 点の数 */
+    private final int size;
+    
+    /** 点のインデックス（ノードごとに範囲で区切って使う） */
+    private final int[] order;
+    
+    /** ノードが受け持つ範囲の開始位置 */
+    private final int[] start;
+    
+    /** ノードが受け持つ範囲の終了位置（含まない） */
+    private final int[] end;
+    
+    /** 球の中心 */
+    private final double[][] center;
+    
+    /** 球の半径（平方ではない） */
+    private final double[] radius;
+    
+    /** 左の子（葉は-1） */
+    private final int[] left;
+    
+    /** 右の子 */
+    private final int[] right;
+    
+    /** ノード数 */
+    private int nodeCnt = 0;
+    
+    /**
+     * コンストラクタ
+     * 
+     * @param dataset   教師データ（構築後に追加しないこと）
+     */
+    BallTree(Dataset dataset) {
+        
+        this.features = dataset.features();
+        this.dimension = dataset.dimension();
+        this.size = dataset.size();
+        this.order = new int[this.size];
+        for (int i = 0; i < this.size; i++) {
+            this.order[i] = i;
+        }
+        
+        // ノード数は多くても点の数の2倍
+        int maxNode = 2 * this.size + 1;
+        this.start = new int[maxNode];
+        this.end = new int[maxNode];
+        this.center = new double[maxNode][];
+        this.radius = new double[maxNode];
+        this.left = new int[maxNode];
+        this.right = new int[maxNode];
+        
+        if (this.size > 0) {
+            this.build(0, this.size);
+        }
+    }
+    
+    /**
+     * 木を構築
+     * 
+     * @return ノード番号
+     */
+    private int build(int from, int to) {
+        
+        int node = this.nodeCnt++;
+        this.start[node] = from;
+        this.end[node] = to;
+        this.left[node] = -1;
+        
+        // 重心を中心とする
+        double[] c = new double[this.dimension];
+        for (int i = from; i < to; i++) {
+            int offset = this.order[i] * this.dimension;
+            for (int d = 0; d < this.dimension; d++) {
+                c[d] += this.features[offset + d];
+            }
+        }
+        for (int d = 0; d < this.dimension; d++) {
+            c[d] /= (to - from);
+        }
+        
+        // 一番遠い点までを半径とする
+        double r = 0;
+        for (int i = from; i < to; i++) {
+            r = Math.max(r, SpatialIndex.distance(this.features, this.order[i] * this.dimension, c));
+        }
+        this.center[node] = c;
+        this.radius[node] = Math.sqrt(r);
+        
+        if (to - from <= LEAF_SIZE || r == 0) {
+            return node;
+        }
+        
+        // 広がりが最大の次元の中央値で分ける
+        int dim = SpatialIndex.widestDimension(this.features, this.dimension, this.order, from, to);
+        if (dim < 0) {
+            return node;    // 重心の丸め誤差で半径が0にならなかっただけで、全部同じ点
+        }
+        
+        int mid = (from + to) >>> 1;
+        SpatialIndex.select(this.features, this.dimension, this.order, from, to - 1, mid, dim);
+        
+        this.left[node] = this.build(from, mid);
+        this.right[node] = this.build(mid, to);
+        
+        return node;
+    }
+    
+    /**
+     * k近傍を探す
+     */
+    @Override
+    public void search(double[] query, TopK topK) {
+        if (this.size > 0) {
+            this.search(0, query, topK);
+        }
+    }
+    
+    private void search(int node, double[] query, TopK topK) {
+        
+        // 球の表面までの距離がk番目より遠ければ中に候補はない
+        double toCenter = Math.sqrt(SpatialIndex.distance(this.center[node], query));
+        double lower = Math.max(0, toCenter - this.radius[node]);
+        if (lower * lower > topK.worst()) {
+            return;
+        }
+        
+        // 葉なら総当たり
+        if (this.left[node] < 0) {
+            for (int i = this.start[node]; i < this.end[node]; i++) {
+                int idx = this.order[i];
+                topK.offer(SpatialIndex.distance(this.features, idx * this.dimension, query), idx);
+            }
+            return;
+        }
+        
+        // 中心が近い方から先に探す
+        int l = this.left[node];
+        int r = this.right[node];
+        if (SpatialIndex.distance(this.center[l], query) <= SpatialIndex.distance(this.center[r], query)) {
+            this.search(l, query, topK);
+            this.search(r, query, topK);
+        } else {
+            this.search(r, query, topK);
+            this.search(l, query, topK);
+        }
+    }
+}
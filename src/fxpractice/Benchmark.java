@@ -0,0 +1,192 @@
+package fxpractice;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ベンチマーク
+ * 
+ * <pre>
+ * 学習機ごとに add / learn / predict の速さ(ops/s)と1回あたりのアロケーション(B/op)を測る。
+ * データは SyntheticData で作り、件数・次元・分離度を組み合わせて回す。
+ * ウォームアップしてから、決めた時間だけ繰り返して平均をとる。
+ * アロケーションは測っているスレッドの分だけ数える（学習を別スレッドでやる設定は対象外）。
+ * 
+ * 使い方
+ *   java fxpractice.Benchmark --machines=SVM_SMO,NearestNeighbor --sizes=100,400 --dims=2,8 --separations=1,4 --time=1000
+ * </pre>
+ */
+public final class Benchmark {
+
+    /** テストデータの件数 */
+    private static final int TEST_SIZE = 1000;
+    
+    /** 最適化で消されないように結果を書いておく */
+    private static volatile long sink;
+    
+    private Benchmark() {
+    }
+    
+    /**
+     * 1回分の処理
+     */
+    private interface Operation {
+    
+        /**
+         * @return 処理した件数
+         */
+        long run();
+    }
+    
+    public static void main(String[] args) {
+    
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("unknown option: " + arg);
+            }
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        
+        List<String> machines = Arrays.asList(options.getOrDefault("machines", String.join(",", Machines.NAMES)).split(","));
+        int[] sizes = Arrays.stream(options.getOrDefault("sizes", "100,400").split(",")).mapToInt(Integer::parseInt).toArray();
+        int[] dims = Arrays.stream(options.getOrDefault("dims", "2,8").split(",")).mapToInt(Integer::parseInt).toArray();
+        double[] separations = Arrays.stream(options.getOrDefault("separations", "1,4").split(",")).mapToDouble(Double::parseDouble).toArray();
+        long time = Long.parseLong(options.getOrDefault("time", "1000"));
+        
+        // 学習機が標準出力に書くログは捨てる
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+        
+        out.printf("%-22s %6s %4s %5s %-8s %14s %14s %7s%n", "machine", "size", "dim", "sep", "phase", "ops/s", "B/op", "acc");
+        for (String name : machines) {
+            for (int size : sizes) {
+                for (int dim : dims) {
+                    for (double separation : separations) {
+                    
+                        Dataset train = SyntheticData.blobs(size, dim, separation, 1);
+                        Dataset test = SyntheticData.blobs(TEST_SIZE, dim, separation, 2);
+                        String prefix = String.format("%-22s %6d %4d %5.1f", name, size, dim, separation);
+                        
+                        double[] add = measure(() -> {
+                            fill(name, train);
+                            return train.size();
+                        }, time);
+                        out.printf("%s %-8s %14.1f %14.1f%n", prefix, "add", add[0], add[1]);
+                        
+                        double[] learn = measure(() -> {
+                            fill(name, train).learn();
+                            return 1;
+                        }, time);
+                        out.printf("%s %-8s %14.3f %14.1f%n", prefix, "learn", learn[0], learn[1]);
+                        
+                        LearningMachine lm = fill(name, train);
+                        lm.learn();
+                        double[] row = new double[dim];
+                        double[] predict = measure(() -> {
+                            long sum = 0;
+                            for (int n = 0; n < test.size(); n++) {
+                                System.arraycopy(test.features(), n * dim, row, 0, dim);
+                                sum += lm.predict(row);
+                            }
+                            sink = sum;
+                            return test.size();
+                        }, time);
+                        out.printf("%s %-8s %14.1f %14.1f %7.3f%n", prefix, "predict", predict[0], predict[1], accuracy(name, lm, test));
+                    }
+                }
+            }
+        }
+        
+        System.setOut(out);
+    }
+    
+    /**
+     * 教師データを全部追加した学習機を作る
+     */
+    private static LearningMachine fill(String name, Dataset dataset) {
+        LearningMachine lm = Machines.create(name, dataset.dimension(), 2);
+        double[] row = new double[dataset.dimension()];
+        for (int n = 0; n < dataset.size(); n++) {
+            System.arraycopy(dataset.features(), n * row.length, row, 0, row.length);
+            lm.add(Machines.lavel(name, dataset.lavel(n)), row);
+        }
+        return lm;
+    }
+    
+    /**
+     * 正解率
+     */
+    private static double accuracy(String name, LearningMachine lm, Dataset test) {
+        int[] ans = new int[test.size()];
+        lm.predictBatch(test.features(), test.dimension(), ans);
+        int ok = 0;
+        for (int n = 0; n < test.size(); n++) {
+            if (ans[n] == Machines.lavel(name, test.lavel(n))) {
+                ok++;
+            }
+        }
+        return (double) ok / test.size();
+    }
+    
+    /**
+     * 測る
+     * 
+     * <pre>
+     * 半分の時間でウォームアップしてから、残りの時間だけ繰り返す（最低1回）。
+     * </pre>
+     * 
+     * @param operation 1回分の処理
+     * @param time      測る時間（ミリ秒）
+     * @return {ops/s, B/op}（アロケーションを測れないJVMではB/opは-1）
+     */
+    private static double[] measure(Operation operation, long time) {
+    
+        long warmup = System.nanoTime() + time * 500_000L;
+        do {
+            operation.run();
+        } while (System.nanoTime() < warmup);
+        
+        long ops = 0;
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        long end = start + time * 500_000L;
+        long now;
+        do {
+            ops += operation.run();
+            now = System.nanoTime();
+        } while (now < end);
+        long allocated = allocatedBytes() - bytes;
+        
+        return new double[] {
+            ops / ((now - start) / 1e9),
+            bytes < 0 ? -1 : (double) allocated / ops
+        };
+    }
+    
+    /**
+     * このスレッドでアロケーションしたバイト数
+     * 
+     * @return 測れなければ-1
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) bean;
+            if (sun.isThreadAllocatedMemorySupported()) {
+                return sun.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,177 @@
+package fxpractice;
+
+import java.util.Arrays;
+
+/**
+ * 教師データ
+ * 
+ * <pre>
+ * 特徴量は1本のdouble[]に行優先で詰めて、ラベルはint[]で持つ。
+ * i番目のデータのj番目の特徴量は features()[i * dimension() + j]。
+ * 1件あたりのメモリは 8×次元+4 バイト（配列の伸長分は除く）。
+ * </pre>
+ */
+public class Dataset {
+    
+    /** 最初に確保する件数 */
+    private static final int INITIAL_CAPACITY = 16;
+    
+    /** 特徴量の次元（未確定なら-1） */
+    private int dimension;
+    
+    /** 特徴量（行優先） */
+    private double[] features = new double[0];
+    
+    /** 分類ラベル */
+    private int[] lavels = new int[0];
+    
+    /** 件数 */
+    private int size = 0;
+    
+    /**
+     * コンストラクタ
+     * 
+     * <pre>
+     * 次元は最初に追加したデータで決める。
+     * </pre>
+     */
+    public Dataset() {
+        this.dimension = -1;
+    }
+    
+    /**
+     * コンストラクタ
+     * 
+     * @param dimension 特徴量の次元
+     */
+    public Dataset(int dimension) {
+        this.dimension = dimension;
+    }
+    
+    /**
+     * データを追加
+     * 
+     * @param lavel     分類ラベル
+     * @param feature   特徴量
+     */
+    public void add(int lavel, double[] feature) {
+        
+        if (this.dimension < 0) {
+            this.dimension = feature.length;
+        } else if (feature.length != this.dimension) {
+            throw new IllegalArgumentException("次元が違います: " + feature.length + " != " + this.dimension);
+        }
+        
+        if (this.size == this.lavels.length) {
+            this.grow();
+        }
+        
+        System.arraycopy(feature, 0, this.features, this.size * this.dimension, this.dimension);
+        this.lavels[this.size] = lavel;
+        this.size++;
+    }
+    
+    /**
+     * まとめて追加
+     * 
+     * <pre>
+     * 空のときは配列をそのまま使う（コピーしない）ので、渡した配列は以後書き換えないこと。
+     * </pre>
+     * 
+     * @param lavels    分類ラベル
+     * @param features  特徴量（行優先、lavels.length × 次元）
+     * @param dimension 特徴量の次元
+     */
+    void addAll(int[] lavels, double[] features, int dimension) {
+        
+        if (this.dimension < 0) {
+            this.dimension = dimension;
+        } else if (dimension != this.dimension) {
+            throw new IllegalArgumentException("次元が違います: " + dimension + " != " + this.dimension);
+        }
+        
+        if (this.size == 0) {
+            this.lavels = lavels;
+            this.features = features;
+            this.size = lavels.length;
+            return;
+        }
+        
+        int size = this.size + lavels.length;
+        this.lavels = Arrays.copyOf(this.lavels, Math.max(size, this.lavels.length));
+        this.features = Arrays.copyOf(this.features, Math.max(size, this.lavels.length) * this.dimension);
+        System.arraycopy(lavels, 0, this.lavels, this.size, lavels.length);
+        System.arraycopy(features, 0, this.features, this.size * this.dimension, lavels.length * this.dimension);
+        this.size = size;
+    }
+    
+    /**
+     * 容量を1.5倍に増やす
+     */
+    private void grow() {
+        int capacity = Math.max(INITIAL_CAPACITY, this.lavels.length + (this.lavels.length >> 1));
+        this.features = Arrays.copyOf(this.features, capacity * this.dimension);
+        this.lavels = Arrays.copyOf(this.lavels, capacity);
+    }
+    
+    /**
+     * 件数
+     */
+    public int size() {
+        return this.size;
+    }
+    
+    /**
+     * 特徴量の次元（未確定なら0）
+     */
+    public int dimension() {
+        return Math.max(this.dimension, 0);
+    }
+    
+    /**
+     * i番目の分類ラベル
+     */
+    public int lavel(int i) {
+        return this.lavels[i];
+    }
+    
+    /**
+     * i番目のデータのj番目の特徴量
+     */
+    public double get(int i, int j) {
+        return this.features[i * this.dimension + j];
+    }
+    
+    /**
+     * 特徴量の配列そのもの
+     * 
+     * <pre>
+     * コピーしないので書き換えないこと。
+     * 追加すると配列が入れ替わることがあるので、持ち回らないこと。
+     * 長さは size() * dimension() 以上。
+     * </pre>
+     */
+    public double[] features() {
+        return this.features;
+    }
+    
+    /**
+     * 分類ラベルの配列そのもの
+     * 
+     * <pre>
+     * コピーしないので書き換えないこと。長さは size() 以上。
+     * </pre>
+     */
+    public int[] lavels() {
+        return this.lavels;
+    }
+    
+    /**
+     * 全部消す
+     */
+    public void clear() {
+        this.features = new double[0];
+        this.lavels = new int[0];
+        this.size = 0;
+    }
+}
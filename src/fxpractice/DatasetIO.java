@@ -0,0 +1,186 @@
+package fxpractice;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+/**
+ * 教師データの読み書き
+ * 
+ * <pre>
+ * CSV   1行1件で「ラベル,特徴量1,特徴量2,...」。空行と#で始まる行は読み飛ばす。
+ *       1行目の先頭が数値でなければ見出しとして読み飛ばす。
+ * バイナリ  ビッグエンディアンで
+ *       int マジックナンバー(0x46584453 "FXDS")
+ *       int 件数, int 次元
+ *       int[件数] ラベル
+ *       double[件数×次元] 特徴量（行優先）
+ * 拡張子が.csvならCSV、それ以外はバイナリとして読む。
+ * </pre>
+ */
+final class DatasetIO {
+
+    /** バイナリのマジックナンバー */
+    private static final int MAGIC = 0x46584453;
+    
+    private DatasetIO() {
+    }
+    
+    /**
+     * 読み込む
+     * 
+     * @param path  ファイル（拡張子で形式を決める）
+     * @return 教師データ
+     * @throws IOException 読めなかったとき、形式が違うとき
+     */
+    static Dataset read(Path path) throws IOException {
+        if (path.getFileName().toString().toLowerCase().endsWith(".csv")) {
+            return readCsv(path);
+        }
+        return readBinary(path);
+    }
+    
+    /**
+     * CSVを読み込む
+     */
+    static Dataset readCsv(Path path) throws IOException {
+        Dataset[] all = { new Dataset() };
+        readCsv(path, Integer.MAX_VALUE, chunk -> all[0] = chunk);
+        return all[0];
+    }
+    
+    /**
+     * CSVを少しずつ読み込む
+     * 
+     * <pre>
+     * chunkSize件読むたびにsinkに渡す。渡したあとは参照しないので、
+     * ファイルが大きくてもメモリはchunkSize件分しか使わない。
+     * </pre>
+     * 
+     * @param path      ファイル
+     * @param chunkSize 1回に渡す件数
+     * @param sink      読み込んだ教師データを受け取る
+     */
+    static void readCsv(Path path, int chunkSize, Consumer<Dataset> sink) throws IOException {
+    
+        Dataset dataset = new Dataset();
+        
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+        
+            double[] row = null;
+            int lineNo = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+            
+                lineNo++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                
+                String[] cols = line.split(",");
+                if (lineNo == 1 && !isNumber(cols[0].trim())) {
+                    continue;
+                }
+                
+                if (row == null) {
+                    row = new double[cols.length - 1];
+                }
+                if (cols.length - 1 != row.length) {
+                    throw new IOException(path + ":" + lineNo + ": expected " + row.length + " features but got " + (cols.length - 1));
+                }
+                
+                try {
+                    int lavel = Integer.parseInt(cols[0].trim());
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] = Double.parseDouble(cols[i + 1].trim());
+                    }
+                    dataset.add(lavel, row);
+                } catch (NumberFormatException e) {
+                    throw new IOException(path + ":" + lineNo + ": " + e.getMessage(), e);
+                }
+                
+                if (dataset.size() >= chunkSize) {
+                    sink.accept(dataset);
+                    dataset = new Dataset(row.length);
+                }
+            }
+        }
+        
+        if (dataset.size() > 0) {
+            sink.accept(dataset);
+        }
+    }
+    
+    /**
+     * バイナリを読み込む
+     */
+    static Dataset readBinary(Path path) throws IOException {
+    
+        try (InputStream in = Files.newInputStream(path);
+             DataInputStream data = new DataInputStream(new BufferedInputStream(in))) {
+             
+            if (data.readInt() != MAGIC) {
+                throw new IOException(path + ": not a dataset file");
+            }
+            
+            int size = data.readInt();
+            int dimension = data.readInt();
+            
+            int[] lavels = new int[size];
+            for (int n = 0; n < size; n++) {
+                lavels[n] = data.readInt();
+            }
+            
+            Dataset dataset = new Dataset(dimension);
+            double[] row = new double[dimension];
+            for (int n = 0; n < size; n++) {
+                for (int i = 0; i < dimension; i++) {
+                    row[i] = data.readDouble();
+                }
+                dataset.add(lavels[n], row);
+            }
+            return dataset;
+        }
+    }
+    
+    /**
+     * バイナリで書き出す
+     */
+    static void writeBinary(Dataset dataset, Path path) throws IOException {
+    
+        try (OutputStream out = Files.newOutputStream(path);
+             DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out))) {
+             
+            int size = dataset.size();
+            data.writeInt(MAGIC);
+            data.writeInt(size);
+            data.writeInt(dataset.dimension());
+            for (int n = 0; n < size; n++) {
+                data.writeInt(dataset.lavel(n));
+            }
+            double[] features = dataset.features();
+            for (int i = 0; i < size * dataset.dimension(); i++) {
+                data.writeDouble(features[i]);
+            }
+        }
+    }
+    
+    private static boolean isNumber(String s) {
+        try {
+            Double.parseDouble(s);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
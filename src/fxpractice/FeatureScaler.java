@@ -0,0 +1,331 @@
+package fxpractice;
+
+import java.util.Arrays;
+
+/**
+ * 特徴量のスケーリング
+ * 
+ * <pre>
+ * 特徴量ごとに x' = x・scale + shift の1次式で変換する。係数は教師データから決める（fit）。
+ *   MIN_MAX  最小～最大を -1～1 にする
+ *   Z_SCORE  平均を0、標準偏差を1にする
+ *   ROBUST   中央値を0、四分位範囲（25%～75%）を1にする（外れ値に引っ張られない）
+ * 教師データは頭から1回だけ読む。平均と分散はWelfordの方法で、
+ * 四分位数はP²アルゴリズム（Jain and Chlamtac 1985）で近似して求めるので、並べ替えない。
+ * 幅が0の特徴量は中心を引くだけにする（ROBUSTで四分位範囲だけ0なら最小～最大の幅を使う）。
+ * 教師データでは0になり、判定で違う値が来たときは差がそのまま残る。
+ * 
+ * 変換は呼び出し側の配列に書く（同じ配列を渡せばその場で変換する）。
+ * 判定のたびに配列を作らなくて済む。係数は変わらないので、複数のスレッドから使ってよい。
+ * 係数はモデルと一緒に保存する。
+ * </pre>
+ */
+public final class FeatureScaler {
+
+    /**
+     * 係数の決め方
+     */
+    public enum Method {
+    
+        /** 最小～最大を -1～1 */
+        MIN_MAX,
+        
+        /** 平均0、標準偏差1 */
+        Z_SCORE,
+        
+        /** 中央値0、四分位範囲1 */
+        ROBUST
+    }
+    
+    /** 掛ける係数（特徴量ごと） */
+    private final double[] scale;
+    
+    /** 足す係数（特徴量ごと） */
+    private final double[] shift;
+    
+    private FeatureScaler(double[] scale, double[] shift) {
+        this.scale = scale;
+        this.shift = shift;
+    }
+    
+    /**
+     * 画面の座標用（0～400を-1～1にする）
+     * 
+     * <pre>
+     * これまでの学習機が決め打ちしていたもの。
+     * 学習する前（逐次学習だけするとき）と、スケーリングを保存していない古いモデルファイルで使う。
+     * </pre>
+     * 
+     * @param dimension 特徴量の次元
+     */
+    public static FeatureScaler canvas(int dimension) {
+        double[] scale = new double[dimension];
+        double[] shift = new double[dimension];
+        Arrays.fill(scale, 1. / 200);
+        Arrays.fill(shift, -1.);
+        return new FeatureScaler(scale, shift);
+    }
+    
+    /**
+     * 教師データから係数を決める
+     * 
+     * @param method    決め方
+     * @param dataset   教師データ
+     */
+    public static FeatureScaler fit(Method method, Dataset dataset) {
+    
+        int dimension = dataset.dimension();
+        double[] features = dataset.features();
+        
+        double[] min = new double[dimension];
+        double[] max = new double[dimension];
+        double[] mean = new double[dimension];
+        double[] m2 = new double[dimension];
+        Arrays.fill(min, Double.POSITIVE_INFINITY);
+        Arrays.fill(max, Double.NEGATIVE_INFINITY);
+        Quantile[][] quartiles = new Quantile[dimension][];
+        if (method == Method.ROBUST) {
+            for (int i = 0; i < dimension; i++) {
+                quartiles[i] = new Quantile[] { new Quantile(0.25), new Quantile(0.5), new Quantile(0.75) };
+            }
+        }
+        
+        // 1回だけ頭から読む
+        for (int n = 0; n < dataset.size(); n++) {
+            for (int i = 0; i < dimension; i++) {
+                double x = features[n * dimension + i];
+                min[i] = Math.min(min[i], x);
+                max[i] = Math.max(max[i], x);
+                
+                double delta = x - mean[i];
+                mean[i] += delta / (n + 1);
+                m2[i] += delta * (x - mean[i]);
+                
+                if (quartiles[i] != null) {
+                    for (Quantile q : quartiles[i]) {
+                        q.add(x);
+                    }
+                }
+            }
+        }
+        
+        // x' = (x - center) / width
+        double[] scale = new double[dimension];
+        double[] shift = new double[dimension];
+        for (int i = 0; i < dimension; i++) {
+            double range = max[i] - min[i];
+            double center;
+            double width;
+            switch (method) {
+                case Z_SCORE:
+                    center = mean[i];
+                    width = dataset.size() > 0 ? Math.sqrt(m2[i] / dataset.size()) : 0;
+                    break;
+                case ROBUST:
+                    center = quartiles[i][1].value();
+                    width = quartiles[i][2].value() - quartiles[i][0].value();
+                    if (!(width > 0)) {
+                        width = range;
+                    }
+                    break;
+                default:
+                    center = (max[i] + min[i]) / 2;
+                    width = range / 2;
+                    break;
+            }
+            if (width > 0) {
+                scale[i] = 1 / width;
+                shift[i] = -center / width;
+            } else {
+                scale[i] = 1;
+                shift[i] = dataset.size() > 0 ? -center : 0;
+            }
+        }
+        return new FeatureScaler(scale, shift);
+    }
+    
+    /**
+     * 特徴量の次元
+     */
+    public int dimension() {
+        return this.scale.length;
+    }
+    
+    /**
+     * i番目の特徴量を1つ変換する
+     */
+    public double transform(int i, double x) {
+        return x * this.scale[i] + this.shift[i];
+    }
+    
+    /**
+     * 行優先で並べた特徴量をまとめて変換する
+     * 
+     * @param in        特徴量（行優先）
+     * @param inOffset  inの開始位置
+     * @param out       書き込み先（inと同じでもよい）
+     * @param outOffset outの開始位置
+     * @param rows      行数
+     */
+    public void transform(double[] in, int inOffset, double[] out, int outOffset, int rows) {
+        int dimension = this.scale.length;
+        for (int r = 0; r < rows; r++) {
+            for (int i = 0; i < dimension; i++) {
+                out[outOffset + r * dimension + i] = in[inOffset + r * dimension + i] * this.scale[i] + this.shift[i];
+            }
+        }
+    }
+    
+    /**
+     * 教師データ全部を変換した配列を作る（学習用）
+     */
+    public double[] transform(Dataset dataset) {
+        double[] res = new double[dataset.size() * dataset.dimension()];
+        this.transform(dataset.features(), 0, res, 0, dataset.size());
+        return res;
+    }
+    
+    /**
+     * モデルファイルに書き出す
+     */
+    void write(ModelFile.Writer out) {
+        out.writeDoubles(this.scale, 0, this.scale.length);
+        out.writeDoubles(this.shift, 0, this.shift.length);
+    }
+    
+    /**
+     * モデルファイルから読み込む
+     * 
+     * <pre>
+     * スケーリングを書いていない古いファイル（バージョン2まで）は、画面の座標用にする。
+     * </pre>
+     * 
+     * @param in        読み込み元
+     * @param dimension 特徴量の次元
+     */
+    static FeatureScaler read(ModelFile.Reader in, int dimension) {
+        if (in.version() < 3) {
+            return canvas(dimension);
+        }
+        double[] scale = in.readDoubles();
+        double[] shift = in.readDoubles();
+        if (scale.length != dimension || shift.length != dimension) {
+            throw new IllegalStateException("scaler dimension " + scale.length + " != " + dimension);
+        }
+        return new FeatureScaler(scale, shift);
+    }
+    
+    /**
+     * 分位点を1回読むだけで近似する（P²アルゴリズム）
+     * 
+     * <pre>
+     * 最小、p/2、p、(1+p)/2、最大の5つの目印の高さと位置だけを持ち、
+     * 1件来るたびに目印の位置を理想の位置に近づける（高さは放物線で補間する）。
+     * 5件になるまでは全部持っていて、そのまま計算する。
+     * </pre>
+     */
+    private static final class Quantile {
+    
+        /** 求める分位 */
+        private final double p;
+        
+        /** 目印の高さ */
+        private final double[] heights = new double[5];
+        
+        /** 目印の位置（1から数える） */
+        private final double[] positions = { 1, 2, 3, 4, 5 };
+        
+        /** 目印の理想の位置 */
+        private final double[] desired;
+        
+        /** 1件ごとの理想の位置の増え方 */
+        private final double[] increments;
+        
+        /** 読んだ件数 */
+        private int count = 0;
+        
+        Quantile(double p) {
+            this.p = p;
+            this.desired = new double[] { 1, 1 + 2 * p, 1 + 4 * p, 3 + 2 * p, 5 };
+            this.increments = new double[] { 0, p / 2, p, (1 + p) / 2, 1 };
+        }
+        
+        void add(double x) {
+        
+            if (this.count < 5) {
+                this.heights[this.count++] = x;
+                if (this.count == 5) {
+                    Arrays.sort(this.heights);
+                }
+                return;
+            }
+            this.count++;
+            
+            // xが入る区間を探して、それより上の目印を1つずらす
+            int k;
+            if (x < this.heights[0]) {
+                this.heights[0] = x;
+                k = 0;
+            } else if (x >= this.heights[4]) {
+                this.heights[4] = x;
+                k = 3;
+            } else {
+                k = 0;
+                while (x >= this.heights[k + 1]) {
+                    k++;
+                }
+            }
+            for (int i = k + 1; i < 5; i++) {
+                this.positions[i]++;
+            }
+            for (int i = 0; i < 5; i++) {
+                this.desired[i] += this.increments[i];
+            }
+            
+            // 真ん中の3つを理想の位置に1つだけ近づける
+            for (int i = 1; i < 4; i++) {
+                double d = this.desired[i] - this.positions[i];
+                if ((d >= 1 && this.positions[i + 1] - this.positions[i] > 1) || (d <= -1 && this.positions[i - 1] - this.positions[i] < -1)) {
+                    int s = d > 0 ? 1 : -1;
+                    double h = this.parabolic(i, s);
+                    if (!(this.heights[i - 1] < h && h < this.heights[i + 1])) {
+                        h = this.heights[i] + s * (this.heights[i + s] - this.heights[i]) / (this.positions[i + s] - this.positions[i]);
+                    }
+                    this.heights[i] = h;
+                    this.positions[i] += s;
+                }
+            }
+        }
+        
+        /**
+         * 放物線で補間した高さ
+         */
+        private double parabolic(int i, int s) {
+            double[] q = this.heights;
+            double[] n = this.positions;
+            return q[i] + s / (n[i + 1] - n[i - 1])
+                    * ((n[i] - n[i - 1] + s) * (q[i + 1] - q[i]) / (n[i + 1] - n[i])
+                    + (n[i + 1] - n[i] - s) * (q[i] - q[i - 1]) / (n[i] - n[i - 1]));
+        }
+        
+        /**
+         * 分位点（1件もなければ0）
+         */
+        double value() {
+            if (this.count >= 5) {
+                return this.heights[2];
+            }
+            if (this.count == 0) {
+                return 0;
+            }
+            
+            // 少ないうちはそのまま並べて線形補間する
+            double[] sorted = Arrays.copyOf(this.heights, this.count);
+            Arrays.sort(sorted);
+            double at = this.p * (this.count - 1);
+            int lo = (int) Math.floor(at);
+            int hi = Math.min(lo + 1, this.count - 1);
+            return sorted[lo] + (at - lo) * (sorted[hi] - sorted[lo]);
+        }
+    }
+}
@@ -21,7 +21,7 @@ public class FxPractice extends Application {
         
         Parent pane = FXMLLoader.load(getClass().getResource("practice.fxml"));
         
-        Scene scene = new Scene(pane, 500, 520);
+        Scene scene = new Scene(pane, 500, 560);
                
         primaryStage.setTitle("機械学習てすと！");
         primaryStage.setScene(scene);
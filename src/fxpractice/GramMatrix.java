@@ -0,0 +1,80 @@
+package fxpractice;
+
+/**
+ * グラム行列（カーネル行列を先に全部計算したもの）
+ * 
+ * <pre>
+ * 対称なので下三角（対角を含む）だけを行優先で詰めて持つ。
+ *   k(i, j) (i >= j) は i(i+1)/2 + j 番目
+ * データ数nに対して 8・n(n+1)/2 バイト使うので、載るかどうかは bytes() で先に確かめること。
+ * 学習中に何度も同じ組のカーネルを計算し直さずに済む。
+ * </pre>
+ */
+final class GramMatrix {
+
+    /** データ数 */
+    private final int size;
+    
+    /** 下三角 */
+    private final double[] values;
+    
+    /**
+     * コンストラクタ（全部計算する）
+     * 
+     * @param size      データ数
+     * @param source    カーネルの計算元
+     */
+    GramMatrix(int size, KernelCache.Source source) {
+        this.size = size;
+        this.values = new double[(int) (bytes(size) / 8)];
+        for (int i = 0; i < size; i++) {
+            source.row(i, i + 1, this.values, offset(i));
+        }
+    }
+    
+    /**
+     * 必要なメモリ
+     * 
+     * <pre>
+     * 配列1つに収まらない大きさ（int の範囲を超える）ならば Long.MAX_VALUE を返す。
+     * </pre>
+     * 
+     * @param size  データ数
+     * @return バイト数
+     */
+    static long bytes(int size) {
+        long length = (long) size * (size + 1) / 2;
+        return length > Integer.MAX_VALUE - 8 ? Long.MAX_VALUE : 8 * length;
+    }
+    
+    /**
+     * m列目を足しこむ
+     * 
+     * <pre>
+     * target[n] += scale・k(n, m) をすべてのnについて計算する。
+     * 未定乗数λ_mが動いたときに、決定関数を差分だけ更新するのに使う。
+     * </pre>
+     */
+    void addColumn(int m, double scale, double[] target) {
+    
+        // n <= m はm行目にまとまっている
+        int row = offset(m);
+        for (int n = 0; n <= m; n++) {
+            target[n] += scale * this.values[row + n];
+        }
+        
+        // n > m はn行目のm番目（次の行へはn+1個進む）
+        int k = row + m;
+        for (int n = m + 1; n < this.size; n++) {
+            k += n;
+            target[n] += scale * this.values[k];
+        }
+    }
+    
+    /**
+     * i行目の開始位置
+     */
+    private static int offset(int i) {
+        return (int) ((long) i * (i + 1) / 2);
+    }
+}
@@ -0,0 +1,280 @@
+package fxpractice;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.stream.IntStream;
+
+/**
+ * 画面なしで学習・評価する
+ * 
+ * <pre>
+ * 教師データを読んで学習し、テストデータの正解率と時間を表示する。
+ * JavaFXは描画にしか使わないので、クラスパスになくても動く。
+ * 
+ * 使い方
+ *   java fxpractice.Headless --machine=SVM_SMO --train=train.csv [--test=test.csv] [--save=model.bin] [--verbose]
+ *   java fxpractice.Headless --machine=MultiLayerPerceotron --train=feed.csv --test=test.csv --stream [--chunk=1024] [--classes=0,1,2]
+ *   java fxpractice.Headless --load=model.bin --test=test.csv [--train=train.csv]
+ * 
+ * ファイルの形式は DatasetIO を参照。テストデータを指定しなければ教師データで評価する。
+ * ラベルは教師データに出てくる値を小さい順にクラス番号に振り直してから学習機に渡す。
+ * --loadで保存したモデルを読み込んだときは学習しない。ラベルはモデルと一緒に保存したものを使う
+ * （ラベルを保存していない古いモデルファイルは --train の教師データから振り直す）。
+ * --stream（CSVのみ）を付けると、教師データを少しずつ読んで逐次学習（partialFit）する。
+ * 教師データ全体をメモリに載せないので、先にラベルだけ1回読んでクラス番号を振る
+ * （--classes=0,1,2 のようにラベルを全部指定すれば読まない。指定にないラベルが出てきたらエラー）。
+ * </pre>
+ */
+public final class Headless {
+
+    private Headless() {
+    }
+    
+    public static void main(String[] args) {
+    
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                usage("unknown option: " + arg);
+            }
+            int eq = arg.indexOf('=');
+            options.put(eq < 0 ? arg.substring(2) : arg.substring(2, eq), eq < 0 ? "true" : arg.substring(eq + 1));
+        }
+        
+        String loadFile = options.get("load");
+        String trainFile = options.get("train");
+        String testFile = options.getOrDefault("test", trainFile);
+        String saveFile = options.get("save");
+        
+        String name = options.get("machine");
+        if (loadFile == null && (name == null || trainFile == null)) {
+            usage("--machine and --train are required");
+        }
+        if (loadFile != null && testFile == null) {
+            usage("--test is required with --load");
+        }
+        if (loadFile == null && !Machines.NAMES.contains(name)) {
+            usage("unknown machine: " + name);
+        }
+        
+        boolean stream = options.containsKey("stream");
+        if (stream && loadFile != null) {
+            usage("--stream cannot be used with --load");
+        }
+        
+        // 学習機が標準出力に書くログは、指定しなければ捨てる
+        PrintStream out = System.out;
+        if (!options.containsKey("verbose")) {
+            System.setOut(new PrintStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+            }));
+        }
+        
+        try {
+        
+            if (stream) {
+                int[] classes = options.containsKey("classes")
+                        ? Arrays.stream(options.get("classes").split(",")).mapToInt(Integer::parseInt).distinct().sorted().toArray()
+                        : null;
+                streamAndScore(out, name, trainFile, testFile, saveFile, Integer.parseInt(options.getOrDefault("chunk", "1024")), classes);
+                return;
+            }
+            
+            long t0 = System.nanoTime();
+            Dataset test = DatasetIO.read(Paths.get(testFile));
+            Dataset train = trainFile == null ? test : trainFile.equals(testFile) ? test : DatasetIO.read(Paths.get(trainFile));
+            long t1 = System.nanoTime();
+            
+            if (test.dimension() != train.dimension()) {
+                throw new IOException(testFile + ": dimension " + test.dimension() + " does not match " + train.dimension());
+            }
+            
+            // ラベルをクラス番号に振り直す
+            int[] classes = trainFile == null ? new int[0] : IntStream.of(Arrays.copyOf(train.lavels(), train.size())).distinct().sorted().toArray();
+            
+            LearningMachine lm;
+            long t2;
+            long t3;
+            if (loadFile != null) {
+            
+                // 保存したモデルを使う
+                lm = ModelFile.load(Paths.get(loadFile));
+                name = lm.getClass().getSimpleName();
+                
+                // テストデータのラベルから振り直すと、出てこないクラスがあったときにずれる
+                int[] saved = ModelFile.lavels(Paths.get(loadFile));
+                if (saved.length > 0) {
+                    classes = saved;
+                } else if (trainFile == null) {
+                    throw new IOException(loadFile + ": no labels in the model file, --train is required");
+                }
+                int dimension = lm.getDataset().dimension();
+                if (dimension > 0 && dimension != test.dimension()) {
+                    throw new IOException(testFile + ": dimension " + test.dimension() + " does not match the model " + dimension);
+                }
+                t2 = System.nanoTime();
+                t3 = t2;
+                
+            } else {
+            
+                lm = Machines.create(name, train.dimension(), classes.length);
+                double[] row = new double[train.dimension()];
+                for (int n = 0; n < train.size(); n++) {
+                    System.arraycopy(train.features(), n * row.length, row, 0, row.length);
+                    lm.add(Machines.lavel(name, Arrays.binarySearch(classes, train.lavel(n))), row);
+                }
+                t2 = System.nanoTime();
+                
+                lm.learn();
+                t3 = System.nanoTime();
+            }
+            
+            if (saveFile != null) {
+                ModelFile.save(lm, classes, Paths.get(saveFile));
+            }
+            
+            int[] ans = new int[test.size()];
+            lm.predictBatch(test.features(), test.dimension(), ans);
+            long t4 = System.nanoTime();
+            
+            // 教師データに出てこないラベルは必ず不正解
+            int ok = 0;
+            for (int n = 0; n < test.size(); n++) {
+                int cls = Arrays.binarySearch(classes, test.lavel(n));
+                if (cls >= 0 && ans[n] == Machines.lavel(name, cls)) {
+                    ok++;
+                }
+            }
+            
+            out.printf("machine   %s%n", lm.getTitle());
+            if (loadFile != null) {
+                out.printf("model     %s%n", loadFile);
+            }
+            if (trainFile != null) {
+                out.printf("train     %s (%d rows, %d dims, %d classes)%n", trainFile, train.size(), train.dimension(), classes.length);
+            } else {
+                out.printf("classes   %d (saved with the model)%n", classes.length);
+            }
+            out.printf("test      %s (%d rows)%n", testFile, test.size());
+            out.printf("load      %10.1f ms%n", (t1 - t0) / 1e6);
+            out.printf("%s%10.1f ms%n", loadFile != null ? "model     " : "add       ", (t2 - t1) / 1e6);
+            out.printf("learn     %10.1f ms%n", (t3 - t2) / 1e6);
+            out.printf("predict   %10.1f ms (%.1f rows/s)%n", (t4 - t3) / 1e6, test.size() / ((t4 - t3) / 1e9));
+            out.printf("accuracy  %10.4f (%d/%d)%n", (double) ok / Math.max(1, test.size()), ok, test.size());
+            if (lm instanceof MultiLayerPerceotron) {
+                out.printf("result    %s%n", ((MultiLayerPerceotron) lm).getResult());
+            }
+            
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        } finally {
+            System.setOut(out);
+        }
+    }
+    
+    /**
+     * 逐次学習して評価する
+     * 
+     * @param out       結果の出力先
+     * @param name      学習機の名前
+     * @param trainFile 教師データ（CSV）
+     * @param testFile  テストデータ
+     * @param saveFile  モデルの保存先（nullならば保存しない）
+     * @param chunkSize 1回に読む件数
+     * @param classes   ラベル（昇順、nullならば教師データを1回読んで決める）
+     */
+    private static void streamAndScore(PrintStream out, String name, String trainFile, String testFile, String saveFile, int chunkSize, int[] classes) throws IOException {
+    
+        if (!trainFile.toLowerCase().endsWith(".csv")) {
+            throw new IllegalArgumentException("--stream supports only CSV");
+        }
+        
+        // ラベルをクラス番号に振り直すので、先にラベルだけ集める
+        long t0 = System.nanoTime();
+        if (classes == null) {
+            TreeSet<Integer> lavels = new TreeSet<>();
+            DatasetIO.readCsv(Paths.get(trainFile), chunkSize, chunk -> {
+                for (int n = 0; n < chunk.size(); n++) {
+                    lavels.add(chunk.lavel(n));
+                }
+            });
+            classes = lavels.stream().mapToInt(Integer::intValue).toArray();
+        }
+        int[] cls = classes;
+        
+        // 次元は最初の行を読むまでわからないので、最初のチャンクで作る
+        LearningMachine[] lm = { null };
+        long[] rows = { 0 };
+        
+        long t1 = System.nanoTime();
+        DatasetIO.readCsv(Paths.get(trainFile), chunkSize, chunk -> {
+            if (lm[0] == null) {
+                lm[0] = Machines.create(name, chunk.dimension(), cls.length);
+                if (!(lm[0] instanceof OnlineLearner)) {
+                    throw new IllegalArgumentException(name + " does not support --stream");
+                }
+            }
+            double[] row = new double[chunk.dimension()];
+            for (int n = 0; n < chunk.size(); n++) {
+                int c = Arrays.binarySearch(cls, chunk.lavel(n));
+                if (c < 0) {
+                    throw new IllegalArgumentException(trainFile + ": label " + chunk.lavel(n) + " is not in --classes");
+                }
+                System.arraycopy(chunk.features(), n * row.length, row, 0, row.length);
+                ((OnlineLearner) lm[0]).partialFit(Machines.lavel(name, c), row);
+            }
+            rows[0] += chunk.size();
+        });
+        long t2 = System.nanoTime();
+        
+        if (lm[0] == null) {
+            throw new IOException(trainFile + ": no data");
+        }
+        if (saveFile != null) {
+            ModelFile.save(lm[0], cls, Paths.get(saveFile));
+        }
+        
+        Dataset test = DatasetIO.read(Paths.get(testFile));
+        int[] ans = new int[test.size()];
+        long t3 = System.nanoTime();
+        lm[0].predictBatch(test.features(), test.dimension(), ans);
+        long t4 = System.nanoTime();
+        
+        // 教師データに出てこないラベルは必ず不正解
+        int ok = 0;
+        for (int n = 0; n < test.size(); n++) {
+            int c = Arrays.binarySearch(cls, test.lavel(n));
+            if (c >= 0 && ans[n] == Machines.lavel(name, c)) {
+                ok++;
+            }
+        }
+        
+        out.printf("machine   %s%n", lm[0].getTitle());
+        out.printf("train     %s (%d rows, %d classes, streamed in chunks of %d)%n", trainFile, rows[0], cls.length, chunkSize);
+        out.printf("test      %s (%d rows)%n", testFile, test.size());
+        out.printf("classes   %10.1f ms%n", (t1 - t0) / 1e6);
+        out.printf("fit       %10.1f ms%n", (t2 - t1) / 1e6);
+        out.printf("predict   %10.1f ms (%.1f rows/s)%n", (t4 - t3) / 1e6, test.size() / ((t4 - t3) / 1e9));
+        out.printf("accuracy  %10.4f (%d/%d)%n", (double) ok / Math.max(1, test.size()), ok, test.size());
+    }
+    
+    /**
+     * 使い方を表示して終了
+     */
+    private static void usage(String message) {
+        System.err.println(message);
+        System.err.println("usage: java fxpractice.Headless --machine=<name> --train=<file> [--test=<file>] [--save=<model>] [--stream [--chunk=<rows>] [--classes=<labels>]] [--verbose]");
+        System.err.println("       java fxpractice.Headless --load=<model> --test=<file> [--train=<file>] [--verbose]");
+        System.err.println("machines: " + String.join(", ", Machines.NAMES));
+        System.exit(2);
+    }
+}
@@ -0,0 +1,460 @@
+package fxpractice;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * HNSW（Hierarchical Navigable Small World）グラフ
+ * 
+ * <pre>
+ * 近傍を近似で求めるためのグラフ（Malkov and Yashunin 2016）。
+ * 点ごとに層の数をランダムに決め（上の層ほど点が少ない）、各層で近い点どうしをつなぐ。
+ * 探索は一番上の層から貪欲に降りていき、一番下の層で候補をef個持って広げる。
+ * 1回の探索で距離を計算するのはおおよそ ef×M×log(点の数) 個なので、点が多くても速い。
+ * そのかわり厳密なk近傍になるとは限らない（efを大きくすると取りこぼしが減る）。
+ * 
+ * 木と違って点を1つずつ追加できるので、addのたびに update() する。
+ * 追加と探索を同時にやらないこと（探索どうしは別スレッドでもよい）。
+ * 
+ * リンクは下の層（層0）だけ点の数に比例して多いので、1本の配列に詰めて持つ。
+ *   層0    links0[i * (2M + 1)] にリンク数、その後ろに最大2M個
+ *   層1以上 upper[i][(層 - 1) * (M + 1)] にリンク数、その後ろに最大M個
+ * </pre>
+ */
+final class Hnsw implements SpatialIndex {
+
+    /** 最初に確保する点の数 */
+    private static final int INITIAL_CAPACITY = 16;
+    
+    /** 教師データ（追加されると特徴量の配列が変わるので毎回取り直す） */
+    private final Dataset dataset;
+    
+    /** 層1以上のリンク数の上限 */
+    private final int m;
+    
+    /** 層0のリンク数の上限 */
+    private final int m0;
+    
+    /** 追加するときに持つ候補数 */
+    private final int efConstruction;
+    
+    /** 探索するときに持つ候補数 */
+    private int efSearch;
+    
+    /** 層の数を決める係数（1 / log M） */
+    private final double levelFactor;
+    
+    /** 層の数を決める乱数（同じ順に追加すれば同じグラフになるように種を固定） */
+    private final Random random = new Random(1);
+    
+    /** 点の数 */
+    private int size = 0;
+    
+    /** 点ごとの一番上の層 */
+    private int[] levels = new int[INITIAL_CAPACITY];
+    
+    /** 層0のリンク */
+    private int[] links0;
+    
+    /** 層1以上のリンク（層0だけの点はnull） */
+    private int[][] upper = new int[INITIAL_CAPACITY][];
+    
+    /** 探索の入り口（一番上の層にある点） */
+    private int entry = -1;
+    
+    /** 一番上の層 */
+    private int maxLevel = -1;
+    
+    /** 探索の作業領域（スレッドごとに使い回す） */
+    private final ThreadLocal<Work> work = ThreadLocal.withInitial(Work::new);
+    
+    /**
+     * コンストラクタ
+     * 
+     * @param dataset           教師データ（ここに追加した点をinsertする）
+     * @param m                 リンク数（層0はこの2倍）
+     * @param efConstruction    追加するときに持つ候補数
+     * @param efSearch          探索するときに持つ候補数（kより小さければkにする）
+     */
+    Hnsw(Dataset dataset, int m, int efConstruction, int efSearch) {
+        if (m < 2) {
+            throw new IllegalArgumentException("M must be >= 2: " + m);
+        }
+        this.dataset = dataset;
+        this.m = m;
+        this.m0 = 2 * m;
+        this.efConstruction = Math.max(efConstruction, m);
+        this.efSearch = efSearch;
+        this.levelFactor = 1 / Math.log(m);
+        this.links0 = new int[INITIAL_CAPACITY * (this.m0 + 1)];
+    }
+    
+    /**
+     * 探索するときに持つ候補数を設定（作り直さずに変えられる）
+     */
+    void setEfSearch(int efSearch) {
+        this.efSearch = efSearch;
+    }
+    
+    /**
+     * 点の数
+     */
+    int size() {
+        return this.size;
+    }
+    
+    /**
+     * 空にする
+     */
+    void clear() {
+        this.size = 0;
+        this.entry = -1;
+        this.maxLevel = -1;
+        this.random.setSeed(1);
+        Arrays.fill(this.upper, null);
+    }
+    
+    /**
+     * 教師データに追加された点をグラフに入れる
+     * 
+     * <pre>
+     * まだ入れていない点（size() 番目から後ろ）を順に insert する。
+     * </pre>
+     */
+    void update() {
+        while (this.size < this.dataset.size()) {
+            this.insert(this.size);
+        }
+    }
+    
+    /**
+     * 点を1つ入れる
+     */
+    private void insert(int node) {
+    
+        this.ensureCapacity(node + 1);
+        double[] features = this.dataset.features();
+        int dimension = this.dataset.dimension();
+        int offset = node * dimension;
+        
+        int level = (int) (-Math.log(1 - this.random.nextDouble()) * this.levelFactor);
+        this.levels[node] = level;
+        this.links0[node * (this.m0 + 1)] = 0;
+        this.upper[node] = level > 0 ? new int[level * (this.m + 1)] : null;
+        this.size++;
+        
+        if (this.entry < 0) {
+            this.entry = node;
+            this.maxLevel = level;
+            return;
+        }
+        
+        // 上の層は貪欲に近づくだけ
+        Work work = this.work.get();
+        int ep = this.entry;
+        for (int l = this.maxLevel; l > level; l--) {
+            ep = this.greedy(features, dimension, features, offset, ep, l);
+        }
+        
+        // 自分の層から下は候補を広げてつなぐ
+        for (int l = Math.min(level, this.maxLevel); l >= 0; l--) {
+        
+            TopK found = work.search(this, features, dimension, features, offset, ep, this.efConstruction, l);
+            found.sort();
+            int[] selected = this.select(features, dimension, found, this.m);
+            
+            int[] links = this.links(node, l);
+            int base = this.base(node, l);
+            links[base] = selected.length;
+            System.arraycopy(selected, 0, links, base + 1, selected.length);
+            
+            for (int neighbor : selected) {
+                this.connect(features, dimension, neighbor, node, l);
+            }
+            ep = found.index(0);
+        }
+        
+        if (level > this.maxLevel) {
+            this.entry = node;
+            this.maxLevel = level;
+        }
+    }
+    
+    /**
+     * k近傍を探す（近似）
+     */
+    @Override
+    public void search(double[] query, TopK topK) {
+    
+        if (this.entry < 0) {
+            return;
+        }
+        
+        double[] features = this.dataset.features();
+        int dimension = this.dataset.dimension();
+        
+        int ep = this.entry;
+        for (int l = this.maxLevel; l > 0; l--) {
+            ep = this.greedy(features, dimension, query, 0, ep, l);
+        }
+        
+        TopK found = this.work.get().search(this, features, dimension, query, 0, ep, Math.max(this.efSearch, topK.capacity()), 0);
+        for (int i = 0; i < found.size(); i++) {
+            topK.offer(found.distance(i), found.index(i));
+        }
+    }
+    
+    /**
+     * 層lで一番近い点まで貪欲に進む
+     */
+    private int greedy(double[] features, int dimension, double[] query, int queryOffset, int ep, int l) {
+    
+        int current = ep;
+        double best = distance(features, current * dimension, query, queryOffset, dimension);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            int[] links = this.links(current, l);
+            int base = this.base(current, l);
+            for (int j = 1; j <= links[base]; j++) {
+                int next = links[base + j];
+                double d = distance(features, next * dimension, query, queryOffset, dimension);
+                if (d < best) {
+                    best = d;
+                    current = next;
+                    changed = true;
+                }
+            }
+        }
+        return current;
+    }
+    
+    /**
+     * 近い順に並んだ候補からつなぐ点をmax個まで選ぶ
+     * 
+     * <pre>
+     * 論文のヒューリスティック。すでに選んだ点のほうが近い候補は、その点を経由して
+     * たどれるので選ばない。塊どうしをつなぐリンクが残りやすくなる。
+     * </pre>
+     */
+    private int[] select(double[] features, int dimension, TopK sorted, int max) {
+    
+        int[] selected = new int[Math.min(max, sorted.size())];
+        int count = 0;
+        for (int i = 0; i < sorted.size() && count < selected.length; i++) {
+            int candidate = sorted.index(i);
+            boolean good = true;
+            for (int j = 0; j < count; j++) {
+                if (distance(features, candidate * dimension, features, selected[j] * dimension, dimension) < sorted.distance(i)) {
+                    good = false;
+                    break;
+                }
+            }
+            if (good) {
+                selected[count++] = candidate;
+            }
+        }
+        return Arrays.copyOf(selected, count);
+    }
+    
+    /**
+     * nodeからtargetへのリンクを足す（上限を超えたら選び直す）
+     */
+    private void connect(double[] features, int dimension, int node, int target, int l) {
+    
+        int max = l == 0 ? this.m0 : this.m;
+        int[] links = this.links(node, l);
+        int base = this.base(node, l);
+        int count = links[base];
+        if (count < max) {
+            links[base + 1 + count] = target;
+            links[base] = count + 1;
+            return;
+        }
+        
+        // 今のリンクと新しい点を近い順に並べて選び直す
+        TopK candidates = new TopK(count + 1);
+        int offset = node * dimension;
+        for (int j = 1; j <= count; j++) {
+            candidates.offer(distance(features, links[base + j] * dimension, features, offset, dimension), links[base + j]);
+        }
+        candidates.offer(distance(features, target * dimension, features, offset, dimension), target);
+        candidates.sort();
+        
+        int[] selected = this.select(features, dimension, candidates, max);
+        links[base] = selected.length;
+        System.arraycopy(selected, 0, links, base + 1, selected.length);
+    }
+    
+    /**
+     * 層lのリンクが入っている配列
+     */
+    private int[] links(int node, int l) {
+        return l == 0 ? this.links0 : this.upper[node];
+    }
+    
+    /**
+     * 層lのリンク数の位置（この後ろにリンクが並ぶ）
+     */
+    private int base(int node, int l) {
+        return l == 0 ? node * (this.m0 + 1) : (l - 1) * (this.m + 1);
+    }
+    
+    /**
+     * 足りなければ2倍に広げる
+     */
+    private void ensureCapacity(int capacity) {
+        if (capacity > this.levels.length) {
+            int length = Math.max(capacity, this.levels.length * 2);
+            this.levels = Arrays.copyOf(this.levels, length);
+            this.upper = Arrays.copyOf(this.upper, length);
+            this.links0 = Arrays.copyOf(this.links0, length * (this.m0 + 1));
+        }
+    }
+    
+    /**
+     * 平方ユークリッド距離
+     */
+    private static double distance(double[] x, int xOffset, double[] y, int yOffset, int dimension) {
+        double sum = 0;
+        for (int i = 0; i < dimension; i++) {
+            double d = x[xOffset + i] - y[yOffset + i];
+            sum += d * d;
+        }
+        return sum;
+    }
+    
+    /**
+     * 探索の作業領域
+     * 
+     * <pre>
+     * 訪れた点は番号（stamp）で印を付けるので、毎回配列をクリアしなくてよい。
+     * </pre>
+     */
+    private static final class Work {
+    
+        /** 点ごとに最後に訪れたときの番号 */
+        private int[] visited = new int[0];
+        
+        /** 今回の番号 */
+        private int stamp = 0;
+        
+        /** これから広げる候補（距離の小さい順に取り出す最小ヒープ） */
+        private double[] candidateDistance = new double[INITIAL_CAPACITY];
+        
+        private int[] candidateIndex = new int[INITIAL_CAPACITY];
+        
+        private int candidateSize = 0;
+        
+        /** 見つかった近傍（ef個） */
+        private TopK found = new TopK(1);
+        
+        /**
+         * 層lで候補をef個持って広げる
+         * 
+         * @return 見つかった近傍（並び順は保証しない。次に探索するまで有効）
+         */
+        TopK search(Hnsw graph, double[] features, int dimension, double[] query, int queryOffset, int ep, int ef, int l) {
+        
+            if (this.found.capacity() != ef) {
+                this.found = new TopK(ef);
+            }
+            if (this.visited.length < graph.size) {
+                this.visited = Arrays.copyOf(this.visited, Math.max(graph.size, this.visited.length * 2));
+            }
+            if (++this.stamp == 0) {
+                Arrays.fill(this.visited, 0);
+                this.stamp = 1;
+            }
+            
+            TopK found = this.found;
+            found.clear();
+            this.candidateSize = 0;
+            
+            double d = distance(features, ep * dimension, query, queryOffset, dimension);
+            this.visited[ep] = this.stamp;
+            this.push(d, ep);
+            found.offer(d, ep);
+            
+            while (this.candidateSize > 0) {
+            
+                // 一番近い候補がef番目より遠ければ、もう近づかない
+                double nearest = this.candidateDistance[0];
+                int current = this.candidateIndex[0];
+                if (nearest > found.worst()) {
+                    break;
+                }
+                this.pop();
+                
+                int[] links = graph.links(current, l);
+                int base = graph.base(current, l);
+                for (int j = 1; j <= links[base]; j++) {
+                    int next = links[base + j];
+                    if (this.visited[next] == this.stamp) {
+                        continue;
+                    }
+                    this.visited[next] = this.stamp;
+                    
+                    double dn = distance(features, next * dimension, query, queryOffset, dimension);
+                    if (dn < found.worst()) {
+                        this.push(dn, next);
+                        found.offer(dn, next);
+                    }
+                }
+            }
+            return found;
+        }
+        
+        /**
+         * 候補を追加
+         */
+        private void push(double dist, int idx) {
+        
+            if (this.candidateSize == this.candidateIndex.length) {
+                this.candidateDistance = Arrays.copyOf(this.candidateDistance, this.candidateSize * 2);
+                this.candidateIndex = Arrays.copyOf(this.candidateIndex, this.candidateSize * 2);
+            }
+            
+            int i = this.candidateSize++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (this.candidateDistance[parent] <= dist) {
+                    break;
+                }
+                this.candidateDistance[i] = this.candidateDistance[parent];
+                this.candidateIndex[i] = this.candidateIndex[parent];
+                i = parent;
+            }
+            this.candidateDistance[i] = dist;
+            this.candidateIndex[i] = idx;
+        }
+        
+        /**
+         * 一番近い候補を取り除く
+         */
+        private void pop() {
+        
+            int n = --this.candidateSize;
+            double dist = this.candidateDistance[n];
+            int idx = this.candidateIndex[n];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= n) {
+                    break;
+                }
+                if (child + 1 < n && this.candidateDistance[child + 1] < this.candidateDistance[child]) {
+                    child++;
+                }
+                if (this.candidateDistance[child] >= dist) {
+                    break;
+                }
+                this.candidateDistance[i] = this.candidateDistance[child];
+                this.candidateIndex[i] = this.candidateIndex[child];
+                i = child;
+            }
+            this.candidateDistance[i] = dist;
+            this.candidateIndex[i] = idx;
+        }
+    }
+}
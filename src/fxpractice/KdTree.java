@@ -0,0 +1,143 @@
+package fxpractice;
+
+/**
+ * kd木
+ * 
+ * <pre>
+ * 広がりが最大の次元の中央値で空間を2分割していく。
+ * 次元が低いときはこれで十分速い。
+ * </pre>
+ */
+class KdTree implements SpatialIndex {
+    
+    /** 葉に持たせる点の数 */
+    private static final int LEAF_SIZE = 8;
+    
+    /** 点（行優先） */
+    private final double[] features;
+    
+    /** 点の次元 */
+    private final int dimension;
+    
+    /** 点の数 */
+    private final int size;
+    
+    /** 点のインデックス（ノードごとに範囲で区切って使う） */
+    private final int[] order;
+    
+    /** ノードが受け持つ範囲の開始位置 */
+    private final int[] start;
+    
+    /** ノードが受け持つ範囲の終了位置（含まない） */
+    private final int[] end;
+    
+    /** 分割する次元（葉は-1） */
+    private final int[] splitDimension;
+    
+    /** 分割する値 */
+    private final double[] splitValue;
+    
+    /** 左の子 */
+    private final int[] left;
+    
+    /** 右の子 */
+    private final int[] right;
+    
+    /** ノード数 */
+    private int nodeCnt = 0;
+    
+    /**
+     * コンストラクタ
+     * 
+     * @param dataset   教師データ（構築後に追加しないこと）
+     */
+    KdTree(Dataset dataset) {
+        
+        this.features = dataset.features();
+        this.dimension = dataset.dimension();
+        this.size = dataset.size();
+        this.order = new int[this.size];
+        for (int i = 0; i < this.size; i++) {
+            this.order[i] = i;
+        }
+        
+        // ノード数は多くても点の数の2倍
+        int maxNode = 2 * this.size + 1;
+        this.start = new int[maxNode];
+        this.end = new int[maxNode];
+        this.splitDimension = new int[maxNode];
+        this.splitValue = new double[maxNode];
+        this.left = new int[maxNode];
+        this.right = new int[maxNode];
+        
+        this.build(0, this.size);
+    }
+    
+    /**
+     * 木を構築
+     * 
+     * @return ノード番号
+     */
+    private int build(int from, int to) {
+        
+        int node = this.nodeCnt++;
+        this.start[node] = from;
+        this.end[node] = to;
+        this.splitDimension[node] = -1;
+        
+        if (to - from <= LEAF_SIZE) {
+            return node;
+        }
+        
+        // 広がりが最大の次元で分割する
+        int dim = SpatialIndex.widestDimension(this.features, this.dimension, this.order, from, to);
+        if (dim < 0) {
+            return node;    // 全部同じ点
+        }
+        
+        int mid = (from + to) >>> 1;
+        SpatialIndex.select(this.features, this.dimension, this.order, from, to - 1, mid, dim);
+        
+        this.splitDimension[node] = dim;
+        this.splitValue[node] = this.features[this.order[mid] * this.dimension + dim];
+        this.left[node] = this.build(from, mid);
+        this.right[node] = this.build(mid, to);
+        
+        return node;
+    }
+    
+    /**
+     * k近傍を探す
+     */
+    @Override
+    public void search(double[] query, TopK topK) {
+        if (this.size > 0) {
+            this.search(0, query, topK);
+        }
+    }
+    
+    private void search(int node, double[] query, TopK topK) {
+        
+        // 葉なら総当たり
+        int dim = this.splitDimension[node];
+        if (dim < 0) {
+            for (int i = this.start[node]; i < this.end[node]; i++) {
+                int idx = this.order[i];
+                topK.offer(SpatialIndex.distance(this.features, idx * this.dimension, query), idx);
+            }
+            return;
+        }
+        
+        // 問い合わせ点がある側から先に探す
+        double diff = query[dim] - this.splitValue[node];
+        int near = diff < 0 ? this.left[node] : this.right[node];
+        int far = diff < 0 ? this.right[node] : this.left[node];
+        
+        this.search(near, query, topK);
+        
+        // 分割面までの距離がk番目より近ければ反対側にも候補がありうる
+        if (diff * diff <= topK.worst()) {
+            this.search(far, query, topK);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package fxpractice;
+
+/**
+ * カーネル関数
+ * 
+ * <pre>
+ * SVMの学習と判定で共通に使う。特徴量はどれも行優先で詰めた配列とその開始位置で渡す。
+ *   線形          k(x, y) = x・y
+ *   多項式        k(x, y) = (γ x・y + c)^d
+ *   ガウス(RBF)   k(x, y) = exp(-γ|x - y|^2)
+ *   シグモイド    k(x, y) = tanh(γ x・y + c)
+ * 1対多をまとめて計算する row() があるので、カーネル行列の1行はこれで作る。
+ * ループは要素ごとに独立した単純な形にしてあるので、JITがSIMD命令にしやすい。
+ * </pre>
+ */
+public interface Kernel {
+
+    /**
+     * k(x, y)
+     * 
+     * @param x         特徴量（行優先）
+     * @param xOffset   xの開始位置
+     * @param y         特徴量（行優先）
+     * @param yOffset   yの開始位置
+     * @param dimension 次元
+     */
+    double apply(double[] x, int xOffset, double[] y, int yOffset, int dimension);
+    
+    /**
+     * 1対多をまとめて計算
+     * 
+     * <pre>
+     * out[outOffset + j] = k(x, ys の j 行目)  (0 <= j < count)
+     * </pre>
+     * 
+     * @param x         特徴量（行優先）
+     * @param xOffset   xの開始位置
+     * @param ys        相手の特徴量（行優先、先頭から count 行）
+     * @param dimension 次元
+     * @param count     相手の行数
+     * @param out       結果
+     * @param outOffset outの開始位置
+     */
+    default void row(double[] x, int xOffset, double[] ys, int dimension, int count, double[] out, int outOffset) {
+        for (int j = 0; j < count; j++) {
+            out[outOffset + j] = this.apply(x, xOffset, ys, j * dimension, dimension);
+        }
+    }
+    
+    /**
+     * モデルファイルに書き出す（種類の名前とパラメーター）
+     */
+    void write(ModelFile.Writer out);
+    
+    /**
+     * モデルファイルから読み込む
+     */
+    static Kernel read(ModelFile.Reader in) {
+        String name = in.readString();
+        switch (name) {
+            case "linear":
+                return linear();
+            case "polynomial":
+                return polynomial(in.readDouble(), in.readDouble(), in.readInt());
+            case "rbf":
+                return rbf(in.readDouble());
+            case "sigmoid":
+                return sigmoid(in.readDouble(), in.readDouble());
+            default:
+                throw new IllegalStateException("unknown kernel: " + name);
+        }
+    }
+    
+    /**
+     * 線形カーネル
+     */
+    static Kernel linear() {
+        return new Linear();
+    }
+    
+    /**
+     * 多項式カーネル
+     * 
+     * @param gamma     γ
+     * @param coef      c
+     * @param degree    次数
+     */
+    static Kernel polynomial(double gamma, double coef, int degree) {
+        return new Polynomial(gamma, coef, degree);
+    }
+    
+    /**
+     * ガウスカーネル
+     * 
+     * @param gamma     γ（exp(-|x - y|^2 / 2σ^2) ならば 1 / 2σ^2）
+     */
+    static Kernel rbf(double gamma) {
+        return new Rbf(gamma);
+    }
+    
+    /**
+     * シグモイドカーネル
+     * 
+     * @param gamma     γ
+     * @param coef      c
+     */
+    static Kernel sigmoid(double gamma, double coef) {
+        return new Sigmoid(gamma, coef);
+    }
+    
+    /**
+     * 内積
+     */
+    static double dot(double[] x, int xOffset, double[] y, int yOffset, int dimension) {
+        double res = 0;
+        for (int i = 0; i < dimension; i++) {
+            res += x[xOffset + i] * y[yOffset + i];
+        }
+        return res;
+    }
+    
+    /**
+     * 距離の2乗
+     */
+    static double distance(double[] x, int xOffset, double[] y, int yOffset, int dimension) {
+        double res = 0;
+        for (int i = 0; i < dimension; i++) {
+            double d = x[xOffset + i] - y[yOffset + i];
+            res += d * d;
+        }
+        return res;
+    }
+    
+    /**
+     * 線形カーネル
+     */
+    final class Linear implements Kernel {
+    
+        private Linear() {
+        }
+        
+        @Override
+        public double apply(double[] x, int xOffset, double[] y, int yOffset, int dimension) {
+            return dot(x, xOffset, y, yOffset, dimension);
+        }
+        
+        @Override
+        public void write(ModelFile.Writer out) {
+            out.writeString("linear");
+        }
+        
+        @Override
+        public String toString() {
+            return "linear";
+        }
+    }
+    
+    /**
+     * 多項式カーネル
+     */
+    final class Polynomial implements Kernel {
+    
+        private final double gamma;
+        
+        private final double coef;
+        
+        private final int degree;
+        
+        private Polynomial(double gamma, double coef, int degree) {
+            this.gamma = gamma;
+            this.coef = coef;
+            this.degree = degree;
+        }
+        
+        @Override
+        public double apply(double[] x, int xOffset, double[] y, int yOffset, int dimension) {
+            return this.pow(this.gamma * dot(x, xOffset, y, yOffset, dimension) + this.coef);
+        }
+        
+        @Override
+        public void row(double[] x, int xOffset, double[] ys, int dimension, int count, double[] out, int outOffset) {
+            for (int j = 0; j < count; j++) {
+                out[outOffset + j] = dot(x, xOffset, ys, j * dimension, dimension);
+            }
+            for (int j = 0; j < count; j++) {
+                out[outOffset + j] = this.pow(this.gamma * out[outOffset + j] + this.coef);
+            }
+        }
+        
+        /**
+         * 次数が小さいのでMath.powは使わずに掛ける
+         */
+        private double pow(double v) {
+            double res = 1;
+            for (int i = 0; i < this.degree; i++) {
+                res *= v;
+            }
+            return res;
+        }
+        
+        @Override
+        public void write(ModelFile.Writer out) {
+            out.writeString("polynomial");
+            out.writeDouble(this.gamma);
+            out.writeDouble(this.coef);
+            out.writeInt(this.degree);
+        }
+        
+        @Override
+        public String toString() {
+            return "polynomial(γ=" + this.gamma + ", c=" + this.coef + ", d=" + this.degree + ")";
+        }
+    }
+    
+    /**
+     * ガウスカーネル
+     */
+    final class Rbf implements Kernel {
+    
+        private final double gamma;
+        
+        private Rbf(double gamma) {
+            this.gamma = gamma;
+        }
+        
+        /**
+         * γ
+         */
+        double getGamma() {
+            return this.gamma;
+        }
+        
+        @Override
+        public double apply(double[] x, int xOffset, double[] y, int yOffset, int dimension) {
+            return Math.exp(-this.gamma * distance(x, xOffset, y, yOffset, dimension));
+        }
+        
+        @Override
+        public void row(double[] x, int xOffset, double[] ys, int dimension, int count, double[] out, int outOffset) {
+        
+            // 距離を先に全部計算してから、expをまとめてかける
+            for (int j = 0; j < count; j++) {
+                out[outOffset + j] = distance(x, xOffset, ys, j * dimension, dimension);
+            }
+            for (int j = 0; j < count; j++) {
+                out[outOffset + j] = Math.exp(-this.gamma * out[outOffset + j]);
+            }
+        }
+        
+        @Override
+        public void write(ModelFile.Writer out) {
+            out.writeString("rbf");
+            out.writeDouble(this.gamma);
+        }
+        
+        @Override
+        public String toString() {
+            return "rbf(γ=" + this.gamma + ")";
+        }
+    }
+    
+    /**
+     * シグモイドカーネル
+     */
+    final class Sigmoid implements Kernel {
+    
+        private final double gamma;
+        
+        private final double coef;
+        
+        private Sigmoid(double gamma, double coef) {
+            this.gamma = gamma;
+            this.coef = coef;
+        }
+        
+        @Override
+        public double apply(double[] x, int xOffset, double[] y, int yOffset, int dimension) {
+            return Math.tanh(this.gamma * dot(x, xOffset, y, yOffset, dimension) + this.coef);
+        }
+        
+        @Override
+        public void row(double[] x, int xOffset, double[] ys, int dimension, int count, double[] out, int outOffset) {
+            for (int j = 0; j < count; j++) {
+                out[outOffset + j] = dot(x, xOffset, ys, j * dimension, dimension);
+            }
+            for (int j = 0; j < count; j++) {
+                out[outOffset + j] = Math.tanh(this.gamma * out[outOffset + j] + this.coef);
+            }
+        }
+        
+        @Override
+        public void write(ModelFile.Writer out) {
+            out.writeString("sigmoid");
+            out.writeDouble(this.gamma);
+            out.writeDouble(this.coef);
+        }
+        
+        @Override
+        public String toString() {
+            return "sigmoid(γ=" + this.gamma + ", c=" + this.coef + ")";
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package fxpractice;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * カーネル行列のキャッシュ
+ * 
+ * <pre>
+ * libsvmと同じく行単位で持ち、メモリの上限を超えたら最後に使ってから一番時間の経った行を捨てる。
+ * 対角成分はよく使うので最初に全部計算しておく。
+ * カーネルは対称なので、k(i, j)はi行目かj行目のどちらかがあれば使う。
+ * 
+ * 複数のスレッドから同時に使える（多クラスの学習で共有する）。
+ * 表を触るところだけロックして、ない行の計算はロックの外でやる。
+ * 同じ行を同時に取りに来ると両方で計算することがあるが、結果は同じなので後から入れた方が残る。
+ * </pre>
+ */
+class KernelCache {
+    
+    /**
+     * カーネルの計算元
+     */
+    @FunctionalInterface
+    interface Source {
+        
+        /** i番目とj番目のデータのカーネル */
+        double kernel(int i, int j);
+        
+        /**
+         * i番目と0～count-1番目のデータのカーネルをまとめて計算
+         */
+        default void row(int i, int count, double[] out, int outOffset) {
+            for (int j = 0; j < count; j++) {
+                out[outOffset + j] = this.kernel(i, j);
+            }
+        }
+        
+        /**
+         * 特徴量の配列とカーネル関数から作る（1行はKernel.rowでまとめて計算する）
+         * 
+         * @param kernel    カーネル
+         * @param x         特徴量（行優先）
+         * @param dimension 次元
+         */
+        static Source of(Kernel kernel, double[] x, int dimension) {
+            return new Source() {
+                @Override
+                public double kernel(int i, int j) {
+                    return kernel.apply(x, i * dimension, x, j * dimension, dimension);
+                }
+                
+                @Override
+                public void row(int i, int count, double[] out, int outOffset) {
+                    kernel.row(x, i * dimension, x, dimension, count, out, outOffset);
+                }
+            };
+        }
+    }
+    
+    /** データ数 */
+    private final int size;
+    
+    /** カーネルの計算元 */
+    private final Source source;
+    
+    /** 対角成分 */
+    private final double[] diagonal;
+    
+    /** キャッシュしている行（アクセス順） */
+    private final Map<Integer, double[]> rows;
+    
+    /** キャッシュにあった回数 */
+    private long hits = 0;
+    
+    /** キャッシュになかった回数 */
+    private long misses = 0;
+    
+    /**
+     * コンストラクタ
+     * 
+     * @param size      データ数
+     * @param cacheSize キャッシュの上限（MB）
+     * @param source    カーネルの計算元
+     */
+    KernelCache(int size, double cacheSize, Source source) {
+        // 1行は8バイト×データ数
+        this(source, size, (int) Math.min(Integer.MAX_VALUE, (long) (cacheSize * 1024 * 1024) / (8L * Math.max(1, size))));
+    }
+    
+    /**
+     * 行数で上限を決めて作る
+     * 
+     * <pre>
+     * 計算元が別のキャッシュを引くときに、直近の数行だけ持つのに使う。
+     * </pre>
+     * 
+     * @param size      データ数
+     * @param maxRows   キャッシュする行数の上限
+     * @param source    カーネルの計算元
+     */
+    static KernelCache withRows(int size, int maxRows, Source source) {
+        return new KernelCache(source, size, maxRows);
+    }
+    
+    private KernelCache(Source source, int size, int maxRows) {
+        
+        this.size = size;
+        this.source = source;
+        
+        this.diagonal = new double[size];
+        for (int i = 0; i < size; i++) {
+            this.diagonal[i] = source.kernel(i, i);
+        }
+        
+        // 少なくとも2行は持たないとSMOの1回分も入らない
+        int limit = Math.max(2, Math.min(size, maxRows));
+        this.rows = new LinkedHashMap<Integer, double[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, double[]> eldest) {
+                return this.size() > limit;
+            }
+        };
+    }
+    
+    /**
+     * i行目を取得
+     * 
+     * <pre>
+     * 返した配列は後で捨てられることがあるので、持ち回らないこと。
+     * </pre>
+     */
+    double[] row(int i) {
+        
+        synchronized (this.rows) {
+            double[] row = this.rows.get(i);
+            if (row != null) {
+                this.hits++;
+                return row;
+            }
+            this.misses++;
+        }
+        
+        double[] row = new double[this.size];
+        this.source.row(i, this.size, row, 0);
+        row[i] = this.diagonal[i];
+        synchronized (this.rows) {
+            this.rows.put(i, row);
+        }
+        return row;
+    }
+    
+    /**
+     * k(i, j)を取得
+     */
+    double get(int i, int j) {
+        
+        if (i == j) {
+            return this.diagonal[i];
+        }
+        
+        // 対称なのでj行目にあればそれを使う
+        synchronized (this.rows) {
+            if (!this.rows.containsKey(i)) {
+                double[] row = this.rows.get(j);
+                if (row != null) {
+                    this.hits++;
+                    return row[i];
+                }
+            }
+        }
+        
+        return this.row(i)[j];
+    }
+    
+    /**
+     * 対角成分k(i, i)
+     */
+    double diagonal(int i) {
+        return this.diagonal[i];
+    }
+    
+    /**
+     * キャッシュにあった回数
+     */
+    long getHits() {
+        synchronized (this.rows) {
+            return this.hits;
+        }
+    }
+    
+    /**
+     * キャッシュになかった回数
+     */
+    long getMisses() {
+        synchronized (this.rows) {
+            return this.misses;
+        }
+    }
+}
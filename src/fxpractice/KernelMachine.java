@@ -0,0 +1,14 @@
+package fxpractice;
+
+/**
+ * サポートベクターを持つ学習機
+ */
+public interface KernelMachine extends LearningMachine {
+    
+    /**
+     * サポートベクター（の候補）のインデックス
+     * 
+     * @return 教師データのインデックス
+     */
+    int[] getSupportVectors();
+}
@@ -1,7 +1,12 @@
 package fxpractice;
 
-import javafx.scene.canvas.GraphicsContext;
-
+/**
+ * 学習機
+ * 
+ * <pre>
+ * 計算だけのAPI。JavaFXには依存しない（描画は MachineRenderer）。
+ * </pre>
+ */
 public interface LearningMachine {
     
     /** 教師データを追加 */
@@ -10,11 +15,75 @@ public interface LearningMachine {
     /** 学習 */
     void learn();
     
+    /**
+     * 途中経過を知らせながら学習
+     * 
+     * <pre>
+     * 別スレッドで学習するときに使う。
+     * 対応していない学習機は経過を知らせず、中止もできない（learn() と同じ）。
+     * </pre>
+     * 
+     * @param monitor   経過の知らせ先
+     */
+    default void learn(TrainingMonitor monitor) {
+        this.learn();
+    }
+    
     /** 判定 */
     int predict(double[] data);
     
-    /** 描画 */
-    void draw(GraphicsContext gc);
+    /**
+     * まとめて判定
+     * 
+     * @param rowsFlat  データ（行優先で詰めたもの。行数は out.length）
+     * @param dim       データの次元
+     * @param out       判定結果
+     */
+    default void predictBatch(double[] rowsFlat, int dim, int[] out) {
+        double[] row = new double[dim];
+        for (int r = 0; r < out.length; r++) {
+            System.arraycopy(rowsFlat, r * dim, row, 0, dim);
+            out[r] = this.predict(row);
+        }
+    }
+    
+    /**
+     * まとめて決定関数の値を計算
+     * 
+     * <pre>
+     * 1行あたり decisionSize() 個の値を行の順に並べる。
+     * 決定関数を持たない学習機は判定結果をそのまま返す。
+     * </pre>
+     * 
+     * @param rowsFlat  データ（行優先で詰めたもの。行数は out.length / decisionSize()）
+     * @param dim       データの次元
+     * @param out       決定関数の値
+     */
+    default void decisionBatch(double[] rowsFlat, int dim, double[] out) {
+        int[] ans = new int[out.length];
+        this.predictBatch(rowsFlat, dim, ans);
+        for (int r = 0; r < out.length; r++) {
+            out[r] = ans[r];
+        }
+    }
+    
+    /** 1行あたりの決定関数の値の数 */
+    default int decisionSize() {
+        return 1;
+    }
+    
+    /**
+     * モデルを書き出す
+     * 
+     * <pre>
+     * ModelFile.save から呼ばれる。判定に必要なものだけ書けばよい。
+     * 読み込みは各クラスの static readModel(ModelFile.Reader) で、ModelFileに登録する。
+     * </pre>
+     */
+    void writeModel(ModelFile.Writer out);
+    
+    /** 教師データ */
+    Dataset getDataset();
     
     /** リセット */
     void reset();
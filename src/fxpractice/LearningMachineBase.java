@@ -2,15 +2,46 @@ package fxpractice;
 
 public abstract class LearningMachineBase implements LearningMachine {
     
+    /** 教師データ */
+    protected final Dataset dataset;
+    
+    /**
+     * コンストラクタ
+     * 
+     * <pre>
+     * 次元は最初に追加したデータで決める。
+     * </pre>
+     */
+    protected LearningMachineBase() {
+        this.dataset = new Dataset();
+    }
+    
+    /**
+     * コンストラクタ
+     * 
+     * @param dimension 特徴量の次元
+     */
+    protected LearningMachineBase(int dimension) {
+        this.dataset = new Dataset(dimension);
+    }
+    
+    /**
+     * 教師データを追加
+     */
+    @Override
+    public void add(int lavel, double[] feature) {
+        this.dataset.add(lavel, feature);
+    }
+    
     /**
-     * 特徴量にバイアスを追加します
+     * 教師データ
      * 
-     * @param feature   特徴量
+     * <pre>
+     * コピーしないので書き換えないこと。
+     * </pre>
      */
-    protected double[] addBias(double[] feature) {
-        double[] d = new double[feature.length + 1];
-        System.arraycopy(feature, 0, d, 0, feature.length);
-        d[d.length - 1] = 1;
-        return d;
+    @Override
+    public Dataset getDataset() {
+        return this.dataset;
     }
 }
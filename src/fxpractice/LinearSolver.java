@@ -0,0 +1,235 @@
+package fxpractice;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 線形SVMの双対座標降下法
+ * 
+ * <pre>
+ * LIBLINEARと同じ方法（Hsieh et al. 2008）。
+ * 未定乗数を1つずつ、他を固定したときの最適値に動かす。
+ * 重みベクトル w = ∑(λ・t・x) を持ち回るので、1つ動かすのはO(次元)、1周はO(データ数×次元)で済む。
+ * カーネル行列は作らないので、データが何百万件あってもメモリは重みベクトル分しか増えない。
+ * 
+ * バイアスは値が1の特徴量を1つ足したものとして重みベクトルと一緒に求める。
+ * そのため sum(λ*label)=0 の条件はなくなり、0 <= λ <= C だけ守ればよい。
+ * （バイアスにも正則化がかかるので、厳密には元の問題と少しだけ違う）
+ * </pre>
+ */
+final class LinearSolver {
+
+    /** 止める閾値（射影した勾配の最大と最小の差） */
+    private static final double EPS = 0.01;
+    
+    /** スケーリングした特徴量（行優先） */
+    private final double[] x;
+    
+    /** ラベル（-1/1） */
+    private final int[] lavels;
+    
+    /** データ数 */
+    private final int size;
+    
+    /** 次元 */
+    private final int dimension;
+    
+    /** マージンの大きさとペナルティのトレードオフ（C>0） */
+    private double c = Double.POSITIVE_INFINITY;
+    
+    /** 最大周回数 */
+    private int maxEpoch = 1000;
+    
+    /** 重みベクトル */
+    private double[] weight;
+    
+    /** バイアス */
+    private double bias;
+    
+    /** 前回の周回数 */
+    private int epochs = 0;
+    
+    /** 経過の知らせ先 */
+    private TrainingMonitor monitor = TrainingMonitor.NONE;
+    
+    /**
+     * コンストラクタ
+     * 
+     * @param x         スケーリングした特徴量（行優先）
+     * @param lavels    ラベル（-1/1）
+     * @param size      データ数
+     * @param dimension 次元
+     */
+    LinearSolver(double[] x, int[] lavels, int size, int dimension) {
+        this.x = x;
+        this.lavels = lavels;
+        this.size = size;
+        this.dimension = dimension;
+        this.weight = new double[dimension];
+    }
+    
+    /**
+     * Cを設定（無限大ならハードマージン）
+     */
+    LinearSolver setC(double c) {
+        this.c = c;
+        return this;
+    }
+    
+    /**
+     * 最大周回数を設定
+     */
+    LinearSolver setMaxEpoch(int maxEpoch) {
+        this.maxEpoch = maxEpoch;
+        return this;
+    }
+    
+    /**
+     * 経過の知らせ先を設定
+     * 
+     * <pre>
+     * 1周ごとに目的関数の値と、射影した勾配の絶対値がEPSを超えるデータの数を知らせる。
+     * 中止されたらその周で止める。
+     * </pre>
+     */
+    LinearSolver setMonitor(TrainingMonitor monitor) {
+        this.monitor = monitor;
+        return this;
+    }
+    
+    /**
+     * 未定乗数を求める
+     * 
+     * @param lambda    未定乗数（初期値として使い、結果で上書きする）
+     */
+    void solve(double[] lambda) {
+    
+        // 初期値から重みベクトルとバイアスを作る
+        this.weight = new double[this.dimension];
+        this.bias = 0;
+        double[] q = new double[this.size];
+        for (int n = 0; n < this.size; n++) {
+            lambda[n] = Math.max(0, Math.min(lambda[n], this.c));
+            int offset = n * this.dimension;
+            double norm = 1;
+            for (int i = 0; i < this.dimension; i++) {
+                norm += this.x[offset + i] * this.x[offset + i];
+            }
+            q[n] = norm;
+            if (lambda[n] != 0) {
+                this.add(n, lambda[n] * this.lavels[n]);
+            }
+        }
+        
+        // 毎周順番を混ぜる
+        int[] order = new int[this.size];
+        for (int n = 0; n < this.size; n++) {
+            order[n] = n;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        
+        this.epochs = 0;
+        while (this.epochs < this.maxEpoch) {
+        
+            this.epochs++;
+            for (int n = this.size - 1; n > 0; n--) {
+                int r = random.nextInt(n + 1);
+                int tmp = order[n];
+                order[n] = order[r];
+                order[r] = tmp;
+            }
+            
+            double maxGradient = Double.NEGATIVE_INFINITY;
+            double minGradient = Double.POSITIVE_INFINITY;
+            int violators = 0;
+            for (int n : order) {
+            
+                // ∂D/∂λ_n = t_n・(w・x_n + b) - 1
+                int lavel = this.lavels[n];
+                double g = lavel * (this.dot(n) + this.bias) - 1;
+                
+                // 範囲の端では外に出る向きの勾配は無視する
+                double pg = g;
+                if (lambda[n] == 0) {
+                    pg = Math.min(g, 0);
+                } else if (lambda[n] == this.c) {
+                    pg = Math.max(g, 0);
+                }
+                maxGradient = Math.max(maxGradient, pg);
+                minGradient = Math.min(minGradient, pg);
+                if (Math.abs(pg) > EPS) {
+                    violators++;
+                }
+                
+                if (pg != 0) {
+                    double old = lambda[n];
+                    lambda[n] = Math.max(0, Math.min(old - g / q[n], this.c));
+                    this.add(n, (lambda[n] - old) * lavel);
+                }
+            }
+            
+            this.monitor.report(this.epochs, this.maxEpoch, this.objective(lambda), violators);
+            if (maxGradient - minGradient < EPS || this.monitor.isCancelled()) {
+                break;
+            }
+        }
+    }
+    
+    /**
+     * 双対問題の目的関数（最小化の形） 1/2・|w|^2 + 1/2・b^2 - ∑λ
+     */
+    private double objective(double[] lambda) {
+        double sum = 0;
+        for (int n = 0; n < this.size; n++) {
+            sum += lambda[n];
+        }
+        double norm = this.bias * this.bias;
+        for (int i = 0; i < this.dimension; i++) {
+            norm += this.weight[i] * this.weight[i];
+        }
+        return norm / 2 - sum;
+    }
+    
+    /**
+     * w・x_n
+     */
+    private double dot(int n) {
+        int offset = n * this.dimension;
+        double res = 0;
+        for (int i = 0; i < this.dimension; i++) {
+            res += this.weight[i] * this.x[offset + i];
+        }
+        return res;
+    }
+    
+    /**
+     * w += d・x_n、b += d
+     */
+    private void add(int n, double d) {
+        int offset = n * this.dimension;
+        for (int i = 0; i < this.dimension; i++) {
+            this.weight[i] += d * this.x[offset + i];
+        }
+        this.bias += d;
+    }
+    
+    /**
+     * 重みベクトル
+     */
+    double[] getWeight() {
+        return this.weight;
+    }
+    
+    /**
+     * バイアス
+     */
+    double getBias() {
+        return this.bias;
+    }
+    
+    /**
+     * 前回の周回数
+     */
+    int getEpochs() {
+        return this.epochs;
+    }
+}
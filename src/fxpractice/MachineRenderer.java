@@ -0,0 +1,89 @@
+package fxpractice;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import javafx.scene.canvas.GraphicsContext;
+
+/**
+ * 学習機を描画する
+ * 
+ * <pre>
+ * JavaFXに依存するのは描画だけなので、学習機からは切り離してここに置く。
+ * 学習機ごとの描き方はクラスごとに登録しておく。
+ * 登録がなければ判定結果の正負で画面を塗るだけ。
+ * </pre>
+ */
+final class MachineRenderer {
+    
+    /** 学習機のクラスごとの描き方 */
+    private static final Map<Class<?>, BiConsumer<LearningMachine, GraphicsContext>> RENDERERS = new HashMap<>();
+    
+    static {
+        
+        // 判定が変わりうるところだけ描き直す
+        RENDERERS.put(NearestNeighbor.class, (lm, gc) -> NeighborSurface.draw((NearestNeighbor) lm, gc, MachineRenderer::neighborColor));
+        
+        // サポートベクターを丸で囲う
+        RENDERERS.put(SVM2.class, MachineRenderer::drawSupportVectors);
+        RENDERERS.put(SVM_SMO.class, MachineRenderer::drawSupportVectors);
+        
+        // 全部消して描き直してから、サポートベクターを丸で囲う
+        RENDERERS.put(SupportVectorMachine.class, (lm, gc) -> {
+            SurfaceRenderer.redraw(gc, lm.getDataset());
+            drawSupportVectors(lm, gc);
+        });
+    }
+    
+    private MachineRenderer() {
+    }
+    
+    /**
+     * 描画する
+     * 
+     * @param lm    学習機
+     * @param gc    描画先
+     */
+    static void draw(LearningMachine lm, GraphicsContext gc) {
+        RENDERERS.getOrDefault(lm.getClass(), MachineRenderer::drawSurface).accept(lm, gc);
+    }
+    
+    /**
+     * 教師データを追加した直後に、追加した分だけ描き直す
+     * 
+     * <pre>
+     * 学習しなくても判定が変わる学習機（k-近傍法）で、前に描いたものが使えるときだけ描く。
+     * それ以外は何もしない（学習ボタンで描く）。
+     * </pre>
+     * 
+     * @param lm    学習機
+     * @param gc    描画先
+     */
+    static void drawAdded(LearningMachine lm, GraphicsContext gc) {
+        if (lm instanceof NearestNeighbor) {
+            NeighborSurface.drawAdded((NearestNeighbor) lm, gc, MachineRenderer::neighborColor);
+        }
+    }
+    
+    /**
+     * k-近傍法の色（0は判定できなかったので塗らない）
+     */
+    private static int neighborColor(int ans) {
+        return ans == 0 ? SurfaceRenderer.NONE : SurfaceRenderer.sign(ans);
+    }
+    
+    /**
+     * 判定結果の正負で画面を塗る
+     */
+    private static void drawSurface(LearningMachine lm, GraphicsContext gc) {
+        SurfaceRenderer.draw(gc, lm::predict, SurfaceRenderer::sign);
+    }
+    
+    /**
+     * サポートベクターを丸で囲ってから画面を塗る
+     */
+    private static void drawSupportVectors(LearningMachine lm, GraphicsContext gc) {
+        SurfaceRenderer.circle(gc, lm.getDataset(), ((KernelMachine) lm).getSupportVectors());
+        drawSurface(lm, gc);
+    }
+}
@@ -0,0 +1,80 @@
+package fxpractice;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 学習機を名前で作る
+ * 
+ * <pre>
+ * 画面以外（ベンチマークやコマンドライン）から学習機を選ぶためのもの。
+ * 学習機ごとにラベルの決まりが違うので、クラス番号(0,1,...)からの変換も持つ。
+ *   NearestNeighbor, MultiLayerPerceotron, Multiclass  クラス番号のまま
+ *   それ以外                                            -1/1（2クラスのみ）
+ * Multiclass はSVM_SMOを1対1で組み合わせたもの。
+ * </pre>
+ */
+final class Machines {
+
+    /** 作れる学習機の名前 */
+    static final List<String> NAMES = Arrays.asList(
+            "NearestNeighbor", "SinglePerceptron", "MultiLayerPerceotron", "SupportVectorMachine", "SVM2", "SVM_SMO", "Multiclass");
+            
+    private Machines() {
+    }
+    
+    /**
+     * 学習機を作る
+     * 
+     * @param name      クラス名（NAMESのどれか）
+     * @param dimension 特徴量の次元
+     * @param classes   クラスの数（-1/1の学習機は2クラスのみ）
+     * @return 学習機
+     */
+    static LearningMachine create(String name, int dimension, int classes) {
+    
+        if (classes > 2 && !isMulticlass(name)) {
+            throw new IllegalArgumentException(name + " supports only 2 classes but got " + classes);
+        }
+        
+        switch (name) {
+            case "NearestNeighbor":
+                return new NearestNeighbor(3);
+            case "SinglePerceptron":
+                return new SinglePerceptron(dimension);
+            case "MultiLayerPerceotron":
+                return new MultiLayerPerceotron(dimension, 4, Math.max(2, classes));
+            case "SupportVectorMachine":
+                return new SupportVectorMachine(dimension);
+            case "SVM2":
+                return new SVM2(dimension);
+            case "SVM_SMO":
+                return new SVM_SMO(dimension);
+            case "Multiclass":
+                return new Multiclass(dimension, Multiclass.Strategy.ONE_VS_ONE, () -> new SVM_SMO(dimension));
+            default:
+                throw new IllegalArgumentException("unknown machine: " + name + " " + NAMES);
+        }
+    }
+    
+    /**
+     * クラス番号を学習機のラベルにする
+     * 
+     * @param name  クラス名
+     * @param cls   クラス番号
+     * @return ラベル
+     */
+    static int lavel(String name, int cls) {
+        if (isMulticlass(name)) {
+            return cls;
+        }
+        return cls == 0 ? -1 : 1;
+    }
+    
+    /**
+     * 3クラス以上を扱えるか（ラベルがクラス番号そのままか）
+     */
+    static boolean isMulticlass(String name) {
+        return name.equals("NearestNeighbor") || name.equals("MultiLayerPerceotron") || name.equals("Multiclass");
+    }
+}
@@ -0,0 +1,387 @@
+package fxpractice;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 学習済みモデルの保存と読み込み
+ * 
+ * <pre>
+ * リトルエンディアンのバイナリで
+ *   int マジックナンバー(0x4C4D5846 "FXML")
+ *   int 形式のバージョン
+ *   int[] ラベル（クラス番号の順、わからなければ長さ0。バージョン4から）
+ *   文字列 学習機のクラス名（int 長さ + UTF-8）
+ *   以下、学習機ごとの中身（writeModel / readModel）
+ * double[]とint[]のブロックは長さ(int)のあとに8バイト境界に揃えて置く。
+ * 古いバージョンのファイルも読める（学習機がReader.version()を見て読み分ける）。
+ * 学習機の中に学習機を持つもの（Multiclass）は、中の学習機もクラス名と中身の順に書く（writeMachine / readMachine）。
+ * 
+ * 読み込みはFileChannel.mapでファイルをそのままメモリに載せて、
+ * 配列のブロックはバッファから一括で取り出す（1件ずつ解析しない）。
+ * 学習機の計算は全部double[]の上でやっているので、ヒープへのコピーは1回だけする。
+ * </pre>
+ */
+public final class ModelFile {
+
+    /** マジックナンバー */
+    private static final int MAGIC = 0x4C4D5846;
+    
+    /** 形式のバージョン（2でSVMのカーネル、3で特徴量のスケーリング、4でラベルを書くようにした） */
+    static final int VERSION = 4;
+    
+    /** 学習機を読み込む処理 */
+    @FunctionalInterface
+    interface Loader {
+        LearningMachine read(Reader in) throws IOException;
+    }
+    
+    /** 学習機のクラス名ごとの読み込み処理 */
+    private static final Map<String, Loader> LOADERS = new HashMap<>();
+    
+    static {
+        LOADERS.put(NearestNeighbor.class.getSimpleName(), NearestNeighbor::readModel);
+        LOADERS.put(SinglePerceptron.class.getSimpleName(), SinglePerceptron::readModel);
+        LOADERS.put(MultiLayerPerceotron.class.getSimpleName(), MultiLayerPerceotron::readModel);
+        LOADERS.put(SupportVectorMachine.class.getSimpleName(), SupportVectorMachine::readModel);
+        LOADERS.put(SVM2.class.getSimpleName(), SVM2::readModel);
+        LOADERS.put(SVM_SMO.class.getSimpleName(), SVM_SMO::readModel);
+        LOADERS.put(Multiclass.class.getSimpleName(), Multiclass::readModel);
+    }
+    
+    private ModelFile() {
+    }
+    
+    /**
+     * 保存する（ラベルは書かない）
+     * 
+     * @param lm    学習機
+     * @param path  ファイル
+     * @throws IOException 書けなかったとき
+     */
+    public static void save(LearningMachine lm, Path path) throws IOException {
+        save(lm, new int[0], path);
+    }
+    
+    /**
+     * ラベルと一緒に保存する
+     * 
+     * <pre>
+     * 学習機はクラス番号しか知らないので、元のラベルに戻すための表を書いておく。
+     * </pre>
+     * 
+     * @param lm        学習機
+     * @param lavels    ラベル（クラス番号の順）
+     * @param path      ファイル
+     * @throws IOException 書けなかったとき
+     */
+    public static void save(LearningMachine lm, int[] lavels, Path path) throws IOException {
+    
+        Writer out = new Writer();
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInts(lavels, 0, lavels.length);
+        out.writeMachine(lm);
+        
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = out.buffer();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+    
+    /**
+     * 読み込む
+     * 
+     * @param path  ファイル
+     * @return 学習機（学習済み）
+     * @throws IOException 読めなかったとき、形式が違うとき
+     */
+    public static LearningMachine load(Path path) throws IOException {
+    
+        Reader in = open(path);
+        try {
+            String name = in.readString();
+            Loader loader = LOADERS.get(name);
+            if (loader == null) {
+                throw new IOException(path + ": unknown machine " + name);
+            }
+            return loader.read(in);
+        } catch (RuntimeException e) {
+            // 途中で切れている、長さがおかしいなど
+            throw new IOException(path + ": broken model file", e);
+        }
+    }
+    
+    /**
+     * 一緒に保存したラベルを読み込む
+     * 
+     * @param path  ファイル
+     * @return ラベル（クラス番号の順、書いていなければ長さ0）
+     * @throws IOException 読めなかったとき、形式が違うとき
+     */
+    public static int[] lavels(Path path) throws IOException {
+        return open(path).lavels;
+    }
+    
+    /**
+     * ファイルを開いて、学習機のクラス名の手前まで読む
+     */
+    private static Reader open(Path path) throws IOException {
+    
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        
+        Reader in = new Reader(buffer);
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(path + ": not a model file");
+            }
+            int version = in.readInt();
+            if (version < 1 || VERSION < version) {
+                throw new IOException(path + ": unsupported version " + version);
+            }
+            in.version = version;
+            in.lavels = version >= 4 ? in.readInts() : new int[0];
+            return in;
+        } catch (RuntimeException e) {
+            throw new IOException(path + ": broken model file", e);
+        }
+    }
+    
+    /**
+     * 書き出し
+     * 
+     * <pre>
+     * メモリ上のバッファに書いて、最後にまとめてファイルに書く。
+     * </pre>
+     */
+    public static final class Writer {
+    
+        private ByteBuffer buffer = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+        
+        private Writer() {
+        }
+        
+        public void writeInt(int v) {
+            this.ensure(4).putInt(v);
+        }
+        
+        public void writeDouble(double v) {
+            this.ensure(8).putDouble(v);
+        }
+        
+        public void writeString(String v) {
+            byte[] bytes = v.getBytes(StandardCharsets.UTF_8);
+            this.writeInt(bytes.length);
+            this.ensure(bytes.length).put(bytes);
+        }
+        
+        /**
+         * int[]のブロック
+         */
+        public void writeInts(int[] v, int offset, int length) {
+            this.writeInt(length);
+            this.align();
+            this.ensure(length * 4).asIntBuffer().put(v, offset, length);
+            this.buffer.position(this.buffer.position() + length * 4);
+        }
+        
+        /**
+         * double[]のブロック
+         */
+        public void writeDoubles(double[] v, int offset, int length) {
+            this.writeInt(length);
+            this.align();
+            this.ensure(length * 8).asDoubleBuffer().put(v, offset, length);
+            this.buffer.position(this.buffer.position() + length * 8);
+        }
+        
+        /**
+         * 教師データの一部（indexesの行）
+         */
+        public void writeDataset(Dataset dataset, int[] indexes) {
+        
+            int dimension = dataset.dimension();
+            int[] lavels = new int[indexes.length];
+            double[] features = new double[indexes.length * dimension];
+            for (int n = 0; n < indexes.length; n++) {
+                lavels[n] = dataset.lavel(indexes[n]);
+                System.arraycopy(dataset.features(), indexes[n] * dimension, features, n * dimension, dimension);
+            }
+            
+            this.writeInt(dimension);
+            this.writeInts(lavels, 0, lavels.length);
+            this.writeDoubles(features, 0, features.length);
+        }
+        
+        /**
+         * 教師データ全部
+         */
+        public void writeDataset(Dataset dataset) {
+            this.writeInt(dataset.dimension());
+            this.writeInts(dataset.lavels(), 0, dataset.size());
+            this.writeDoubles(dataset.features(), 0, dataset.size() * dataset.dimension());
+        }
+        
+        /**
+         * 学習機（クラス名と中身）
+         */
+        public void writeMachine(LearningMachine lm) {
+            this.writeString(lm.getClass().getSimpleName());
+            lm.writeModel(this);
+        }
+        
+        /**
+         * 8バイト境界に揃える
+         */
+        private void align() {
+            while (this.buffer.position() % 8 != 0) {
+                this.ensure(1).put((byte) 0);
+            }
+        }
+        
+        /**
+         * 足りなければ2倍に広げる
+         */
+        private ByteBuffer ensure(int bytes) {
+            if (this.buffer.remaining() < bytes) {
+                int capacity = Math.max(this.buffer.capacity() * 2, this.buffer.position() + bytes);
+                ByteBuffer grown = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+                this.buffer.flip();
+                grown.put(this.buffer);
+                this.buffer = grown;
+            }
+            return this.buffer;
+        }
+        
+        private ByteBuffer buffer() {
+            this.buffer.flip();
+            return this.buffer;
+        }
+    }
+    
+    /**
+     * 読み込み
+     */
+    public static final class Reader {
+    
+        private final ByteBuffer buffer;
+        
+        /** ファイルの形式のバージョン */
+        private int version = VERSION;
+        
+        /** 一緒に保存したラベル */
+        private int[] lavels = new int[0];
+        
+        private Reader(ByteBuffer buffer) {
+            this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        
+        /**
+         * ファイルの形式のバージョン（古い形式を読み分けるのに使う）
+         */
+        public int version() {
+            return this.version;
+        }
+        
+        public int readInt() {
+            return this.buffer.getInt();
+        }
+        
+        public double readDouble() {
+            return this.buffer.getDouble();
+        }
+        
+        public String readString() {
+            byte[] bytes = new byte[this.readInt()];
+            this.buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        
+        /**
+         * int[]のブロック
+         */
+        public int[] readInts() {
+            int[] v = new int[this.readInt()];
+            this.align();
+            this.buffer.asIntBuffer().get(v);
+            this.buffer.position(this.buffer.position() + v.length * 4);
+            return v;
+        }
+        
+        /**
+         * double[]のブロック
+         */
+        public double[] readDoubles() {
+            double[] v = new double[this.readInt()];
+            this.get(v);
+            return v;
+        }
+        
+        /**
+         * double[]のブロックを既存の配列に読む
+         * 
+         * @param v 読み込み先（長さがブロックと違えばエラー）
+         */
+        public void readDoubles(double[] v) {
+            int length = this.readInt();
+            if (length != v.length) {
+                throw new IllegalStateException("length " + length + " != " + v.length);
+            }
+            this.get(v);
+        }
+        
+        /**
+         * 8バイト境界から一括で取り出す
+         */
+        private void get(double[] v) {
+            this.align();
+            this.buffer.asDoubleBuffer().get(v);
+            this.buffer.position(this.buffer.position() + v.length * 8);
+        }
+        
+        /**
+         * 教師データを読んで追加する
+         * 
+         * @param dataset   追加先
+         */
+        public void readDataset(Dataset dataset) {
+            int dimension = this.readInt();
+            int[] lavels = this.readInts();
+            double[] features = this.readDoubles();
+            dataset.addAll(lavels, features, dimension);
+        }
+        
+        /**
+         * 学習機を読む（writeMachineで書いたもの）
+         * 
+         * @return 学習機（学習済み）
+         * @throws IOException 知らない学習機のとき
+         */
+        public LearningMachine readMachine() throws IOException {
+            String name = this.readString();
+            Loader loader = LOADERS.get(name);
+            if (loader == null) {
+                throw new IOException("unknown machine " + name);
+            }
+            return loader.read(this);
+        }
+        
+        private void align() {
+            while (this.buffer.position() % 8 != 0) {
+                this.buffer.get();
+            }
+        }
+    }
+}
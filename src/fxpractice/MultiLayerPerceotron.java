@@ -3,12 +3,17 @@ package fxpractice;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.DoubleSupplier;
 import java.util.stream.Collectors;
 import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
-import javafx.scene.canvas.GraphicsContext;
-import javafx.scene.paint.Color;
-import javafx.util.Pair;
 
 /**
  * 多層パーセプトロン
@@ -16,14 +21,59 @@ import javafx.util.Pair;
  * 入力層 - 隠れ層 - 出力層の3層構造（むしろこれって2層なんじゃ？）
  * 誤差関数Eは二乗誤差とする。(E=1/2sum((y(k) - t(k))^2) 0<=k<ユニット数)
  */
-public class MultiLayerPerceotron implements LearningMachine {
-    
-    /** 認識したパターン */
-    private final List<Pair<int[], double[]>> learning = new ArrayList<>();
-    
+public class MultiLayerPerceotron extends LearningMachineBase implements OnlineLearner {
+
     /** 学習係数 */
     private final double learningRate = 0.2;
     
+    /** まとめて判定するときに、同じ重みベクトルを続けて掛ける行数 */
+    private static final int BLOCK_ROWS = 64;
+    
+    /** 最大エポック数 */
+    private int maxEpoch = 5000;
+    
+    /** 誤差の許容値（1件あたりの誤差Eがこれ以下になったら止める） */
+    private double tolerance = 0.;
+    
+    /** 誤差が改善しなくても待つエポック数（0ならば待ち続ける） */
+    private int patience = 0;
+    
+    /** 改善したとみなす誤差の減り幅 */
+    private double minDelta = 0.;
+    
+    /** 制限時間（ミリ秒、0ならば無制限） */
+    private long timeLimit = 0;
+    
+    /** 前回の学習の結果 */
+    private TrainingResult result = null;
+    
+    /** ミニバッチのサイズ（1ならば1件ずつ更新する） */
+    private int batchSize = 1;
+    
+    /** 学習に使うスレッド数 */
+    private int threads = Runtime.getRuntime().availableProcessors();
+    
+    /** Hogwild（ロックなしの非同期更新）で学習するか */
+    private boolean hogwild = false;
+    
+    /** 逐次学習の作業領域（最初の1件で作る） */
+    private Workspace online = null;
+    
+    /** リプレイバッファの特徴量（行優先） */
+    private double[] replayFeatures = new double[0];
+    
+    /** リプレイバッファのラベル */
+    private int[] replayLavels = new int[0];
+    
+    /** リプレイバッファに入っている件数 */
+    private int replayCount = 0;
+    
+    /** リプレイバッファで次に書く位置 */
+    private int replayNext = 0;
+    
+    /** 1件学習するたびに学習し直す過去のデータの数 */
+    private int replays = 0;
+    
     /** 入力層の次元 */
     private final int inputDemension;
     
@@ -39,6 +89,15 @@ public class MultiLayerPerceotron implements LearningMachine {
     /** 出力層 */
     private Layer outputRayer;
     
+    /** 特徴量のスケーリングの決め方（学習するたびに教師データから決める） */
+    private FeatureScaler.Method scaling = FeatureScaler.Method.MIN_MAX;
+    
+    /** 特徴量のスケーリング（学習するまでは画面の座標用、逐次学習ではそのまま使う） */
+    private FeatureScaler scaler;
+    
+    /** 判定の作業領域（描画では複数のスレッドから呼ばれるので、スレッドごとに使い回す） */
+    private final ThreadLocal<Workspace> predicting = ThreadLocal.withInitial(() -> new Workspace());
+    
     /**
      * コンストラクタ
      * 
@@ -47,101 +106,492 @@ public class MultiLayerPerceotron implements LearningMachine {
      * @param lavelKind         分類ラベル
      */
     public MultiLayerPerceotron(int inputDemension, int hiddenCnt, int lavelKind) {
+        super(inputDemension);
         this.inputDemension = inputDemension;
         this.hiddenCnt = hiddenCnt;
         this.lavelKind = lavelKind;
         this.reset();
     }
     
+    /**
+     * 最大エポック数を設定
+     */
+    public MultiLayerPerceotron setMaxEpoch(int maxEpoch) {
+        this.maxEpoch = maxEpoch;
+        return this;
+    }
+    
+    /**
+     * 特徴量のスケーリングの決め方を設定
+     */
+    public MultiLayerPerceotron setScaling(FeatureScaler.Method scaling) {
+        this.scaling = scaling;
+        return this;
+    }
+    
+    /**
+     * 誤差の許容値を設定
+     * 
+     * <pre>
+     * エポックごとの1件あたりの誤差E（二乗誤差の平均）がこれ以下になったら止める。
+     * </pre>
+     */
+    public MultiLayerPerceotron setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+        return this;
+    }
+    
+    /**
+     * 誤差が改善しないときに待つエポック数を設定
+     * 
+     * <pre>
+     * 今までの最小の誤差からminDeltaより大きく減らないエポックが
+     * patience回続いたら止める。
+     * </pre>
+     */
+    public MultiLayerPerceotron setPatience(int patience, double minDelta) {
+        this.patience = patience;
+        this.minDelta = minDelta;
+        return this;
+    }
+    
+    /**
+     * 制限時間を設定
+     * 
+     * @param timeLimit 制限時間（ミリ秒、0ならば無制限）
+     */
+    public MultiLayerPerceotron setTimeLimit(long timeLimit) {
+        this.timeLimit = timeLimit;
+        return this;
+    }
+    
+    /**
+     * 前回の学習の結果
+     * 
+     * @return 学習していなければnull
+     */
+    public TrainingResult getResult() {
+        return this.result;
+    }
+    
+    /**
+     * ミニバッチのサイズを設定
+     * 
+     * <pre>
+     * バッチ内の勾配をスレッドごとに計算して合計し、平均で1回だけ重みを更新する。
+     * 1ならば今まで通り1件ずつ更新する。
+     * </pre>
+     */
+    public MultiLayerPerceotron setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+        return this;
+    }
+    
+    /**
+     * 学習に使うスレッド数を設定
+     */
+    public MultiLayerPerceotron setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+        return this;
+    }
+    
+    /**
+     * Hogwildで学習するかを設定
+     * 
+     * <pre>
+     * 教師データをスレッド数で分けて、各スレッドが1件ずつ共有の重みをロックなしで更新する。
+     * 更新がたまに上書きされて消えるが、学習がうまくいく程度には収束する（らしい）。
+     * ミニバッチのサイズは無視する。
+     * </pre>
+     */
+    public MultiLayerPerceotron setHogwild(boolean hogwild) {
+        this.hogwild = hogwild;
+        return this;
+    }
+    
+    /**
+     * リプレイバッファを設定
+     * 
+     * <pre>
+     * 逐次学習（partialFit）で、直近のcapacity件を覚えておいて
+     * 1件学習するたびにその中からランダムにreplays件を学習し直す。
+     * 新しいデータだけに引っ張られて前に覚えたことを忘れるのを防ぐ。
+     * メモリはcapacity件分で一定。capacityが0ならば使わない。
+     * </pre>
+     * 
+     * @param capacity  覚えておく件数
+     * @param replays   1件ごとに学習し直す件数
+     */
+    public MultiLayerPerceotron setReplayBuffer(int capacity, int replays) {
+        this.replayFeatures = new double[Math.max(0, capacity) * this.inputDemension];
+        this.replayLavels = new int[Math.max(0, capacity)];
+        this.replayCount = 0;
+        this.replayNext = 0;
+        this.replays = capacity > 0 ? Math.max(0, replays) : 0;
+        return this;
+    }
+    
     /**
      * リセット
      */
     @Override
     public final void reset() {
-        this.learning.clear();
+        this.dataset.clear();
         this.hiddenRayer = new Layer(this.hiddenCnt, this.inputDemension, false);
         this.outputRayer = new Layer(this.lavelKind, this.hiddenCnt, true);
+        this.online = null;
+        this.replayCount = 0;
+        this.replayNext = 0;
+        this.scaler = FeatureScaler.canvas(this.inputDemension);
     }
     
     /**
-     * 教師データを追加
+     * 逐次学習
      * 
      * <pre>
-     * 正解ラベルは
+     * 1件だけ重みを更新する。教師データには追加しない。
+     * リプレイバッファがあれば、過去のデータも何件か学習し直してからバッファに入れる
+     * （いっぱいならば一番古いものを上書きする）。
      * </pre>
-     * 
-     * @param cls   ラベル
-     * @param data  入力値
      */
     @Override
-    public void add(int cls, double[] data) {
-        int[] label = new int[lavelKind];
-        Arrays.fill(label, 0);
-        label[cls] = 1; // 正解ラベルのみが発火するのを教師データとする
-        this.learning.add(new Pair(label, data));
+    public void partialFit(int lavel, double[] feature) {
+    
+        if (feature.length != this.inputDemension) {
+            throw new IllegalArgumentException("次元が違います: " + feature.length + " != " + this.inputDemension);
+        }
+        
+        if (this.online == null) {
+            this.online = new Workspace();
+        }
+        
+        this.train(this.online, feature, 0, lavel);
+        
+        if (this.replayLavels.length == 0) {
+            return;
+        }
+        
+        // 過去のデータを学習し直す
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int r = 0; r < this.replays && this.replayCount > 0; r++) {
+            int i = random.nextInt(this.replayCount);
+            this.train(this.online, this.replayFeatures, i * this.inputDemension, this.replayLavels[i]);
+        }
+        
+        // バッファに入れる
+        System.arraycopy(feature, 0, this.replayFeatures, this.replayNext * this.inputDemension, this.inputDemension);
+        this.replayLavels[this.replayNext] = lavel;
+        this.replayNext = (this.replayNext + 1) % this.replayLavels.length;
+        this.replayCount = Math.min(this.replayCount + 1, this.replayLavels.length);
     }
     
     @Override
     public void learn() {
-        
+        this.learn(TrainingMonitor.NONE);
+    }
+    
+    /**
+     * 学習（エポックごとに経過を知らせ、中止されたらそのエポックで止める）
+     */
+    @Override
+    public void learn(TrainingMonitor monitor) {
+    
         System.out.println("学習中");
         
-        for (int i = 0; i < 5000; i ++) {
+        // スケーリングの係数は教師データから決める（逐次学習や読み込んだモデルで教師データがなければ今のまま）
+        if (this.dataset.size() > 0) {
+            this.scaler = FeatureScaler.fit(this.scaling, this.dataset);
+        }
+        
+        if (this.hogwild) {
+            this.result = this.learnHogwild(monitor);
+        } else if (this.batchSize > 1) {
+            this.result = this.learnMiniBatch(monitor);
+        } else {
+            this.result = this.learnOnline(monitor);
+        }
+        
+        System.out.println("完了 " + this.result);
+    }
+    
+    /**
+     * エポックを回す
+     * 
+     * <pre>
+     * 1エポックごとに1件あたりの誤差Eを見て、
+     * 許容値を下回るか、改善しなくなるか、制限時間を超えるか、中止されたら止める。
+     * </pre>
+     * 
+     * @param monitor   経過の知らせ先
+     * @param epoch     1エポック分学習して、誤差の合計を返す
+     * @return 学習の結果
+     */
+    private TrainingResult iterate(TrainingMonitor monitor, DoubleSupplier epoch) {
+    
+        long start = System.currentTimeMillis();
+        int size = Math.max(1, this.dataset.size());
+        
+        double best = Double.POSITIVE_INFINITY;
+        int stale = 0;
+        double loss = Double.NaN;
+        
+        for (int i = 0; i < this.maxEpoch; i++) {
+        
+            loss = epoch.getAsDouble() / size;
+            long elapsed = System.currentTimeMillis() - start;
+            monitor.report(i + 1, this.maxEpoch, loss, -1);
             
-            for (Pair<int[], double[]> pair : learning) {
-
-                // 入力層は入力＝出力なので、オブジェクト化しない（した方がいい？）
-                double[] inputResult = this.addBias(this.scaling(pair.getValue()));
-
-                // 隠し層の計算
-                double[] hiddenResult = hiddenRayer.forward(inputResult);
-                
-                // 出力層の計算
-                double[] outputResult = outputRayer.forward(hiddenResult);
-
-                // 出力層での誤差を取得
-                double[] outputError = this.getOutputError(pair.getKey(), outputResult);
-                
-                // 出力層の重みを更新
-                this.outputRayer.backward(hiddenResult, outputError);
-                
-                // 隠し層での誤差を取得
-                double[] hiddenError = this.getHiddenError(outputError, hiddenResult);
-                
-                // 隠し層の重みを更新
-                this.hiddenRayer.backward(inputResult, hiddenError);
+            if (monitor.isCancelled()) {
+                return new TrainingResult(i + 1, loss, elapsed, TrainingResult.Reason.CANCELLED);
             }
             
-//            for (Pair<int[], double[]> pair : learning) {
-//                this.trial(pair.getValue());
-//            }
+            if (loss <= this.tolerance) {
+                return new TrainingResult(i + 1, loss, elapsed, TrainingResult.Reason.CONVERGED);
+            }
+            
+            if (loss < best - this.minDelta) {
+                best = loss;
+                stale = 0;
+            } else if (this.patience > 0 && ++stale >= this.patience) {
+                return new TrainingResult(i + 1, loss, elapsed, TrainingResult.Reason.NO_IMPROVEMENT);
+            }
             
-//            System.out.println();
+            if (this.timeLimit > 0 && elapsed >= this.timeLimit) {
+                return new TrainingResult(i + 1, loss, elapsed, TrainingResult.Reason.TIME_LIMIT);
+            }
         }
         
-        System.out.println("完了");
+        return new TrainingResult(this.maxEpoch, loss, System.currentTimeMillis() - start, TrainingResult.Reason.MAX_EPOCH);
+    }
+    
+    /**
+     * 1件ずつ重みを更新する
+     */
+    private TrainingResult learnOnline(TrainingMonitor monitor) {
+    
+        Workspace ws = new Workspace();
+        
+        return this.iterate(monitor, () -> {
+            ws.loss = 0.;
+            for (int n = 0; n < this.dataset.size(); n++) {
+                this.train(ws, n);
+            }
+            return ws.loss;
+        });
     }
     
     /**
-     * 入力データをスケーリングする
+     * ミニバッチで重みを更新する
      * 
-     * TODO スケールの幅をどう決めるか
+     * <pre>
+     * バッチをスレッド数で分けて、スレッドごとの勾配のバッファに足しこむ。
+     * 全スレッドが終わったら勾配を合計して、バッチの平均で重みを更新する。
+     * </pre>
+     */
+    private TrainingResult learnMiniBatch(TrainingMonitor monitor) {
+    
+        int size = this.dataset.size();
+        int threads = Math.min(this.threads, this.batchSize);
+        
+        Workspace[] ws = new Workspace[threads];
+        for (int t = 0; t < threads; t++) {
+            ws[t] = new Workspace();
+        }
+        
+        // 処理中のバッチの範囲（タスクから参照する）
+        int[] batch = new int[2];
+        
+        List<Callable<Void>> tasks = new ArrayList<>(threads);
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            tasks.add(() -> {
+                int from = batch[0] + (batch[1] - batch[0]) * id / threads;
+                int to = batch[0] + (batch[1] - batch[0]) * (id + 1) / threads;
+                ws[id].clearGradient();
+                for (int n = from; n < to; n++) {
+                    this.accumulate(ws[id], n);
+                }
+                return null;
+            });
+        }
+        
+        ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        try {
+            return this.iterate(monitor, () -> {
+            
+                for (Workspace w : ws) {
+                    w.loss = 0.;
+                }
+                
+                for (batch[0] = 0; batch[0] < size; batch[0] = batch[1]) {
+                
+                    batch[1] = Math.min(size, batch[0] + this.batchSize);
+                    this.invokeAll(pool, tasks);
+                    
+                    // 勾配を合計して1回だけ更新する
+                    for (int t = 1; t < threads; t++) {
+                        ws[0].addGradient(ws[t]);
+                    }
+                    double rate = this.learningRate / (batch[1] - batch[0]);
+                    this.outputRayer.update(ws[0].outputGradient, rate);
+                    this.hiddenRayer.update(ws[0].hiddenGradient, rate);
+                }
+                
+                return Stream.of(ws).mapToDouble(w -> w.loss).sum();
+            });
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+    
+    /**
+     * Hogwildで重みを更新する
      * 
-     * @param data
-     * @return 
+     * <pre>
+     * 教師データをスレッド数で分けて、各スレッドが共有の重みをロックなしで1件ずつ更新する。
+     * エポックごとに全スレッドの終了を待つ。
+     * </pre>
      */
-    private double[] scaling(double[] data) {
-        double[] res = new double[data.length];
-        for (int i = 0; i < data.length; i++) {
-            res[i] = data[i] / 200 - 1;
+    private TrainingResult learnHogwild(TrainingMonitor monitor) {
+    
+        int size = this.dataset.size();
+        int threads = Math.max(1, Math.min(this.threads, size));
+        
+        Workspace[] ws = new Workspace[threads];
+        List<Callable<Void>> tasks = new ArrayList<>(threads);
+        for (int t = 0; t < threads; t++) {
+            final int from = size * t / threads;
+            final int to = size * (t + 1) / threads;
+            final Workspace w = ws[t] = new Workspace();
+            tasks.add(() -> {
+                w.loss = 0.;
+                for (int n = from; n < to; n++) {
+                    this.train(w, n);
+                }
+                return null;
+            });
+        }
+        
+        ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        try {
+            return this.iterate(monitor, () -> {
+                this.invokeAll(pool, tasks);
+                return Stream.of(ws).mapToDouble(w -> w.loss).sum();
+            });
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
         }
-        return res;
     }
-
+    
+    /**
+     * タスクを全部実行して終わるのを待つ
+     * 
+     * @param pool  スレッドプール（nullならば呼び出し元のスレッドで実行する）
+     * @param tasks タスク
+     */
+    private void invokeAll(ExecutorService pool, List<Callable<Void>> tasks) {
+        try {
+            if (pool == null) {
+                for (Callable<Void> task : tasks) {
+                    task.call();
+                }
+            } else {
+                for (Future<Void> future : pool.invokeAll(tasks)) {
+                    future.get();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("学習が中断されました", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * 1件分の順伝播
+     * 
+     * @param ws        作業領域（結果は各層の出力のバッファに書く）
+     * @param features  特徴量（行優先）
+     * @param offset    開始位置
+     */
+    private void forward(Workspace ws, double[] features, int offset) {
+    
+        // 入力をスケーリングする（バイアスはそのまま）
+        this.scaler.transform(features, offset, ws.input, 0, 1);
+        
+        // 隠し層の計算
+        this.hiddenRayer.forward(ws.input, 0, ws.hidden, 0);
+        
+        // 出力層の計算
+        this.outputRayer.forward(ws.hidden, 0, ws.output, 0);
+    }
+    
+    /**
+     * 1件分の誤差で重みを更新する
+     * 
+     * @param ws    作業領域
+     * @param n     教師データのインデックス
+     */
+    private void train(Workspace ws, int n) {
+        this.train(ws, this.dataset.features(), n * this.inputDemension, this.dataset.lavel(n));
+    }
+    
+    /**
+     * 1件分の誤差で重みを更新する
+     * 
+     * @param ws        作業領域
+     * @param features  特徴量（行優先）
+     * @param offset    開始位置
+     * @param lavel     教師ラベル
+     */
+    private void train(Workspace ws, double[] features, int offset, int lavel) {
+    
+        this.forward(ws, features, offset);
+        
+        // 出力層での誤差を計算
+        ws.loss += this.setOutputError(lavel, ws.output, ws.outputError);
+        
+        // 出力層の重みを更新
+        this.outputRayer.backward(ws.hidden, ws.outputError);
+        
+        // 隠し層での誤差を計算
+        this.setHiddenError(ws.outputError, ws.hidden, ws.hiddenError);
+        
+        // 隠し層の重みを更新
+        this.hiddenRayer.backward(ws.input, ws.hiddenError);
+    }
+    
+    /**
+     * 1件分の勾配を作業領域に足しこむ（重みは更新しない）
+     * 
+     * @param ws    作業領域
+     * @param n     教師データのインデックス
+     */
+    private void accumulate(Workspace ws, int n) {
+    
+        this.forward(ws, this.dataset.features(), n * this.inputDemension);
+        
+        // 誤差は更新前の重みで計算する
+        ws.loss += this.setOutputError(this.dataset.lavel(n), ws.output, ws.outputError);
+        this.setHiddenError(ws.outputError, ws.hidden, ws.hiddenError);
+        
+        this.outputRayer.accumulate(ws.hidden, ws.outputError, ws.outputGradient);
+        this.hiddenRayer.accumulate(ws.input, ws.hiddenError, ws.hiddenGradient);
+    }
+    
     @Override
     public int predict(double[] data) {
-        
-        double[] result = this.forward(data);
+    
+        Workspace ws = this.predicting.get();
+        this.forward(ws, data, 0);
+        double[] result = ws.output;
         
         double max = 0.;
         int ans = 0;
@@ -155,95 +605,150 @@ public class MultiLayerPerceotron implements LearningMachine {
         return ans;
     }
     
-    private double[] forward(double[] input) {
+    /**
+     * まとめて判定
+     */
+    @Override
+    public void predictBatch(double[] rowsFlat, int dim, int[] out) {
+    
+        double[] result = new double[out.length * this.lavelKind];
+        this.decisionBatch(rowsFlat, dim, result);
         
-        // 入力層は入力＝出力なので、オブジェクト化しない（した方がいい？）
-        double[] inputResult = this.addBias(this.scaling(input));
-
-        // 隠し層の計算
-        double[] hiddenResult = hiddenRayer.forward(inputResult);
-
-        // 出力層の計算
-        return outputRayer.forward(hiddenResult);
+        for (int r = 0; r < out.length; r++) {
+            double max = 0.;
+            int ans = 0;
+            for (int i = 0; i < lavelKind; i++) {
+                if (result[r * lavelKind + i] > max) {
+                    max = result[r * lavelKind + i];
+                    ans = i;
+                }
+            }
+            out[r] = ans;
+        }
     }
-
+    
+    /**
+     * まとめて出力層の出力を計算
+     * 
+     * <pre>
+     * 行を並べた入力行列に層ごとの重み行列を1回ずつ掛ける（Layer.forwardBatch）。
+     * 1件ずつの判定と同じ順に足すので、結果はpredictと一致する。
+     * </pre>
+     */
     @Override
-    public void draw(GraphicsContext gc) {
-        
-        int w = (int) gc.getCanvas().getWidth();
-        int h = (int) gc.getCanvas().getHeight();
+    public void decisionBatch(double[] rowsFlat, int dim, double[] out) {
+    
+        int rows = out.length / this.lavelKind;
         
-        for (int x = 0; x < w; x += 2) {
-            for (int y = 0; y < h; y += 2) {
-                int ans = this.predict(new double[]{x, y});
-                gc.setFill(ans > 0 ? Color.BLUE : Color.RED);
-                gc.fillOval(x, y, 1, 1);
+        // 入力層（スケーリングしてバイアスを足す）
+        int inputSize = this.inputDemension + 1;
+        double[] inputResult = new double[rows * inputSize];
+        for (int r = 0; r < rows; r++) {
+            for (int i = 0; i < this.inputDemension; i++) {
+                inputResult[r * inputSize + i] = this.scaler.transform(i, rowsFlat[r * dim + i]);
             }
+            inputResult[r * inputSize + this.inputDemension] = 0.5;
         }
+        
+        // 隠し層の計算
+        double[] hiddenResult = new double[rows * this.hiddenRayer.outputSize()];
+        this.hiddenRayer.forwardBatch(inputResult, rows, hiddenResult);
+        
+        // 出力層の計算
+        this.outputRayer.forwardBatch(hiddenResult, rows, out);
     }
-
+    
+    /**
+     * 1行あたりの出力の数
+     */
     @Override
-    public String getTitle() {
-         return "多層パーセプトロン";
+    public int decisionSize() {
+        return this.lavelKind;
     }
     
-    private double[] addBias(double[] data) {
-        double[] d = new double[data.length + 1];
-        System.arraycopy(data, 0, d, 0, data.length);
-        d[d.length - 1] = 0.5;
-        return d;
+    /**
+     * モデルを書き出す（層ごとの重み行列だけ）
+     */
+    @Override
+    public void writeModel(ModelFile.Writer out) {
+        out.writeInt(this.inputDemension);
+        out.writeInt(this.hiddenCnt);
+        out.writeInt(this.lavelKind);
+        out.writeDoubles(this.hiddenRayer.weight, 0, this.hiddenRayer.weight.length);
+        out.writeDoubles(this.outputRayer.weight, 0, this.outputRayer.weight.length);
+        this.scaler.write(out);
     }
     
     /**
-     * 出力層の誤差を取得
+     * モデルを読み込む
+     */
+    static MultiLayerPerceotron readModel(ModelFile.Reader in) {
+        MultiLayerPerceotron mlp = new MultiLayerPerceotron(in.readInt(), in.readInt(), in.readInt());
+        in.readDoubles(mlp.hiddenRayer.weight);
+        in.readDoubles(mlp.outputRayer.weight);
+        mlp.scaler = FeatureScaler.read(in, mlp.inputDemension);
+        return mlp;
+    }
+    
+    @Override
+    public String getTitle() {
+         return "多層パーセプトロン";
+    }
+    
+    /**
+     * 出力層の誤差を計算
+     * 
+     * <pre>
+     * 正解ラベルのみが発火するのを教師データとする。
+     * </pre>
      * 
-     * @param classes   教師ラベル
+     * @param lavel     教師ラベル
      * @param output    出力層の出力
-     * @return 出力層の誤差（次元は出力層のユニット数）
+     * @param error     出力層の誤差（結果）
+     * @return 二乗誤差E
      */
-    private double[] getOutputError(int[] classes, double[] output) {
-        double[] error = new double[output.length];
+    private double setOutputError(int lavel, double[] output, double[] error) {
+        double e = 0.;
         for (int i = 0; i < output.length; i++) {
-            error[i] = (output[i] - classes[i]) * this.activation_deriv(output[i]);
-//            error[i] = (output[i] - classes[i]);
+            int t = i == lavel ? 1 : 0;
+            error[i] = (output[i] - t) * this.activation_deriv(output[i]);
+//            error[i] = (output[i] - t);
+            e += (output[i] - t) * (output[i] - t) / 2;
         }
-        return error;
+        return e;
     }
     
     /**
-     * 隠し層の誤差を取得
+     * 隠し層の誤差を計算
+     * 
+     * <pre>
+     * 出力層の重み行列を行の順に読んで足しこむ（列の順に読むと飛び飛びになるので）。
+     * </pre>
      * 
      * TODO 層を増やすならばレイヤを引数に渡す
      * 
-     * @param nextError     次の層の誤差
+     * @param nextError     出力層の誤差
      * @param hiddenResult  隠し層の出力
-     * @return 隠し層の誤差（次元は隠し層のユニット数）
+     * @param error         隠し層の誤差（結果）
      */
-    private double[] getHiddenError(double[] nextError, double[] hiddenResult) {
+    private void setHiddenError(double[] nextError, double[] hiddenResult, double[] error) {
+    
+        double[] weight = this.outputRayer.weight;
+        int inputSize = this.outputRayer.inputSize;
         
-        double[] error = new double[hiddenResult.length];
-        for (int i = 0; i < hiddenResult.length; i++) {
-            
-            Neuron neuron = this.hiddenRayer.neurons.get(i);
-            
-            // バイアスは重み更新をする必要はない（前の層とつながっていないので）
-            if (neuron.isBias()) {
-                error[i] = 0;
-                
-            // 誤差（の出力における偏微分）
-            } else {
-                
-                List<Neuron> neurons = this.outputRayer.neurons;
-                
-                double sumError = 0.;
-                for (int j = 0; j < nextError.length; j++) {
-                    sumError += nextError[j] * neurons.get(j).weight[i];
-                }
-                error[i] = sumError * this.activation_deriv(hiddenResult[i]);
+        Arrays.fill(error, 0.);
+        
+        // 誤差（の出力における偏微分）
+        for (int j = 0; j < this.outputRayer.size; j++) {
+            for (int i = 0; i < this.hiddenRayer.size; i++) {
+                error[i] += nextError[j] * weight[j * inputSize + i];
             }
         }
+        for (int i = 0; i < this.hiddenRayer.size; i++) {
+            error[i] *= this.activation_deriv(hiddenResult[i]);
+        }
         
-        return error;
+        // バイアスは重み更新をする必要はない（前の層とつながっていないので）
     }
     
     /**
@@ -275,142 +780,240 @@ public class MultiLayerPerceotron implements LearningMachine {
     }
     
     /**
-     * レイヤ
+     * 学習用の作業領域
+     * 
+     * <pre>
+     * 1件ごとに配列を作らないように使い回す。
+     * 複数のスレッドで学習するときはスレッドごとに持つ。
+     * </pre>
      */
-    private class Layer {
+    private class Workspace {
+    
+        /** 入力層の出力（バイアスを含む） */
+        private final double[] input = new double[inputDemension + 1];
         
-        /** このレイヤのニューロン */
-        private final List<Neuron> neurons;
+        /** 隠し層の出力（バイアスを含む） */
+        private final double[] hidden = new double[hiddenRayer.outputSize()];
         
-        /**
-         * コンストラクタ
-         * 
-         * @param size          このレイヤのニューロンの数
-         * @param inputSize     前のレイヤからの入力の数
-         */
-        Layer(int size, int inputSize, boolean isOutput) {
-            this.neurons = Stream.generate(() -> new Neuron(inputSize + 1))
-                                 .limit(size)
-                                 .collect(Collectors.toList());
-            if (!isOutput) {
-                this.neurons.add(new Neuron(0));
-            }
+        /** 出力層の出力 */
+        private final double[] output = new double[outputRayer.outputSize()];
+        
+        /** 隠し層の誤差 */
+        private final double[] hiddenError = new double[hiddenRayer.size];
+        
+        /** 出力層の誤差 */
+        private final double[] outputError = new double[outputRayer.size];
+        
+        /** 隠し層の勾配（ミニバッチ用） */
+        private final double[] hiddenGradient = new double[hiddenRayer.weight.length];
+        
+        /** 出力層の勾配（ミニバッチ用） */
+        private final double[] outputGradient = new double[outputRayer.weight.length];
+        
+        /** このエポックの二乗誤差の合計 */
+        private double loss = 0.;
+        
+        Workspace() {
+            this.input[inputDemension] = 0.5;
         }
         
         /**
-         * 順伝播
-         * 
-         * @param data  前の層からの入力
-         * @return      次の層への出力
+         * 勾配をクリア
          */
-        public double[] forward(double[] data) {
-            return neurons.stream().mapToDouble(neuron -> neuron.output(data)).toArray();
-//            double[] res = new double[data.length - 1];
-//            for (int i = 0; i < neurons.size() - 1; i++) {
-//                res[i] = neurons.get(i).output(data);
-//            }
-//            return addBias(res);
+        void clearGradient() {
+            Arrays.fill(this.hiddenGradient, 0.);
+            Arrays.fill(this.outputGradient, 0.);
         }
         
         /**
-         * 逆伝播
-         * 
-         * @param input この層への入力（前の層の出力）
-         * @param error 誤差（の出力における偏微分）
+         * 他のスレッドの勾配を足しこむ
          */
-        public void backward(double[] input, double[] errors) {
-            for (int i = 0; i < neurons.size(); i++) {
-                neurons.get(i).update(input, errors[i]);
+        void addGradient(Workspace other) {
+            for (int i = 0; i < this.hiddenGradient.length; i++) {
+                this.hiddenGradient[i] += other.hiddenGradient[i];
+            }
+            for (int i = 0; i < this.outputGradient.length; i++) {
+                this.outputGradient[i] += other.outputGradient[i];
             }
-        }
-        
-        @Override
-        public String toString() {
-            return this.neurons.stream().map(Neuron::toString).collect(Collectors.joining("\n"));
         }
     }
     
     /**
-     * ニューロンのモデル
+     * レイヤ
      * 
      * <pre>
-     * 入力ベクトルを受け取って重みベクトルを掛け合わせ、
+     * ニューロンごとの重みベクトルを1本の配列に並べた重み行列（ユニット×入力、行優先）で持つ。
+     * ニューロンは、入力ベクトルを受け取って重みベクトルを掛け合わせ、
      * 活性化関数を通して出力するのを1つのニューロンの役割だと思っている。
      * クラゲの頭にひもがついた感じ。
      * ---┐
      * ---┼-○---
      * ---┘
+     * 出力層以外は最後にバイアス（前の層とつながっていないユニット）を付ける。
      * </pre>
      */
-    private class Neuron {
+    private class Layer {
+    
+        /** このレイヤのユニット数（バイアスは含まない） */
+        private final int size;
+        
+        /** 前のレイヤからの入力の数（前のレイヤのバイアスを含む） */
+        private final int inputSize;
         
-        /** 重みベクトル */
+        /** 重み行列（ユニット×入力、行優先） */
         private final double[] weight;
         
+        /** バイアスの出力（出力層はバイアスを持たないのでNaN） */
+        private final double bias;
+        
         /**
          * コンストラクタ
          * 
-         * @param inputSize 入力の次元（前のレイヤの出力数）
+         * @param size          このレイヤのニューロンの数
+         * @param inputSize     前のレイヤからの入力の数
          */
-        Neuron(int inputSize) {
-            this.weight = new double[inputSize];
-            for (int i = 0; i < inputSize; i++) {
+        Layer(int size, int inputSize, boolean isOutput) {
+        
+            this.size = size;
+            this.inputSize = inputSize + 1;
+            
+            this.weight = new double[size * this.inputSize];
+            for (int i = 0; i < this.weight.length; i++) {
                 this.weight[i] = Math.random()*2-1;
             }
+            
+            // バイアスの出力は入力によらない
+            this.bias = isOutput ? Double.NaN : activation(.5);
         }
         
-        public boolean isBias() {
-            return this.weight.length == 0;
+        /**
+         * 出力の数（バイアスを含む）
+         */
+        int outputSize() {
+            return Double.isNaN(this.bias) ? this.size : this.size + 1;
         }
         
         /**
-         * 出力
+         * 順伝播
          * 
          * <pre>
          * o = f(ωx) = f(u)
          * </pre>
          * 
-         * @param input 入力データ
-         * @return      出力値
+         * @param data          前の層からの入力
+         * @param offset        入力の開始位置
+         * @param res           次の層への出力
+         * @param resOffset     出力の開始位置
+         */
+        public void forward(double[] data, int offset, double[] res, int resOffset) {
+        
+            for (int j = 0; j < this.size; j++) {
+                double sum = 0;
+                for (int i = 0; i < this.inputSize; i++) {
+                    sum += data[offset + i] * this.weight[j * this.inputSize + i];
+                }
+                res[resOffset + j] = activation(sum);
+            }
+            
+            // バイアス
+            if (!Double.isNaN(this.bias)) {
+                res[resOffset + this.size] = this.bias;
+            }
+        }
+        
+        /**
+         * まとめて順伝播
+         * 
+         * <pre>
+         * 入力行列（行×入力）に重み行列の転置を掛ける。
+         * 行をBLOCK_ROWS行ずつに区切って、その中では同じ重みベクトルを続けて使うので、
+         * 重み行列は区切りごとに1回しか読まない。
+         * </pre>
+         * 
+         * @param data  前の層からの入力（行×入力の数、行優先）
+         * @param rows  行数
+         * @param res   次の層への出力（行×出力の数、行優先）
          */
-        public double output(double[] input) {
-            return MultiLayerPerceotron.this.activation(this.isBias() ? .5 : this.dot(input));
+        public void forwardBatch(double[] data, int rows, double[] res) {
+        
+            int outputSize = this.outputSize();
+            for (int from = 0; from < rows; from += BLOCK_ROWS) {
+                int to = Math.min(rows, from + BLOCK_ROWS);
+                for (int j = 0; j < this.size; j++) {
+                    int w = j * this.inputSize;
+                    for (int r = from; r < to; r++) {
+                        int d = r * this.inputSize;
+                        double sum = 0;
+                        for (int i = 0; i < this.inputSize; i++) {
+                            sum += data[d + i] * this.weight[w + i];
+                        }
+                        res[r * outputSize + j] = activation(sum);
+                    }
+                }
+                
+                // バイアス
+                if (!Double.isNaN(this.bias)) {
+                    for (int r = from; r < to; r++) {
+                        res[r * outputSize + this.size] = this.bias;
+                    }
+                }
+            }
         }
         
         /**
-         * 重みベクトルを更新
+         * 逆伝播
          * 
          * <pre>
          * ω = ω - ρ・(∂E/∂ω) = ω - ρ・(o(L) - t)・f'(u)・o(L-1)
          * ∂E/∂uを誤差とか呼んでいいの？
          * </pre>
          * 
-         * @param input このニューロンへの入力（＝ひとつ前の層の出力）
-         * @param error 誤差（の出力における偏微分）
+         * @param input この層への入力（前の層の出力）
+         * @param delta この層の誤差
          */
-        public void update(double[] input, double error) {
-            for (int i = 0; i < this.weight.length; i++) {
-                this.weight[i] -= learningRate * error * input[i];
+        public void backward(double[] input, double[] delta) {
+            for (int j = 0; j < this.size; j++) {
+                double error = delta[j];
+                for (int i = 0; i < this.inputSize; i++) {
+                    this.weight[j * this.inputSize + i] -= learningRate * error * input[i];
+                }
+            }
+        }
+        
+        /**
+         * 勾配を足しこむ（重みは更新しない）
+         * 
+         * @param input     この層への入力（前の層の出力）
+         * @param delta     この層の誤差
+         * @param gradient  勾配（重み行列と同じ並び）
+         */
+        public void accumulate(double[] input, double[] delta, double[] gradient) {
+            for (int j = 0; j < this.size; j++) {
+                double error = delta[j];
+                for (int i = 0; i < this.inputSize; i++) {
+                    gradient[j * this.inputSize + i] += error * input[i];
+                }
             }
         }
         
         /**
-         * 内積の計算
-         *
-         * @param data  入力データ
-         * @return      出力値
+         * 足しこんだ勾配で重みを更新する
+         * 
+         * @param gradient  勾配（重み行列と同じ並び）
+         * @param rate      勾配に掛ける係数
          */
-        private double dot(double[] data) {
-            double res = 0;
-            for (int i = 0; i <data.length; i++) {
-                res += data[i] * weight[i];
+        public void update(double[] gradient, double rate) {
+            for (int i = 0; i < this.weight.length; i++) {
+                this.weight[i] -= rate * gradient[i];
             }
-            return res;
         }
         
         @Override
         public String toString() {
-            return DoubleStream.of(weight).mapToObj(String::valueOf).collect(Collectors.joining(" "));
+            return IntStream.range(0, this.size)
+                            .mapToObj(j -> DoubleStream.of(Arrays.copyOfRange(this.weight, j * this.inputSize, (j + 1) * this.inputSize))
+                                                       .mapToObj(String::valueOf).collect(Collectors.joining(" ")))
+                            .collect(Collectors.joining("\n"));
         }
     }
 }
\ No newline at end of file
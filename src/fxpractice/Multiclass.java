@@ -0,0 +1,434 @@
+package fxpractice;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+/**
+ * 多クラス分類
+ * 
+ * <pre>
+ * -1/1の2クラスしか扱えない学習機を組み合わせて、3クラス以上を分類する。
+ *   ONE_VS_REST  クラスごとに、そのクラス(1)とそれ以外(-1)を分ける（K個）
+ *                決定関数の値が一番大きいクラスにする
+ *   ONE_VS_ONE   2クラスの組ごとに、その2クラスのデータだけで分ける（K(K-1)/2個）
+ *                勝った方に1票入れて、票が一番多いクラスにする（同数なら番号の小さい方）
+ * ラベルはクラス番号（任意のint）のまま渡す。クラスは学習するときの教師データから決める。
+ * 
+ * 中の学習機はお互いに関係ないので、ForkJoinで並列に学習する。
+ * 判定も中の学習機ごとに並列に計算して、票を足しこむ。
+ * 
+ * 中の学習機がSVM_SMOのときは、教師データをコピーせずに共有して、カーネルキャッシュも1つだけ作る。
+ * ONE_VS_ONEではどのデータもK-1個の学習機で使うので、同じカーネルを何度も計算しなくて済む。
+ * 中の学習機には、自分が使うデータがこのクラスの教師データの何番目かの表と-1/1のラベルだけを渡す。
+ * それ以外の学習機には、使うデータを-1/1のラベルでコピーして入れる。
+ * </pre>
+ */
+public class Multiclass extends LearningMachineBase {
+
+    /**
+     * 分け方
+     */
+    public enum Strategy {
+    
+        /** 1クラス対それ以外 */
+        ONE_VS_REST,
+        
+        /** 1クラス対1クラス */
+        ONE_VS_ONE
+    }
+    
+    /** 分け方 */
+    private final Strategy strategy;
+    
+    /** 中の学習機を作る（-1/1の2クラスで、どれも同じ設定のもの） */
+    private final Supplier<LearningMachine> factory;
+    
+    /** 共有するカーネルキャッシュの上限（MB） */
+    private double cacheSize = 100;
+    
+    /** クラス（昇順） */
+    private int[] classes = new int[0];
+    
+    /** 中の学習機 */
+    private LearningMachine[] machines = new LearningMachine[0];
+    
+    /** 中の学習機が1としたクラス（classesのインデックス） */
+    private int[] positives = new int[0];
+    
+    /** 中の学習機が-1としたクラス（classesのインデックス、ONE_VS_RESTは-1） */
+    private int[] negatives = new int[0];
+    
+    /** 前回の学習で共有したカーネルキャッシュにあった回数 */
+    private long cacheHits = 0;
+    
+    /** 前回の学習で共有したカーネルキャッシュになかった回数 */
+    private long cacheMisses = 0;
+    
+    /**
+     * コンストラクタ
+     * 
+     * @param dimension 特徴量の次元
+     * @param strategy  分け方
+     * @param factory   中の学習機を作る（-1/1の2クラスのもの）
+     */
+    public Multiclass(int dimension, Strategy strategy, Supplier<LearningMachine> factory) {
+        super(dimension);
+        this.strategy = strategy;
+        this.factory = factory;
+    }
+    
+    /**
+     * 共有するカーネルキャッシュの上限を設定
+     * 
+     * @param cacheSize 上限（MB）
+     */
+    public Multiclass setCacheSize(double cacheSize) {
+        this.cacheSize = cacheSize;
+        return this;
+    }
+    
+    /**
+     * 前回の学習で共有したカーネルキャッシュにあった回数
+     */
+    public long getCacheHits() {
+        return this.cacheHits;
+    }
+    
+    /**
+     * 前回の学習で共有したカーネルキャッシュになかった回数
+     */
+    public long getCacheMisses() {
+        return this.cacheMisses;
+    }
+    
+    @Override
+    public void learn() {
+        this.learn(TrainingMonitor.NONE);
+    }
+    
+    /**
+     * 学習（中の学習機が1つ終わるごとに経過を知らせる）
+     * 
+     * <pre>
+     * 中の学習機の経過は知らせない（数が多いので、終わった数だけ知らせる）。
+     * 中止されたら、まだ始めていない学習機は学習しない。
+     * </pre>
+     */
+    @Override
+    public void learn(TrainingMonitor monitor) {
+    
+        int n = this.dataset.size();
+        int dimension = this.dataset.dimension();
+        int[] lavels = Arrays.copyOf(this.dataset.lavels(), n);
+        this.classes = IntStream.of(lavels).distinct().sorted().toArray();
+        this.pairs();
+        
+        this.machines = new LearningMachine[this.positives.length];
+        for (int m = 0; m < this.machines.length; m++) {
+            this.machines[m] = this.factory.get();
+        }
+        
+        // SVM_SMOなら教師データとカーネルキャッシュを共有する（スケーリングも教師データ全体で1回だけ決めて揃える）
+        SVM_SMO.Shared shared = null;
+        if (this.machines.length > 0 && Arrays.stream(this.machines).allMatch(lm -> lm instanceof SVM_SMO)) {
+            shared = new SVM_SMO.Shared(this.dataset, (SVM_SMO) this.machines[0], this.cacheSize);
+        }
+        
+        // 中の学習機ごとに、使う教師データの番号と-1/1のラベルを決める（ONE_VS_RESTの番号は全部同じ）
+        int[] cls = IntStream.of(lavels).map(l -> Arrays.binarySearch(this.classes, l)).toArray();
+        int[] all = IntStream.range(0, n).toArray();
+        double[] features = this.dataset.features();
+        double[] row = new double[dimension];
+        for (int m = 0; m < this.machines.length; m++) {
+            int positive = this.positives[m];
+            int negative = this.negatives[m];
+            int[] indexes = negative < 0 ? all : IntStream.range(0, n).filter(i -> cls[i] == positive || cls[i] == negative).toArray();
+            int[] signs = IntStream.of(indexes).map(i -> cls[i] == positive ? 1 : -1).toArray();
+            
+            if (shared != null) {
+                ((SVM_SMO) this.machines[m]).setShared(shared, indexes, signs);
+                continue;
+            }
+            for (int j = 0; j < indexes.length; j++) {
+                System.arraycopy(features, indexes[j] * dimension, row, 0, dimension);
+                this.machines[m].add(signs[j], row);
+            }
+        }
+        
+        if (this.machines.length > 0) {
+            ForkJoinPool.commonPool().invoke(new Train(monitor, new AtomicInteger(), 0, this.machines.length));
+        }
+        
+        // 共有は学習中しか使わないので手放す（学習した学習機は自分でやめている。中止で学習しなかった分）
+        if (shared != null) {
+            for (LearningMachine lm : this.machines) {
+                ((SVM_SMO) lm).setShared(null, null, null);
+            }
+            this.cacheHits = shared.cache.getHits();
+            this.cacheMisses = shared.cache.getMisses();
+        }
+    }
+    
+    /**
+     * 中の学習機が分けるクラスの組を決める（classesが決まってから呼ぶ）
+     */
+    private void pairs() {
+    
+        int k = this.classes.length;
+        if (k < 2) {
+            this.positives = new int[0];
+            this.negatives = new int[0];
+            return;
+        }
+        
+        if (this.strategy == Strategy.ONE_VS_REST) {
+            this.positives = IntStream.range(0, k).toArray();
+            this.negatives = new int[k];
+            Arrays.fill(this.negatives, -1);
+            return;
+        }
+        
+        this.positives = new int[k * (k - 1) / 2];
+        this.negatives = new int[this.positives.length];
+        int m = 0;
+        for (int a = 0; a < k; a++) {
+            for (int b = a + 1; b < k; b++) {
+                this.positives[m] = a;
+                this.negatives[m] = b;
+                m++;
+            }
+        }
+    }
+    
+    @Override
+    public int predict(double[] data) {
+        int[] out = new int[1];
+        this.predictBatch(data, data.length, out);
+        return out[0];
+    }
+    
+    /**
+     * まとめて判定
+     * 
+     * <pre>
+     * 中の学習機ごとに並列に決定関数の値を計算して、クラスごとの点数を足しこむ。
+     * </pre>
+     */
+    @Override
+    public void predictBatch(double[] rowsFlat, int dim, int[] out) {
+    
+        if (this.machines.length == 0) {
+            Arrays.fill(out, this.classes.length > 0 ? this.classes[0] : 0);
+            return;
+        }
+        
+        int k = this.classes.length;
+        double[] scores = ForkJoinPool.commonPool().invoke(new Votes(rowsFlat, dim, out.length, 0, this.machines.length));
+        for (int r = 0; r < out.length; r++) {
+            int best = 0;
+            for (int c = 1; c < k; c++) {
+                if (scores[r * k + c] > scores[r * k + best]) {
+                    best = c;
+                }
+            }
+            out[r] = this.classes[best];
+        }
+    }
+    
+    @Override
+    public void reset() {
+        this.dataset.clear();
+        this.classes = new int[0];
+        this.machines = new LearningMachine[0];
+        this.positives = new int[0];
+        this.negatives = new int[0];
+        this.cacheHits = 0;
+        this.cacheMisses = 0;
+    }
+    
+    /**
+     * モデルを書き出す
+     * 
+     * <pre>
+     * 分け方とクラスのあとに、中の学習機を順に書く。教師データは書かない。
+     * </pre>
+     */
+    @Override
+    public void writeModel(ModelFile.Writer out) {
+        out.writeInt(this.dataset.dimension());
+        out.writeInt(this.strategy.ordinal());
+        out.writeInts(this.classes, 0, this.classes.length);
+        out.writeInt(this.machines.length);
+        for (LearningMachine lm : this.machines) {
+            out.writeMachine(lm);
+        }
+    }
+    
+    /**
+     * モデルを読み込む
+     * 
+     * <pre>
+     * 教師データは空になる（学習し直すと、追加したデータだけで学習する）。
+     * 中の学習機は読み込んだものと同じクラスで作る。
+     * </pre>
+     */
+    static Multiclass readModel(ModelFile.Reader in) throws IOException {
+    
+        int dimension = in.readInt();
+        Strategy strategy = Strategy.values()[in.readInt()];
+        int[] classes = in.readInts();
+        LearningMachine[] machines = new LearningMachine[in.readInt()];
+        for (int m = 0; m < machines.length; m++) {
+            machines[m] = in.readMachine();
+        }
+        
+        String name = machines.length > 0 ? machines[0].getClass().getSimpleName() : "SVM_SMO";
+        Multiclass res = new Multiclass(dimension, strategy, () -> Machines.create(name, dimension, 2));
+        res.classes = classes;
+        res.pairs();
+        if (res.positives.length != machines.length) {
+            throw new IllegalStateException(machines.length + " machines for " + classes.length + " classes");
+        }
+        res.machines = machines;
+        return res;
+    }
+    
+    @Override
+    public String getTitle() {
+        String title = this.machines.length > 0 ? this.machines[0].getTitle() : this.factory.get().getTitle();
+        return title + (this.strategy == Strategy.ONE_VS_REST ? "（1対他）" : "（1対1）");
+    }
+    
+    /**
+     * 中の学習機の範囲を学習するタスク
+     */
+    private class Train extends RecursiveAction {
+    
+        private static final long serialVersionUID = 1L;
+        
+        /** 経過の知らせ先 */
+        private final TrainingMonitor monitor;
+        
+        /** 学習が終わった数 */
+        private final AtomicInteger finished;
+        
+        /** 開始位置 */
+        private final int from;
+        
+        /** 終了位置（含まない） */
+        private final int to;
+        
+        Train(TrainingMonitor monitor, AtomicInteger finished, int from, int to) {
+            this.monitor = monitor;
+            this.finished = finished;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected void compute() {
+        
+            // 学習機1つずつに分ける（学習機ごとに時間が大きく違うので、空いたスレッドが拾えるように）
+            if (this.to - this.from > 1) {
+                int mid = (this.from + this.to) >>> 1;
+                invokeAll(new Train(this.monitor, this.finished, this.from, mid), new Train(this.monitor, this.finished, mid, this.to));
+                return;
+            }
+            
+            if (this.monitor.isCancelled()) {
+                return;
+            }
+            
+            // 中の学習機には中止だけ伝える
+            Multiclass.this.machines[this.from].learn(new TrainingMonitor() {
+                @Override
+                public void report(int step, int maxStep, double loss, int violators) {
+                }
+                
+                @Override
+                public boolean isCancelled() {
+                    return Train.this.monitor.isCancelled();
+                }
+            });
+            this.monitor.report(this.finished.incrementAndGet(), Multiclass.this.machines.length, Double.NaN, -1);
+        }
+    }
+    
+    /**
+     * 中の学習機の範囲でクラスごとの点数を計算するタスク
+     * 
+     * <pre>
+     * 点数は行ごとにクラスの数だけ並べる。
+     *   ONE_VS_REST  そのクラスを1とした学習機の決定関数の値
+     *   ONE_VS_ONE   票の数
+     * </pre>
+     */
+    private class Votes extends RecursiveTask<double[]> {
+    
+        private static final long serialVersionUID = 1L;
+        
+        /** データ（行優先） */
+        private final double[] rowsFlat;
+        
+        /** データの次元 */
+        private final int dim;
+        
+        /** 行数 */
+        private final int rows;
+        
+        /** 開始位置 */
+        private final int from;
+        
+        /** 終了位置（含まない） */
+        private final int to;
+        
+        Votes(double[] rowsFlat, int dim, int rows, int from, int to) {
+            this.rowsFlat = rowsFlat;
+            this.dim = dim;
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected double[] compute() {
+        
+            Multiclass mc = Multiclass.this;
+            
+            // 大きければ半分に分けて、点数を足す
+            if (this.to - this.from > 1) {
+                int mid = (this.from + this.to) >>> 1;
+                Votes left = new Votes(this.rowsFlat, this.dim, this.rows, this.from, mid);
+                left.fork();
+                double[] res = new Votes(this.rowsFlat, this.dim, this.rows, mid, this.to).compute();
+                double[] other = left.join();
+                for (int i = 0; i < res.length; i++) {
+                    res[i] += other[i];
+                }
+                return res;
+            }
+            
+            int k = mc.classes.length;
+            int positive = mc.positives[this.from];
+            int negative = mc.negatives[this.from];
+            double[] decision = new double[this.rows];
+            mc.machines[this.from].decisionBatch(this.rowsFlat, this.dim, decision);
+            
+            double[] res = new double[this.rows * k];
+            for (int r = 0; r < this.rows; r++) {
+                if (negative < 0) {
+                    res[r * k + positive] = decision[r];
+                } else {
+                    res[r * k + (decision[r] > 0 ? positive : negative)] = 1;
+                }
+            }
+            return res;
+        }
+    }
+}
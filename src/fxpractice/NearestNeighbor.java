@@ -1,32 +1,95 @@
 package fxpractice;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
-import javafx.scene.canvas.GraphicsContext;
-import javafx.scene.paint.Color;
-import javafx.util.Pair;
-
 /**
  * k-近傍法
+ * 
+ * <pre>
+ * 通常は空間インデックス（kd木かボール木）で厳密にk近傍を探す。
+ * setApproximate() するとHNSWグラフを使う近似モードになる。
+ * グラフは add() のたびに少しずつ伸ばすので、点が多くても作り直しが要らない。
+ * 取りこぼしと速さの関係は RecallReport で総当たりと比べて確かめられる。
+ * </pre>
  */
-public class NearestNeighbor implements LearningMachine {
+public class NearestNeighbor extends LearningMachineBase {
     
     /** 最近傍採用数 */
     private final int k;
     
-    /** 認識したパターン */
-    private final List<Pair<Integer, double[]>> learning = new ArrayList<>();
+    /** kd木を使う次元の上限（これより高次元ではボール木を使う） */
+    private static final int KD_TREE_MAX_DIMENSION = 8;
+    
+    /** 近傍の候補（スレッドごとに使い回す） */
+    private final ThreadLocal<TopK> topK;
+    
+    /** 空間インデックス */
+    private SpatialIndex index = null;
+    
+    /** 空間インデックスを作り直す必要があるか */
+    private boolean dirty = true;
+    
+    /** 空間インデックスを使うか（falseなら総当たり） */
+    private boolean useIndex = true;
+    
+    /** 近似モードのHNSWグラフ（近似モードでなければnull） */
+    private Hnsw graph = null;
 
     /**
      * コンストラクタ
      */
     public NearestNeighbor(int k) {
         this.k = k;
+        this.topK = ThreadLocal.withInitial(() -> new TopK(k));
+    }
+    
+    /**
+     * 最近傍採用数
+     */
+    int getK() {
+        return this.k;
+    }
+    
+    /**
+     * 空間インデックスを使うかを設定
+     * 
+     * <pre>
+     * falseにすると総当たりで探す。結果の突き合わせ用。
+     * </pre>
+     */
+    public NearestNeighbor setUseIndex(boolean useIndex) {
+        this.useIndex = useIndex;
+        return this;
+    }
+    
+    /**
+     * 近似モードにする
+     * 
+     * <pre>
+     * HNSWグラフでk近傍を探す。すでにある教師データはここでグラフに入れる。
+     *   m               リンク数。大きいほど取りこぼしが減るが、メモリと追加の時間が増える（16前後）
+     *   efConstruction  追加するときに持つ候補数。大きいほどグラフが良くなるが追加が遅い（100〜200）
+     *   efSearch        探索するときに持つ候補数。大きいほど取りこぼしが減るが遅い（k以上）
+     * モデルファイルにはグラフを書かないので、読み込んだら設定し直すこと。
+     * </pre>
+     */
+    public NearestNeighbor setApproximate(int m, int efConstruction, int efSearch) {
+        this.graph = new Hnsw(this.dataset, m, efConstruction, efSearch);
+        this.graph.update();
+        return this;
+    }
+    
+    /**
+     * 近似モードで探索するときに持つ候補数を設定
+     * 
+     * <pre>
+     * グラフは作り直さずにそのまま使う。
+     * </pre>
+     */
+    public NearestNeighbor setEfSearch(int efSearch) {
+        if (this.graph == null) {
+            throw new IllegalStateException("not in approximate mode");
+        }
+        this.graph.setEfSearch(efSearch);
+        return this;
     }
     
     /**
@@ -34,69 +97,117 @@ public class NearestNeighbor implements LearningMachine {
      */
     @Override
     public void add(int cls, double[] data) {
-        this.learning.add(new Pair(cls, data));
+        super.add(cls, data);
+        this.dirty = true;
+        
+        // グラフは作り直さずに伸ばす
+        if (this.graph != null) {
+            this.graph.update();
+        }
     }
     
     /** 
      * 学習 
+     * 
+     * <pre>
+     * 覚えるだけなので、空間インデックスを作るだけ。
+     * </pre>
      */
     @Override
     public void learn() {
+        
+        if (!this.dirty) {
+            return;
+        }
+        
+        // 近似モードではグラフが追加のたびにできているので、木は作らない
+        if (this.graph != null) {
+            this.graph.update();
+            return;
+        }
+        
+        // 次元が低ければkd木、高ければボール木
+        boolean isLow = this.dataset.dimension() <= KD_TREE_MAX_DIMENSION;
+        this.index = isLow ? new KdTree(this.dataset) : new BallTree(this.dataset);
+        this.dirty = false;
     }
 
     /**
-     * 描画
+     * 評価
      */
     @Override
-    public void draw(GraphicsContext gc) {
+    public int predict(double[] data) {
         
-        int w = (int) gc.getCanvas().getWidth();
-        int h = (int) gc.getCanvas().getHeight();
+        TopK topK = this.topK.get();
+        topK.clear();
+        this.neighbors(data, topK);
+        return this.vote(topK);
+    }
         
-        for (int x = 0; x < w; x += 2) {
-            for (int y = 0; y < h; y += 2) {
-                int ans = this.predict(new double[]{x, y});
-                if (ans == 0) {
-                    continue;
-                }
-                gc.setFill(ans > 0 ? Color.BLUE : Color.RED);
-                gc.fillOval(x, y, 1, 1);
-            }
+    /**
+     * 近傍を求める
+     * 
+     * <pre>
+     * 近似モードならグラフ、そうでなければ空間インデックス、どちらも使えなければ総当たり。
+     * 結果の並び順は保証しない。
+     * </pre>
+     * 
+     * @param data  問い合わせ点
+     * @param topK  近傍の候補（空にしてから渡すこと）
+     */
+    void neighbors(double[] data, TopK topK) {
+        if (this.useIndex && this.graph != null) {
+            this.graph.search(data, topK);
+        } else if (this.useIndex && !this.dirty) {
+            this.index.search(data, topK);
+        } else {
+            this.searchAll(data, topK);
         }
     }
     
     /**
-     * 評価
+     * 総当たりで近傍を求める
      */
-    @Override
-    public int predict(double[] data) {
-        
-        // 距離とクラスのランキング
-        Map<Double, Integer> ranking = new TreeMap<>();
+    private void searchAll(double[] data, TopK topK) {
         
-        // 一番近いパターンを求める
-        this.learning.stream().filter(entry -> entry.getValue().length == data.length)
-                              .forEach((entry) -> {
-            
-            double[] pos = entry.getValue();
+        double[] features = this.dataset.features();
+        int dimension = this.dataset.dimension();
+        for (int i = 0; i < this.dataset.size(); i++) {
             
             // データ間の距離を求める（平方ユークリッド距離）
-            double dist = Stream.iterate(0, i -> i + 1).limit(pos.length)
-                                                       .mapToDouble(i -> Math.pow(pos[i] - data[i], 2))
-                                                       .sum();
-
-            // ソートして貯める（ベクトルは特に必要ないので距離とクラス）
-            ranking.put(dist, entry.getKey());
-        });
+            topK.offer(SpatialIndex.distance(features, i * dimension, data), i);
+        }
+    }
+    
+    /**
+     * 多数決
+     * 
+     * <pre>
+     * 同数の場合は一番近い点のクラスを採用する。
+     * topKは近い順に並べ替える。
+     * </pre>
+     */
+    int vote(TopK topK) {
         
-        // クラスと個数でマッピング
-        Map<Integer, Long> map = ranking.entrySet().stream().limit(k)
-                   .collect(Collectors.groupingBy(x -> x.getValue(), Collectors.counting()));
+        // 近い順に並べておく
+        topK.sort();
         
-        // 最大のクラスを取得
-        return map.entrySet().stream().filter(e -> e.getValue().longValue() == Collections.max(map.values()).longValue())
-                                      .mapToInt(e -> e.getKey())
-                                      .findFirst().orElse(0);
+        int ans = 0;
+        int max = 0;
+        for (int i = 0; i < topK.size(); i++) {
+            int cls = this.dataset.lavel(topK.index(i));
+            int cnt = 0;
+            for (int j = 0; j < topK.size(); j++) {
+                if (this.dataset.lavel(topK.index(j)) == cls) {
+                    cnt++;
+                }
+            }
+            if (cnt > max) {
+                max = cnt;
+                ans = cls;
+            }
+        }
+        return ans;
     }
     
     /**
@@ -104,9 +215,33 @@ public class NearestNeighbor implements LearningMachine {
      */
     @Override
     public void reset() {
-        this.learning.clear();
+        this.dataset.clear();
+        this.index = null;
+        this.dirty = true;
+        if (this.graph != null) {
+            this.graph.clear();
+        }
     }
 
+    /**
+     * モデルを書き出す（参照する教師データ全部）
+     */
+    @Override
+    public void writeModel(ModelFile.Writer out) {
+        out.writeInt(this.k);
+        out.writeDataset(this.dataset);
+    }
+    
+    /**
+     * モデルを読み込む
+     */
+    static NearestNeighbor readModel(ModelFile.Reader in) {
+        NearestNeighbor nn = new NearestNeighbor(in.readInt());
+        in.readDataset(nn.dataset);
+        nn.learn();
+        return nn;
+    }
+    
     /**
      * タイトル
      */
@@ -0,0 +1,320 @@
+package fxpractice;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntUnaryOperator;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+
+/**
+ * k-近傍法の判定結果を描き足す
+ * 
+ * <pre>
+ * 格子点（SurfaceRenderer.STEP px 間隔）ごとに、判定結果とk番目の近傍までの距離を覚えておく。
+ * 点を1つ足したときに判定が変わりうるのは、その点までの距離がk番目の距離より近い格子点だけなので、
+ * そこだけ判定し直して、変わった範囲を囲む矩形だけを描き直す。
+ * 足した点から遠いところは距離を比べるだけで済むので、教師データが多くても描き直しが軽い。
+ * 
+ * 覚えている状態はキャンバスのプロパティに置く。
+ * 前に描いたときの教師データが今の教師データの先頭と同じならば、足された分だけ描き直す
+ * （学習するたびに学習機を作り直しても、同じデータならそのまま使える）。
+ * 違えば全部描き直す。キャンバスを消したら invalidate() すること。
+ * </pre>
+ */
+final class NeighborSurface {
+
+    /** キャンバスのプロパティに置くときのキー */
+    private static final Object KEY = new Object();
+    
+    /** 1タスクで受け持つ点の数（これ以下なら分割しない） */
+    private static final int CHUNK = 256;
+    
+    /** 幅（px） */
+    private final int width;
+    
+    /** 高さ（px） */
+    private final int height;
+    
+    /** 横の格子点の数 */
+    private final int columns;
+    
+    /** 縦の格子点の数 */
+    private final int rows;
+    
+    /** 最近傍採用数 */
+    private final int k;
+    
+    /** 格子点ごとの判定結果 */
+    private final int[] labels;
+    
+    /** 格子点ごとのk番目の近傍までの距離（平方、k個なければ無限大） */
+    private final double[] kth;
+    
+    /** 描画に反映した教師データ */
+    private final Dataset reflected = new Dataset(2);
+    
+    private NeighborSurface(int width, int height, int k) {
+        this.width = width;
+        this.height = height;
+        this.columns = (width + SurfaceRenderer.STEP - 1) / SurfaceRenderer.STEP;
+        this.rows = (height + SurfaceRenderer.STEP - 1) / SurfaceRenderer.STEP;
+        this.k = k;
+        this.labels = new int[this.columns * this.rows];
+        this.kth = new double[this.labels.length];
+    }
+    
+    /**
+     * 描画する
+     * 
+     * <pre>
+     * 前に描いたものが使えれば足された分だけ、使えなければ全部描き直す。
+     * </pre>
+     * 
+     * @param nn    学習機
+     * @param gc    描画先
+     * @param color 分類ラベルから色（ARGB）への変換
+     */
+    static void draw(NearestNeighbor nn, GraphicsContext gc, IntUnaryOperator color) {
+    
+        SurfaceRenderer.stop(gc);
+        
+        NeighborSurface surface = cached(nn, gc);
+        if (surface == null) {
+            int w = (int) gc.getCanvas().getWidth();
+            int h = (int) gc.getCanvas().getHeight();
+            surface = new NeighborSurface(w, h, nn.getK());
+            surface.evaluate(nn, all(surface.labels.length));
+            surface.reflect(nn.getDataset());
+            surface.paint(gc, color, 0, 0, surface.columns - 1, surface.rows - 1);
+            gc.getCanvas().getProperties().put(KEY, surface);
+            return;
+        }
+        
+        surface.update(nn, gc, color);
+    }
+    
+    /**
+     * 足された分だけ描き直す
+     * 
+     * <pre>
+     * 前に描いたものが使えなければ何もしない（学習ボタンで全部描く）。
+     * </pre>
+     * 
+     * @param nn    学習機
+     * @param gc    描画先
+     * @param color 分類ラベルから色（ARGB）への変換
+     */
+    static void drawAdded(NearestNeighbor nn, GraphicsContext gc, IntUnaryOperator color) {
+        NeighborSurface surface = cached(nn, gc);
+        if (surface != null) {
+            SurfaceRenderer.stop(gc);
+            surface.update(nn, gc, color);
+        }
+    }
+    
+    /**
+     * 覚えている状態を捨てる（キャンバスを消したとき）
+     */
+    static void invalidate(GraphicsContext gc) {
+        gc.getCanvas().getProperties().remove(KEY);
+    }
+    
+    /**
+     * 前に描いたものが使えればそれを返す
+     */
+    private static NeighborSurface cached(NearestNeighbor nn, GraphicsContext gc) {
+    
+        Object cached = gc.getCanvas().getProperties().get(KEY);
+        if (!(cached instanceof NeighborSurface)) {
+            return null;
+        }
+        
+        NeighborSurface surface = (NeighborSurface) cached;
+        boolean same = surface.k == nn.getK()
+                && surface.width == (int) gc.getCanvas().getWidth()
+                && surface.height == (int) gc.getCanvas().getHeight()
+                && surface.isPrefixOf(nn.getDataset());
+        return same ? surface : null;
+    }
+    
+    /**
+     * 反映した教師データが、datasetの先頭と同じか
+     */
+    private boolean isPrefixOf(Dataset dataset) {
+    
+        int size = this.reflected.size();
+        if (dataset.dimension() != 2 || dataset.size() < size) {
+            return false;
+        }
+        for (int n = 0; n < size; n++) {
+            if (this.reflected.lavel(n) != dataset.lavel(n)) {
+                return false;
+            }
+        }
+        double[] a = this.reflected.features();
+        double[] b = dataset.features();
+        for (int i = 0; i < 2 * size; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * 足された点で判定が変わりうる格子点だけ判定し直して描き直す
+     */
+    private void update(NearestNeighbor nn, GraphicsContext gc, IntUnaryOperator color) {
+    
+        Dataset dataset = nn.getDataset();
+        int from = this.reflected.size();
+        if (from == dataset.size()) {
+            return;
+        }
+        
+        // 足された点のどれかがk番目より近い格子点を集めて、囲む矩形を求める
+        double[] features = dataset.features();
+        int[] dirty = new int[this.labels.length];
+        int count = 0;
+        int x0 = this.columns;
+        int y0 = this.rows;
+        int x1 = -1;
+        int y1 = -1;
+        for (int gy = 0; gy < this.rows; gy++) {
+            for (int gx = 0; gx < this.columns; gx++) {
+                int p = gy * this.columns + gx;
+                double x = gx * SurfaceRenderer.STEP;
+                double y = gy * SurfaceRenderer.STEP;
+                for (int n = from; n < dataset.size(); n++) {
+                    double dx = features[2 * n] - x;
+                    double dy = features[2 * n + 1] - y;
+                    
+                    // 同じ距離ならインデックスの小さい方が残るので、足した点は負ける
+                    if (dx * dx + dy * dy < this.kth[p]) {
+                        dirty[count++] = p;
+                        x0 = Math.min(x0, gx);
+                        y0 = Math.min(y0, gy);
+                        x1 = Math.max(x1, gx);
+                        y1 = Math.max(y1, gy);
+                        break;
+                    }
+                }
+            }
+        }
+        
+        this.evaluate(nn, Arrays.copyOf(dirty, count));
+        this.reflect(dataset);
+        if (count > 0) {
+            this.paint(gc, color, x0, y0, x1, y1);
+        }
+    }
+    
+    /**
+     * 教師データを反映済みにする
+     */
+    private void reflect(Dataset dataset) {
+        double[] features = dataset.features();
+        double[] row = new double[2];
+        for (int n = this.reflected.size(); n < dataset.size(); n++) {
+            row[0] = features[2 * n];
+            row[1] = features[2 * n + 1];
+            this.reflected.add(dataset.lavel(n), row);
+        }
+    }
+    
+    /**
+     * 格子点をまとめて判定する
+     */
+    private void evaluate(NearestNeighbor nn, int[] points) {
+        if (points.length > 0) {
+            ForkJoinPool.commonPool().invoke(new Points(nn, points, 0, points.length));
+        }
+    }
+    
+    /**
+     * 0から始まる連番
+     */
+    private static int[] all(int length) {
+        int[] res = new int[length];
+        for (int i = 0; i < length; i++) {
+            res[i] = i;
+        }
+        return res;
+    }
+    
+    /**
+     * 格子点の矩形（両端を含む）を描画する
+     * 
+     * <pre>
+     * 格子点以外は透明にした矩形の画像を1枚だけ描く。
+     * </pre>
+     */
+    private void paint(GraphicsContext gc, IntUnaryOperator color, int x0, int y0, int x1, int y1) {
+    
+        int step = SurfaceRenderer.STEP;
+        int w = (x1 - x0) * step + 1;
+        int h = (y1 - y0) * step + 1;
+        int[] buffer = new int[w * h];
+        for (int gy = y0; gy <= y1; gy++) {
+            for (int gx = x0; gx <= x1; gx++) {
+                buffer[(gy - y0) * step * w + (gx - x0) * step] = color.applyAsInt(this.labels[gy * this.columns + gx]);
+            }
+        }
+        
+        WritableImage image = new WritableImage(w, h);
+        image.getPixelWriter().setPixels(0, 0, w, h, PixelFormat.getIntArgbInstance(), buffer, 0, w);
+        gc.drawImage(image, x0 * step, y0 * step);
+    }
+    
+    /**
+     * 格子点の範囲を受け持つタスク
+     */
+    private class Points extends RecursiveAction {
+    
+        private static final long serialVersionUID = 1L;
+        
+        private final NearestNeighbor nn;
+        
+        private final int[] points;
+        
+        /** 開始位置 */
+        private final int from;
+        
+        /** 終了位置（含まない） */
+        private final int to;
+        
+        Points(NearestNeighbor nn, int[] points, int from, int to) {
+            this.nn = nn;
+            this.points = points;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected void compute() {
+        
+            // 大きければ半分に分ける
+            if (this.to - this.from > CHUNK) {
+                int mid = (this.from + this.to) >>> 1;
+                invokeAll(new Points(this.nn, this.points, this.from, mid), new Points(this.nn, this.points, mid, this.to));
+                return;
+            }
+            
+            NeighborSurface surface = NeighborSurface.this;
+            TopK topK = new TopK(surface.k);
+            double[] point = new double[2];
+            for (int i = this.from; i < this.to; i++) {
+                int p = this.points[i];
+                point[0] = p % surface.columns * SurfaceRenderer.STEP;
+                point[1] = p / surface.columns * SurfaceRenderer.STEP;
+                
+                topK.clear();
+                this.nn.neighbors(point, topK);
+                surface.labels[p] = this.nn.vote(topK);
+                surface.kth[p] = topK.isFull() ? topK.distance(topK.size() - 1) : Double.POSITIVE_INFINITY;
+            }
+        }
+    }
+}
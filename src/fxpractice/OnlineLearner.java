@@ -0,0 +1,34 @@
+package fxpractice;
+
+/**
+ * 逐次学習できる学習機
+ * 
+ * <pre>
+ * データが来るたびに重みを更新して、教師データは残さない。
+ * メモリを一定に保ったまま、流れてくるデータで学習し続けられる。
+ * learn()とは別物なので、addした教師データは使わない。
+ * </pre>
+ */
+public interface OnlineLearner extends LearningMachine {
+
+    /**
+     * 1件学習する
+     * 
+     * @param lavel     教師ラベル
+     * @param feature   特徴量（保持しないので使い回してよい）
+     */
+    void partialFit(int lavel, double[] feature);
+    
+    /**
+     * まとめて学習する
+     * 
+     * @param chunk 教師データ（保持しない）
+     */
+    default void partialFit(Dataset chunk) {
+        double[] row = new double[chunk.dimension()];
+        for (int n = 0; n < chunk.size(); n++) {
+            System.arraycopy(chunk.features(), n * row.length, row, 0, row.length);
+            this.partialFit(chunk.lavel(n), row);
+        }
+    }
+}
@@ -2,12 +2,16 @@ package fxpractice;
 
 import java.net.URL;
 import java.util.ResourceBundle;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
 import javafx.scene.canvas.Canvas;
 import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.control.Label;
+import javafx.scene.control.ProgressBar;
 import javafx.scene.control.ToggleGroup;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.paint.Color;
@@ -30,12 +34,33 @@ public class PracticeController implements Initializable {
     @FXML
     private ToggleGroup toggle;
     
+    /** 学習の進み具合 */
+    @FXML
+    private ProgressBar progress;
+    
+    /** 学習の経過 */
+    @FXML
+    private Label status;
+    
 //    /** プルダウン */
 //    @FXML
 //    private ComboBox pull;
     
-    /** 学習機 */
-    private final LearningMachine lm = new SinglePerceptron(2);
+    /** 学習機を作る（学習するたびに新しく作って裏で学習させる） */
+    private final Supplier<LearningMachine> factory = () -> new SinglePerceptron(2);
+    
+    /** 判定と描画に使う学習機（FXスレッドからだけ触る） */
+    private LearningMachine lm = this.factory.get();
+    
+    /** 学習するスレッド（1本だけ。アプリの終了は妨げない） */
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "training");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    /** 学習中のタスク（学習していなければnull） */
+    private TrainingTask task = null;
     
     /**
      * クリアボタン
@@ -47,17 +72,63 @@ public class PracticeController implements Initializable {
     
     /**
      * 学習ボタン
+     * 
+     * <pre>
+     * 学習は別スレッドでやるので、その間も画面は止まらない。
+     * 今の教師データを写した新しい学習機を裏で学習させて、終わったら差し替える（ダブルバッファ）。
+     * 差し替えるまでは前に学習した学習機で判定と描画を続ける。
+     * </pre>
      */
     @FXML
     protected void handleLearnButton(ActionEvent event) {
         
-        GraphicsContext gc = this.canvas.getGraphicsContext2D();
+        // 前の学習が終わっていなければ止める
+        this.cancel();
         
-        // 学習する
-        this.lm.learn();
-
-        // 描画する
-        this.lm.draw(gc);
+        // 今の教師データを写す
+        LearningMachine back = this.factory.get();
+        Dataset dataset = this.lm.getDataset();
+        int snapshot = dataset.size();
+        copy(dataset, 0, back);
+        
+        TrainingTask task = new TrainingTask(back);
+        this.progress.progressProperty().bind(task.progressProperty());
+        this.status.textProperty().bind(task.messageProperty());
+        
+        task.setOnSucceeded(e -> {
+            if (this.task != task) {
+                return;
+            }
+            this.finish("完了");
+            
+            // 学習中にクリックで追加された分も足してから差し替える
+            copy(this.lm.getDataset(), snapshot, back);
+            this.lm = back;
+            
+            // 描画する
+            MachineRenderer.draw(this.lm, this.canvas.getGraphicsContext2D());
+        });
+        task.setOnCancelled(e -> {
+            if (this.task == task) {
+                this.finish("中止しました");
+            }
+        });
+        task.setOnFailed(e -> {
+            if (this.task == task) {
+                this.finish("失敗しました: " + task.getException());
+            }
+        });
+        
+        this.task = task;
+        this.executor.execute(task);
+    }
+    
+    /**
+     * 中止ボタン
+     */
+    @FXML
+    protected void handleCancelButton(ActionEvent event) {
+        this.cancel();
     }
     
 //    /**
@@ -82,8 +153,11 @@ public class PracticeController implements Initializable {
         // 教師ラベルと教師データを設定
         this.lm.add(val, new double[]{event.getX(), event.getY()});
         
-        // 画面に描画
+        // 追加した点で判定が変わるところだけ描き直せれば描き直す
         GraphicsContext gc = this.canvas.getGraphicsContext2D();
+        MachineRenderer.drawAdded(this.lm, gc);
+        
+        // 画面に描画
         gc.setFill(val > 0 ? Color.BLUE : Color.RED);
         gc.fillOval(event.getX(), event.getY(), 5, 5);
     }
@@ -112,6 +186,43 @@ public class PracticeController implements Initializable {
 //        gc.fillOval(x, y, 5, 5);
 //    }
     
+    /**
+     * 学習中ならば止める
+     * 
+     * <pre>
+     * 学習中の学習機は捨てるので、画面の学習機はそのまま。
+     * </pre>
+     */
+    private void cancel() {
+        if (this.task != null) {
+            this.task.cancel();
+            this.finish("中止しました");
+        }
+    }
+    
+    /**
+     * 学習の後片付け
+     * 
+     * @param message   経過の欄に出す文言
+     */
+    private void finish(String message) {
+        this.task = null;
+        this.progress.progressProperty().unbind();
+        this.status.textProperty().unbind();
+        this.status.setText(message);
+    }
+    
+    /**
+     * 教師データのfrom番目から後ろを学習機に追加
+     */
+    private static void copy(Dataset dataset, int from, LearningMachine lm) {
+        double[] row = new double[dataset.dimension()];
+        for (int n = from; n < dataset.size(); n++) {
+            System.arraycopy(dataset.features(), n * row.length, row, 0, row.length);
+            lm.add(dataset.lavel(n), row);
+        }
+    }
+    
     /**
      * クリア
      */
@@ -119,7 +230,9 @@ public class PracticeController implements Initializable {
         
         GraphicsContext gc = canvas.getGraphicsContext2D();
         
-        // 全部消す
+        // 描き足している途中ならば止めて、全部消す
+        SurfaceRenderer.stop(gc);
+        NeighborSurface.invalidate(gc);
         gc.clearRect(0, 0, 400, 400);
         
         // 枠だけつくる
@@ -128,7 +241,10 @@ public class PracticeController implements Initializable {
         gc.fillRect(0, 0, 400, 400);
         gc.strokeRect(0, 0, 400, 400);
         
-        // 学習機もリセットする
+        // 学習中ならば止めて、学習機もリセットする
+        this.cancel();
         this.lm.reset();
+        this.progress.setProgress(0);
+        this.status.setText("");
     }
 }
@@ -0,0 +1,312 @@
+package fxpractice;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.ToIntFunction;
+
+/**
+ * 粗い格子から細かくしていく判定結果
+ * 
+ * <pre>
+ * 格子点（step px 間隔）を、まず coarse 点おきに判定してセルに分ける。
+ * 1回の next() で1段だけ細かくする。
+ *   4隅の判定が一致したセル  中も同じとみなして判定せずに埋める
+ *   食い違ったセル          4つに分けて、次の段で辺の中点と中心を判定する（四分木）
+ * 決定境界から遠いところはほとんど判定しないので、predictの回数が大きく減る。
+ * 段ごとに描画すれば、最初の粗い絵がすぐに出る。
+ * 4隅が一致したセルの中にある、最初のセルより小さい島は見落とす。
+ * 
+ * 同じ段の点はForkJoinで並列に判定するので、predictorは状態を書き換えないこと。
+ * </pre>
+ */
+final class ProgressiveSurface {
+
+    /** 1タスクで受け持つ点の数（これ以下なら分割しない） */
+    private static final int CHUNK = 256;
+    
+    /** 判定（座標を受け取って分類ラベルを返す） */
+    private final ToIntFunction<double[]> predictor;
+    
+    /** 格子の間隔（px） */
+    private final int step;
+    
+    /** 横の格子点の数 */
+    private final int columns;
+    
+    /** 縦の格子点の数 */
+    private final int rows;
+    
+    /** 判定結果（判定していない点は、埋めた値か未定） */
+    private final int[] labels;
+    
+    /** 判定したか（判定待ちを含む） */
+    private final boolean[] exact;
+    
+    /** 値が入っているか（判定したか、埋めたか） */
+    private final boolean[] known;
+    
+    /** 表示用（値が入っていない点は、属するセルの左上の判定） */
+    private final int[] preview;
+    
+    /** 細かくするセル（x0, y0, x1, y1 の順に格子点の番号で並べる） */
+    private int[] cells;
+    
+    /** セルの数 */
+    private int cellCount;
+    
+    /** predictを呼んだ回数 */
+    private int evaluated = 0;
+    
+    /**
+     * コンストラクタ
+     * 
+     * @param width     幅（px）
+     * @param height    高さ（px）
+     * @param step      格子の間隔（px）
+     * @param coarse    最初のセルの大きさ（格子点の数）
+     * @param predictor 判定
+     */
+    ProgressiveSurface(int width, int height, int step, int coarse, ToIntFunction<double[]> predictor) {
+    
+        this.predictor = predictor;
+        this.step = step;
+        this.columns = (width + step - 1) / step;
+        this.rows = (height + step - 1) / step;
+        this.labels = new int[this.columns * this.rows];
+        this.exact = new boolean[this.labels.length];
+        this.known = new boolean[this.labels.length];
+        this.preview = new int[this.labels.length];
+        
+        // 最初のセル（端は半端な大きさになる）
+        int[] xs = edges(this.columns, coarse);
+        int[] ys = edges(this.rows, coarse);
+        this.cells = new int[4 * Math.max(1, (xs.length - 1) * (ys.length - 1))];
+        this.cellCount = 0;
+        for (int j = 0; j + 1 < ys.length; j++) {
+            for (int i = 0; i + 1 < xs.length; i++) {
+                this.cells[4 * this.cellCount] = xs[i];
+                this.cells[4 * this.cellCount + 1] = ys[j];
+                this.cells[4 * this.cellCount + 2] = xs[i + 1];
+                this.cells[4 * this.cellCount + 3] = ys[j + 1];
+                this.cellCount++;
+            }
+        }
+        
+        // 1点しかない向きがあればセルが作れないので、全部の点を判定する
+        if (this.cellCount == 0) {
+            int[] all = new int[this.labels.length];
+            for (int p = 0; p < all.length; p++) {
+                all[p] = p;
+                this.exact[p] = true;
+            }
+            this.evaluate(all, all.length);
+        }
+    }
+    
+    /**
+     * セルの境目（0から size おきに、最後の点を必ず含む）
+     */
+    private static int[] edges(int count, int size) {
+        int n = (count - 1 + size - 1) / size + 1;
+        int[] res = new int[Math.max(1, n)];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = Math.min(i * size, count - 1);
+        }
+        return res;
+    }
+    
+    /**
+     * もう細かくするところがないか
+     */
+    boolean isDone() {
+        return this.cellCount == 0;
+    }
+    
+    /**
+     * 1段細かくする
+     * 
+     * <pre>
+     * 今のセルの4隅のうち判定していない点を判定してから、
+     * 一致したセルを埋めて、食い違ったセルを4つに分ける（分けたセルの4隅は次の段で判定する）。
+     * </pre>
+     */
+    void next() {
+    
+        // 判定する点を集める（同じ点は1回だけ）
+        int[] points = new int[this.cellCount * 4];
+        int count = 0;
+        for (int c = 0; c < this.cellCount; c++) {
+            int x0 = this.cells[4 * c];
+            int y0 = this.cells[4 * c + 1];
+            int x1 = this.cells[4 * c + 2];
+            int y1 = this.cells[4 * c + 3];
+            for (int y : new int[] { y0, y1 }) {
+                for (int x : new int[] { x0, x1 }) {
+                    int p = y * this.columns + x;
+                    if (!this.exact[p]) {
+                        this.exact[p] = true;
+                        points[count++] = p;
+                    }
+                }
+            }
+        }
+        this.evaluate(points, count);
+        
+        // 一致したら埋めて、食い違ったら分ける
+        int[] next = new int[this.cellCount * 16];
+        int nextCount = 0;
+        for (int c = 0; c < this.cellCount; c++) {
+            int x0 = this.cells[4 * c];
+            int y0 = this.cells[4 * c + 1];
+            int x1 = this.cells[4 * c + 2];
+            int y1 = this.cells[4 * c + 3];
+            
+            int label = this.labels[y0 * this.columns + x0];
+            boolean same = label == this.labels[y0 * this.columns + x1]
+                    && label == this.labels[y1 * this.columns + x0]
+                    && label == this.labels[y1 * this.columns + x1];
+                    
+            if (same) {
+                this.fill(x0, y0, x1, y1, label);
+                continue;
+            }
+            
+            // これ以上分けられなければ4隅だけで終わり
+            if (x1 - x0 <= 1 && y1 - y0 <= 1) {
+                continue;
+            }
+            
+            // 表示は左上の判定で仮に埋めておく
+            this.sketch(x0, y0, x1, y1, label);
+            
+            int[] xs = x1 - x0 > 1 ? new int[] { x0, (x0 + x1) / 2, x1 } : new int[] { x0, x1 };
+            int[] ys = y1 - y0 > 1 ? new int[] { y0, (y0 + y1) / 2, y1 } : new int[] { y0, y1 };
+            for (int j = 0; j + 1 < ys.length; j++) {
+                for (int i = 0; i + 1 < xs.length; i++) {
+                    next[4 * nextCount] = xs[i];
+                    next[4 * nextCount + 1] = ys[j];
+                    next[4 * nextCount + 2] = xs[i + 1];
+                    next[4 * nextCount + 3] = ys[j + 1];
+                    nextCount++;
+                }
+            }
+        }
+        this.cells = next;
+        this.cellCount = nextCount;
+    }
+    
+    /**
+     * セルを同じ判定で埋める（判定した点はそのまま）
+     */
+    private void fill(int x0, int y0, int x1, int y1, int label) {
+        for (int y = y0; y <= y1; y++) {
+            for (int x = x0; x <= x1; x++) {
+                int p = y * this.columns + x;
+                if (!this.exact[p]) {
+                    this.labels[p] = label;
+                    this.known[p] = true;
+                }
+                this.preview[p] = this.labels[p];
+            }
+        }
+    }
+    
+    /**
+     * 表示だけ仮に埋める（値が入っている点はその値）
+     */
+    private void sketch(int x0, int y0, int x1, int y1, int label) {
+        for (int y = y0; y <= y1; y++) {
+            for (int x = x0; x <= x1; x++) {
+                int p = y * this.columns + x;
+                this.preview[p] = this.known[p] ? this.labels[p] : label;
+            }
+        }
+    }
+    
+    /**
+     * 点をまとめて判定する
+     */
+    private void evaluate(int[] points, int count) {
+        if (count > 0) {
+            ForkJoinPool.commonPool().invoke(new Points(Arrays.copyOf(points, count), 0, count));
+            this.evaluated += count;
+        }
+    }
+    
+    /**
+     * 表示用の判定結果（格子点ごと、行優先）
+     * 
+     * <pre>
+     * コピーしないので書き換えないこと。
+     * </pre>
+     */
+    int[] preview() {
+        return this.preview;
+    }
+    
+    /**
+     * 横の格子点の数
+     */
+    int columns() {
+        return this.columns;
+    }
+    
+    /**
+     * 縦の格子点の数
+     */
+    int rows() {
+        return this.rows;
+    }
+    
+    /**
+     * predictを呼んだ回数
+     */
+    int evaluated() {
+        return this.evaluated;
+    }
+    
+    /**
+     * 点の範囲を受け持つタスク
+     */
+    private class Points extends RecursiveAction {
+    
+        private static final long serialVersionUID = 1L;
+        
+        private final int[] points;
+        
+        /** 開始位置 */
+        private final int from;
+        
+        /** 終了位置（含まない） */
+        private final int to;
+        
+        Points(int[] points, int from, int to) {
+            this.points = points;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected void compute() {
+        
+            // 大きければ半分に分ける
+            if (this.to - this.from > CHUNK) {
+                int mid = (this.from + this.to) >>> 1;
+                invokeAll(new Points(this.points, this.from, mid), new Points(this.points, mid, this.to));
+                return;
+            }
+            
+            double[] point = new double[2];
+            for (int i = this.from; i < this.to; i++) {
+                int p = this.points[i];
+                point[0] = p % ProgressiveSurface.this.columns * ProgressiveSurface.this.step;
+                point[1] = p / ProgressiveSurface.this.columns * ProgressiveSurface.this.step;
+                int label = ProgressiveSurface.this.predictor.applyAsInt(point);
+                ProgressiveSurface.this.labels[p] = label;
+                ProgressiveSurface.this.known[p] = true;
+                ProgressiveSurface.this.preview[p] = label;
+            }
+        }
+    }
+}
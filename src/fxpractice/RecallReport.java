@@ -0,0 +1,136 @@
+package fxpractice;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * k-近傍法の近似モードの取りこぼしと速さ
+ * 
+ * <pre>
+ * 同じ教師データで総当たりとHNSWグラフの近傍を比べて、efSearchごとに表にする。
+ *   recall   総当たりのk近傍のうち、近似でも見つかった割合
+ *   us/query 1問い合わせあたりの時間（マイクロ秒）
+ *   speedup  総当たりの何倍速いか
+ * データは SyntheticData で作る。問い合わせは教師データと同じ分布から別に作る。
+ * 
+ * 使い方
+ *   java fxpractice.RecallReport --size=100000 --dim=16 --k=10 --queries=1000 --m=16 --ef-construction=200 --ef=10,20,50,100,200
+ * </pre>
+ */
+public final class RecallReport {
+
+    private RecallReport() {
+    }
+    
+    public static void main(String[] args) {
+    
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("unknown option: " + arg);
+            }
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        
+        int size = Integer.parseInt(options.getOrDefault("size", "100000"));
+        int dim = Integer.parseInt(options.getOrDefault("dim", "16"));
+        int k = Integer.parseInt(options.getOrDefault("k", "10"));
+        int queries = Integer.parseInt(options.getOrDefault("queries", "1000"));
+        int m = Integer.parseInt(options.getOrDefault("m", "16"));
+        int efConstruction = Integer.parseInt(options.getOrDefault("ef-construction", "200"));
+        int[] efs = Arrays.stream(options.getOrDefault("ef", "10,20,50,100,200").split(",")).mapToInt(Integer::parseInt).toArray();
+        
+        Dataset train = SyntheticData.blobs(size, dim, 2, 1);
+        Dataset test = SyntheticData.blobs(queries, dim, 2, 2);
+        
+        // 総当たり
+        NearestNeighbor exact = new NearestNeighbor(k).setUseIndex(false);
+        fill(exact, train);
+        
+        // 近似（追加しながらグラフを作るので、追加の時間がそのまま構築の時間）
+        NearestNeighbor approximate = new NearestNeighbor(k).setApproximate(m, efConstruction, k);
+        long start = System.nanoTime();
+        fill(approximate, train);
+        double build = (System.nanoTime() - start) / 1e9;
+        System.out.printf("size=%d dim=%d k=%d M=%d efConstruction=%d build=%.2fs%n", size, dim, k, m, efConstruction, build);
+        
+        int[][] truth = new int[queries][];
+        double exactTime = measure(exact, test, k, truth, null);
+        System.out.printf("%-8s %8s %10s %8s%n", "ef", "recall", "us/query", "speedup");
+        System.out.printf("%-8s %8.4f %10.1f %8.1f%n", "exact", 1.0, exactTime, 1.0);
+        
+        for (int ef : efs) {
+            approximate.setEfSearch(ef);
+            double[] recall = new double[1];
+            double time = measure(approximate, test, k, truth, recall);
+            System.out.printf("%-8d %8.4f %10.1f %8.1f%n", ef, recall[0], time, exactTime / time);
+        }
+    }
+    
+    /**
+     * 教師データを全部追加する
+     */
+    private static void fill(NearestNeighbor nn, Dataset dataset) {
+        double[] row = new double[dataset.dimension()];
+        for (int n = 0; n < dataset.size(); n++) {
+            System.arraycopy(dataset.features(), n * row.length, row, 0, row.length);
+            nn.add(dataset.lavel(n), row);
+        }
+        nn.learn();
+    }
+    
+    /**
+     * 全部の問い合わせで近傍を求めて時間を測る
+     * 
+     * <pre>
+     * recallがnullならば結果をtruthに書く（総当たり）。
+     * そうでなければtruthと比べて、見つかった割合をrecall[0]に書く。
+     * 1回目はウォームアップとして捨て、2回目を測る。
+     * </pre>
+     * 
+     * @return 1問い合わせあたりの時間（マイクロ秒）
+     */
+    private static double measure(NearestNeighbor nn, Dataset test, int k, int[][] truth, double[] recall) {
+    
+        TopK topK = new TopK(k);
+        double[] row = new double[test.dimension()];
+        long elapsed = 0;
+        long found = 0;
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            for (int n = 0; n < test.size(); n++) {
+                System.arraycopy(test.features(), n * row.length, row, 0, row.length);
+                topK.clear();
+                nn.neighbors(row, topK);
+                
+                if (round == 0) {
+                    continue;
+                }
+                int[] indexes = new int[topK.size()];
+                for (int i = 0; i < indexes.length; i++) {
+                    indexes[i] = topK.index(i);
+                }
+                if (recall == null) {
+                    truth[n] = indexes;
+                } else {
+                    for (int index : indexes) {
+                        for (int t : truth[n]) {
+                            if (index == t) {
+                                found++;
+                                break;
+                            }
+                        }
+                    }
+                }
+            }
+            elapsed = System.nanoTime() - start;
+        }
+        
+        if (recall != null) {
+            recall[0] = (double) found / ((long) test.size() * k);
+        }
+        return elapsed / 1e3 / test.size();
+    }
+}
@@ -1,25 +1,18 @@
 package fxpractice;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
-import javafx.scene.canvas.GraphicsContext;
-import javafx.scene.paint.Color;
+import java.util.Arrays;
+import java.util.stream.IntStream;
 
 /**
  * さぽーとべくたーましーん（強）
  */
-public class SVM2 implements LearningMachine {
-    
-    /** 認識したパターン */
-    private final List<LearningData> learning = new ArrayList<>();
-    
-    /** 学習係数 */
-    private final double learningRate = 0.2;
+public class SVM2 extends LearningMachineBase implements KernelMachine {
+
+    /** マージンの大きさとペナルティのトレードオフ（ハードマージンなので無限大） */
+    private static final double C = Double.POSITIVE_INFINITY;
     
-    /** 最大更新回数 */
-    private final double maxIteration = 5000;
+    /** 最大周回数 */
+    private int maxEpoch = 1000;
     
     /** 重みベクトル（配列のサイズは入力ベクトルの次元） */
     private double[] weight;
@@ -27,237 +20,188 @@ public class SVM2 implements LearningMachine {
     /** バイアス */
     private double bias;
     
+    /** 判定用に詰め直したもの（重みベクトルとバイアスだけ） */
+    private SvmPredictor predictor;
+    
+    /** スケーリングした特徴量（行優先） */
+    private double[] x = new double[0];
+    
+    /** 未定乗数 */
+    private double[] lambda = new double[0];
+    
+    /** 特徴量のスケーリングの決め方（学習するたびに教師データから決める） */
+    private FeatureScaler.Method scaling = FeatureScaler.Method.MIN_MAX;
+    
+    /** 特徴量のスケーリング（学習するまでは画面の座標用） */
+    private FeatureScaler scaler;
+    
+    /** 判定でスケーリングした特徴量を書く配列（スレッドごとに使い回す） */
+    private final ThreadLocal<double[]> scaled;
+    
     /**
      * コンストラクタ
      */
     public SVM2(int futureSize) {
+        super(futureSize);
         this.weight = new double[futureSize];
+        this.predictor = SvmPredictor.linear(this.weight, 0);
+        this.scaler = FeatureScaler.canvas(futureSize);
+        this.scaled = ThreadLocal.withInitial(() -> new double[futureSize]);
     }
     
-    @Override
-    public void add(int cls, double[] data) {
-        this.learning.add(new LearningData(cls, data));
+    /**
+     * 特徴量のスケーリングの決め方を設定
+     */
+    public SVM2 setScaling(FeatureScaler.Method scaling) {
+        this.scaling = scaling;
+        return this;
+    }
+    
+    /**
+     * 最大周回数を設定
+     * 
+     * <pre>
+     * 線形分離できないデータではハードマージンの解がないので、ここで打ち切る。
+     * </pre>
+     */
+    public SVM2 setMaxEpoch(int maxEpoch) {
+        this.maxEpoch = maxEpoch;
+        return this;
     }
     
+    /**
+     * 学習
+     * 
+     * <pre>
+     * 線形カーネルなので、カーネル行列を作らずに双対座標降下法で重みベクトルを直接求める。
+     * 1周O(データ数×次元)なので、データが多くても学習できる。
+     * </pre>
+     */
     @Override
     public void learn() {
+        this.learn(TrainingMonitor.NONE);
+    }
+    
+    /**
+     * 学習（1周ごとに経過を知らせる）
+     */
+    @Override
+    public void learn(TrainingMonitor monitor) {
+    
+        int n = this.dataset.size();
         
-        // 特徴量スケーリングする
-        this.learning.forEach(ld -> ld.scalingFeature = this.scaling(ld.feature));
-        
-        // 正負各側のサポートベクターが確定したか
-        boolean isFixPositive = false;
-        boolean isFixNegative = false;
+        // 特徴量スケーリングする（係数は教師データから決める）
+        this.scaler = FeatureScaler.fit(this.scaling, this.dataset);
+        this.x = this.scaler.transform(this.dataset);
         
-        // 正負のデータに分ける
-        Map<Boolean, List<LearningData>> partition = this.learning.stream()
-                                                                  .collect(Collectors.partitioningBy(ld -> ld.lavel >= 0));
-        List<LearningData> positive = partition.get(true);
-        List<LearningData> negative = partition.get(false);
+        // 前回の未定乗数は引き継ぐ（追加した分は0から）
+        this.lambda = Arrays.copyOf(this.lambda, n);
         
-        // 勾配法で未定乗数を求める
-        // λ>=0の条件とsum(λ*label)=0の条件はどう満たせばいいの？
-        for (int i = 0; i < maxIteration; i++) {
-
-            if (!isFixPositive) {
-                
-                boolean isFilter = false;
-                
-                double[] positiveDelta = positive.stream().mapToDouble(ld -> this.learningRate * this.lagrange_d(ld)).toArray();
-                
-                for (int j = 0; j < positive.size(); j++) {
-                    LearningData ld = positive.get(j);
-                    ld.lambda += positiveDelta[j];
-                    if (ld.lambda < 0) {
-                        ld.lambda = 0;
-                        isFilter = true;
-                    }
-                }
-                
-                if (isFilter) {
-                    
-                    positive = positive.stream().filter(ld -> ld.lambda > 0).collect(Collectors.toList());
-                    
-                    if (positive.stream().filter(ld -> ld.isSupportVector()).count() == 1) {
-                        isFixPositive = true;
-                    } else {
-                        double positiveSum = positive.stream().mapToDouble(ld -> ld.lambda).sum();
-                        positive.stream().forEach(ld -> ld.lambda = ld.lambda / positiveSum);
-                    }
-                }
-            }
-            
-            if (!isFixNegative) {
-                
-                boolean isFilter = false;
-                
-                double[] negativeDelta = negative.stream().mapToDouble(ld -> this.learningRate * this.lagrange_d(ld)).toArray();
-                
-                for (int j = 0; j < negative.size(); j++) {
-                    LearningData ld = negative.get(j);
-                    ld.lambda += negativeDelta[j];
-                    if (ld.lambda < 0) {
-                        ld.lambda = 0;
-                        isFilter = true;
-                    }
-                }
-                
-                if (isFilter) {
-                    
-                    negative = negative.stream().filter(ld -> ld.lambda > 0).collect(Collectors.toList());
-                    
-                    if (negative.stream().filter(ld -> ld.isSupportVector()).count() == 1) {
-                        isFixNegative = true;
-                    } else {
-                        double positiveSum = negative.stream().mapToDouble(ld -> ld.lambda).sum();
-                        negative.stream().forEach(ld -> ld.lambda = ld.lambda / positiveSum);
-                    }
-                }
-            }
-            
-            if (isFixPositive && isFixNegative) {
-                break;
-            }
-        }
+        LinearSolver solver = new LinearSolver(this.x, this.dataset.lavels(), n, this.weight.length).setC(C).setMaxEpoch(this.maxEpoch).setMonitor(monitor);
+        solver.solve(this.lambda);
+        this.weight = solver.getWeight();
+        this.bias = solver.getBias();
+        this.predictor = SvmPredictor.linear(this.weight, this.bias);
         
-        // ラグランジュ乗数を確認
-        System.out.println(this.learning.stream().map(ld -> String.valueOf(ld.lambda)).collect(Collectors.joining(" ")));
-
-        // サポートベクトルを抜き出し
-        List<LearningData> supportVectors = this.learning.stream().filter(ld -> ld.isSupportVector()).collect(Collectors.toList());
-
-        // 重みベクトルを更新
-        for (int i = 0; i < this.weight.length; i++) {
-            final int idx = i;
-            this.weight[i] = supportVectors.stream()
-                                           .mapToDouble(ld -> ld.lambda * ld.lavel * ld.scalingFeature[idx])
-                                           .sum();
-        }
-        
-        // バイアスを更新（b = (1 / N_s)・∑(t_n - ∑λ_m・t_m・k(xn・xm)）
-        double sum = 0.;
-        for (int n = 0; n < supportVectors.size(); n++) {
-            LearningData nn = supportVectors.get(n);
-            double tmp = 0.;
-            for (int m = 0; m < supportVectors.size(); m++) {
-                LearningData mm = supportVectors.get(m);
-                tmp += mm.lambda * mm.lavel * this.kernel(nn.scalingFeature, mm.scalingFeature);
-            }
-            sum += nn.lavel - tmp;
-        }
-        this.bias = sum / supportVectors.size();
+        // 未定乗数は件数が多いと出しきれないので、数だけ確認
+        System.out.println("epochs=" + solver.getEpochs() + " support vectors=" + this.getSupportVectors().length);
+    }
+    
+    @Override
+    public int predict(double[] data) {
+        double[] row = this.scaled.get();
+        this.scaler.transform(data, 0, row, 0, 1);
+        return this.predictor.decision(row, 0) > 0 ? 1 : -1;
     }
     
     /**
-     * ラグランジュ関数の微分
-     * 
-     * ∂L/∂a_n = 1 - ∑(λ・tn・tm・k(xn・xm))
+     * まとめて判定
      */
-    private double lagrange_d(LearningData learningData) {
-        
-        double sum = this.learning.stream().filter(ld -> ld.lambda > 0)
-                                           .mapToDouble(ld -> ld.lambda * learningData.lavel * ld.lavel * this.kernel(learningData.scalingFeature, ld.scalingFeature))
-                                           .sum();
-        
-        return 1 - sum;
-    } 
+    @Override
+    public void predictBatch(double[] rowsFlat, int dim, int[] out) {
+        double[] decision = new double[out.length];
+        this.decisionBatch(rowsFlat, dim, decision);
+        for (int r = 0; r < out.length; r++) {
+            out[r] = decision[r] > 0 ? 1 : -1;
+        }
+    }
     
     /**
-     * カーネル
+     * まとめて決定関数の値を計算
      */
-    private double kernel(double[] x, double[] y) {
-        return this.dot(x, y);  // 線形カーネル
+    @Override
+    public void decisionBatch(double[] rowsFlat, int dim, double[] out) {
+        double[] scaled = new double[out.length * dim];
+        this.scaler.transform(rowsFlat, 0, scaled, 0, out.length);
+        this.predictor.decisionBatch(scaled, dim, out);
     }
     
     /**
-     * 内積
+     * サポートベクター判定
      */
-    private double dot(double[] x, double[] y) {
-        double res = 0;
-        for (int i = 0; i < x.length; i++) {
-            res += x[i] * y[i];
-        }
-        return res;
+    private boolean isSupportVector(int i) {
+        return this.lambda[i] > 0.0001;
     }
     
     /**
-     * 入力データをスケーリングする
-     * 
-     * TODO スケールの幅をどう決めるか
-     * 
-     * @param data
-     * @return 
+     * サポートベクター（の候補）のインデックス
      */
-    private double[] scaling(double[] data) {
-        double[] res = new double[data.length];
-        for (int i = 0; i < data.length; i++) {
-            res[i] = data[i] / 200 - 1;
-        }
-        return res;
-    }
-
     @Override
-    public int predict(double[] data) {
-        return this.dot(this.scaling(data), weight) + bias > 0 ? 1 : -1;
+    public int[] getSupportVectors() {
+        return IntStream.range(0, this.lambda.length).filter(this::isSupportVector).toArray();
     }
-
-    @Override
-    public void draw(GraphicsContext gc) {
-        
-        gc.setStroke(Color.GREEN);
-        learning.stream().filter(ld -> ld.isSupportVector())
-                .forEach(ld -> gc.strokeOval(ld.feature[0] - 2, ld.feature[1] - 2, 9, 9));
-        
-        int w = (int) gc.getCanvas().getWidth();
-        int h = (int) gc.getCanvas().getHeight();
-        
-        for (int x = 0; x < w; x += 2) {
-            for (int y = 0; y < h; y += 2) {
-                int ans = this.predict(new double[]{x, y});
-                gc.setFill(ans > 0 ? Color.BLUE : Color.RED);
-                gc.fillOval(x, y, 1, 1);
-            }
-        }
-    }
-
+    
     @Override
     public void reset() {
-        this.learning.clear();
+        this.dataset.clear();
+        this.x = new double[0];
+        this.lambda = new double[0];
         this.weight = new double[this.weight.length];
-    }
-
-    @Override
-    public String getTitle() {
-        return "サポートベクターマシン（ハードマージン）";
+        this.bias = 0;
+        this.predictor = SvmPredictor.linear(this.weight, 0);
+        this.scaler = FeatureScaler.canvas(this.weight.length);
     }
     
     /**
-     * 学習データ
+     * モデルを書き出す
+     * 
+     * <pre>
+     * 判定には重みベクトルとバイアスしか使わないが、
+     * 描画と学習し直しのためにサポートベクターも書いておく。
+     * </pre>
      */
-    private static class LearningData {
-        
-        /** 分類ラベル */
-        final int lavel;
-        
-        /** 特徴量 */
-        final double[] feature;
-        
-        /** スケーリングした特徴量 */
-        double[] scalingFeature;
-        
-        /** 未定乗数 */
-        double lambda = 1.;
+    @Override
+    public void writeModel(ModelFile.Writer out) {
         
-        LearningData(int lavel, double[] feature) {
-            this.lavel = lavel;
-            this.feature = feature;
-        }
+        int[] svs = this.getSupportVectors();
+        double[] lambda = IntStream.of(svs).mapToDouble(i -> this.lambda[i]).toArray();
         
-        /**
-         * サポートベクター判定
-         */
-        boolean isSupportVector() {
-            return lambda > 0.0001;
-        }
+        out.writeInt(this.weight.length);
+        out.writeDouble(this.bias);
+        out.writeDoubles(this.weight, 0, this.weight.length);
+        out.writeDataset(this.dataset, svs);
+        out.writeDoubles(lambda, 0, lambda.length);
+        this.scaler.write(out);
+    }
+    
+    /**
+     * モデルを読み込む
+     */
+    static SVM2 readModel(ModelFile.Reader in) {
+        
+        SVM2 svm = new SVM2(in.readInt());
+        svm.bias = in.readDouble();
+        in.readDoubles(svm.weight);
+        svm.predictor = SvmPredictor.linear(svm.weight, svm.bias);
+        in.readDataset(svm.dataset);
+        svm.lambda = in.readDoubles();
+        svm.scaler = FeatureScaler.read(in, svm.weight.length);
+        svm.x = svm.scaler.transform(svm.dataset);
+        return svm;
+    }
+    
+    @Override
+    public String getTitle() {
+        return "サポートベクターマシン（ハードマージン）";
     }
 }
@@ -1,20 +1,18 @@
 package fxpractice;
 
-import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.List;
-import java.util.Optional;
-import java.util.stream.Collectors;
-import javafx.scene.canvas.GraphicsContext;
-import javafx.scene.paint.Color;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+public class SVM_SMO extends LearningMachineBase implements KernelMachine {
 
-public class SVM_SMO implements LearningMachine {
-    
     /** 更新閾値 */
     private static final double EPS = 0.001;
     
-    /** 認識したパターン */
-    protected final List<LearningData> learning = new ArrayList<>();
+    /** k11 - 2 * k12 + k22 が0以下のときに代わりに使う値 */
+    private static final double TAU = 1e-12;
+    
+    /** これより小さいλの変化は動かなかったとみなす（絶対値） */
+    private static final double MIN_STEP = 1e-12;
     
     /** マージンの大きさとペナルティのトレードオフ（C>0） */
     protected static final double C = 1000;
@@ -22,297 +20,712 @@ public class SVM_SMO implements LearningMachine {
     /** 最大更新回数 */
     protected final double maxIteration = 10000;
     
+    /** 経過を知らせる間隔（更新回数） */
+    private static final int REPORT_INTERVAL = 100;
+    
+    /** 共有している教師データで学習するときの、自分のカーネルキャッシュの行数 */
+    private static final int SHARED_CACHE_ROWS = 4;
+    
     /** 重みベクトル（配列のサイズは入力ベクトルの次元） */
     protected double[] weight;
     
     /** バイアス */
     private double bias;
     
-    /** サポートベクター */
-    private List<LearningData> supportVectors = null;
-
+    /** スケーリングした特徴量（行優先） */
+    protected double[] x = new double[0];
+    
+    /** 未定乗数 */
+    protected double[] lambda = new double[0];
+    
+    /** 現在の未定乗数で計算した決定関数（学習中はバイアスを含まない） */
+    protected double[] y = new double[0];
+    
+    /** サポートベクター（教師データのインデックス） */
+    private int[] supportVectors = null;
+    
+    /** 判定用に詰め直したもの（学習が終わるまではnull） */
+    private SvmPredictor predictor = null;
+    
+    /** カーネル（既定のγ=12.5はこれまでのσ=5の式と同じ値） */
+    private Kernel kernel = Kernel.rbf(12.5);
+    
+    /** カーネルキャッシュの上限（MB） */
+    private double cacheSize = 100;
+    
+    /** カーネルキャッシュ（学習中のみ） */
+    private KernelCache cache = null;
+    
+    /** 他の学習機と共有している教師データ（nullなら自分の教師データで学習する） */
+    private Shared shared = null;
+    
+    /** 学習に使うデータが共有している教師データの何番目か（自分の教師データで学習するときはnull） */
+    private int[] rows = null;
+    
+    /** 学習に使うデータのラベル（自分の教師データで学習するときはnull） */
+    private int[] lavels = null;
+    
+    /** 特徴量のスケーリングの決め方（学習するたびに教師データから決める） */
+    private FeatureScaler.Method scaling = FeatureScaler.Method.MIN_MAX;
+    
+    /** 特徴量のスケーリング（学習するまでは画面の座標用） */
+    private FeatureScaler scaler;
+    
+    /** 判定でスケーリングした特徴量を書く配列（スレッドごとに使い回す） */
+    private final ThreadLocal<double[]> scaled;
+    
+    /** 前回の学習でカーネルキャッシュにあった回数 */
+    private long cacheHits = 0;
+    
+    /** 前回の学習でカーネルキャッシュになかった回数 */
+    private long cacheMisses = 0;
+    
     public SVM_SMO(int futureSize) {
+        super(futureSize);
         this.weight = new double[futureSize];
+        this.scaler = FeatureScaler.canvas(futureSize);
+        this.scaled = ThreadLocal.withInitial(() -> new double[futureSize]);
     }
     
-    @Override
-    public void add(int cls, double[] data) {
-        this.learning.add(new LearningData(cls, data));
+    /**
+     * カーネルを設定
+     * 
+     * <pre>
+     * 線形カーネルのときは、判定は重みベクトルとの内積1回で済む。
+     * </pre>
+     */
+    public SVM_SMO setKernel(Kernel kernel) {
+        this.kernel = kernel;
+        return this;
+    }
+    
+    /**
+     * 特徴量のスケーリングの決め方を設定
+     */
+    public SVM_SMO setScaling(FeatureScaler.Method scaling) {
+        this.scaling = scaling;
+        return this;
+    }
+    
+    /**
+     * カーネルキャッシュの上限を設定
+     * 
+     * @param cacheSize 上限（MB）
+     */
+    public SVM_SMO setCacheSize(double cacheSize) {
+        this.cacheSize = cacheSize;
+        return this;
+    }
+    
+    /**
+     * カーネル
+     */
+    Kernel getKernel() {
+        return this.kernel;
+    }
+    
+    /**
+     * 特徴量のスケーリングの決め方
+     */
+    FeatureScaler.Method getScaling() {
+        return this.scaling;
+    }
+    
+    /**
+     * 他の学習機と共有している教師データの一部で学習するように設定
+     * 
+     * <pre>
+     * 多クラスの学習で使う。教師データはコピーせずに、sharedのrows番目をlavels（-1/1）で学習する。
+     * スケーリングとカーネルキャッシュもsharedのものを使い、自分のキャッシュは直近の数行だけにする。
+     * 学習が終わったらサポートベクターだけ自分の教師データに写して、共有をやめる。
+     * sharedをnullにすると自分の教師データで学習する。
+     * </pre>
+     * 
+     * @param shared    共有している教師データ
+     * @param rows      i番目のデータがsharedの何番目か
+     * @param lavels    i番目のデータのラベル（-1/1）
+     */
+    void setShared(Shared shared, int[] rows, int[] lavels) {
+        this.shared = shared;
+        this.rows = shared != null ? rows : null;
+        this.lavels = shared != null ? lavels : null;
+    }
+    
+    /**
+     * 前回の学習でカーネルキャッシュにあった回数
+     */
+    public long getCacheHits() {
+        return this.cacheHits;
+    }
+    
+    /**
+     * 前回の学習でカーネルキャッシュになかった回数
+     */
+    public long getCacheMisses() {
+        return this.cacheMisses;
     }
     
     @Override
     public void learn() {
+        this.learn(TrainingMonitor.NONE);
+    }
+    
+    /**
+     * 学習（一定の更新回数ごとに経過を知らせる）
+     */
+    @Override
+    public void learn(TrainingMonitor monitor) {
+    
+        int n = this.shared != null ? this.rows.length : this.dataset.size();
+        
+        // 特徴量スケーリングする（係数は教師データから決める。共有しているときは変換済みのものを使う）
+        if (this.shared != null) {
+            this.scaler = this.shared.scaler;
+            this.x = this.shared.x;
+            this.lambda = new double[n];
+        } else {
+            this.scaler = FeatureScaler.fit(this.scaling, this.dataset);
+            this.x = this.scaler.transform(this.dataset);
+            
+            // 前回の未定乗数は引き継ぐ（追加した分は0から）
+            this.lambda = Arrays.copyOf(this.lambda, n);
+        }
+        this.y = new double[n];
         
-        // 特徴量スケーリングする
-        this.learning.forEach(ld -> ld.scalingFeature = this.scaling(ld.feature));
+        // 学習中は全データで決定関数を計算する
+        this.supportVectors = null;
+        this.predictor = null;
+        
+        // カーネルはキャッシュしながら使う（共有しているときは共有しているキャッシュから引く）
+        if (this.shared != null) {
+            this.cache = KernelCache.withRows(n, SHARED_CACHE_ROWS, this.shared.view(this.rows));
+        } else {
+            this.cache = new KernelCache(n, this.cacheSize, KernelCache.Source.of(this.kernel, this.x, this.weight.length));
+        }
         
         // 未定乗数を計算
-        this.caluculateLambda();
+        this.caluculateLambda(monitor);
         
-        // ラグランジュ乗数を確認
-        System.out.println(this.learning.stream().map(ld -> String.valueOf(ld.lambda)).collect(Collectors.joining(" ")));
-
-        // サポートベクトルを抜き出し
-        this.supportVectors = this.learning.stream().filter(ld -> ld.isSupportVector()).collect(Collectors.toList());
-
-        // 重みベクトルを更新
-        this.updateWeightVector();
+        // 判定に使うものを抜き出し（上限Cに張り付いたものも効くので、λ>0をすべて使う）
+        this.supportVectors = IntStream.range(0, n).filter(i -> this.lambda[i] > 0).toArray();
+        
+        // 未定乗数は件数が多いと出しきれないので、数だけ確認
+        System.out.println("support vectors=" + this.supportVectors.length + " / " + n);
         
         // バイアスを更新
         this.updateBias();
+        
+        // 共有しているときは、サポートベクターだけ自分の教師データに写す
+        if (this.shared != null) {
+            this.detach();
+        }
+        
+        // 重みベクトルを更新
+        this.updateWeightVector();
+        
+        // 判定用に詰め直す
+        this.compile();
+        
+        // キャッシュは学習中しか使わないので捨てる
+        this.cacheHits = this.cache.getHits();
+        this.cacheMisses = this.cache.getMisses();
+        this.cache = null;
     }
     
-    protected void caluculateLambda() {
+    /**
+     * 未定乗数を計算
+     * 
+     * <pre>
+     * 2つの変数はKKT条件に一番違反している組（WSS2、Fan et al. 2005）で選ぶ。
+     * 決定関数の値yは最初に一度だけ計算して、あとは更新のたびに差分だけ足す。
+     * 1回の更新がO(n)で済む。
+     * 終わるのは違反の大きさがEPS以内に収まったとき（findAlpha1が-1）だけ。
+     * REPORT_INTERVAL回ごとに経過を知らせて、中止されていたら止める。
+     * </pre>
+     */
+    protected void caluculateLambda(TrainingMonitor monitor) {
         
-        for (int i = 0; i < maxIteration; i++) {
+        // 現在のλで計算した値を保持しておく
+        this.updateDecision();
         
-            // 現在のλで計算した値を保持しておく
-            this.learning.forEach(ld -> ld.y = this.decision(ld.scalingFeature));
+        // 1回の更新で動くのは2変数だけなので、データ数に合わせて上限を増やす（libsvmと同じ）
+        long limit = Math.max((long) maxIteration, 100L * this.y.length);
+        
+        for (long i = 0; i < limit; i++) {
             
-            // KKT条件に違反する変数がある
-            List<LearningData> alpha2s = this.learning.stream().filter(ld -> ld.checkKkt1())
-                                                                .filter(ld -> !ld.checkKkt2())
-                                                                .collect(Collectors.toList());
+            // 1つめの変数α2を選択
+            int alpha2 = this.findAlpha2();
+            if (alpha2 < 0) {
+                break;
+            }
             
-            // 0<λ<CでKKT条件を満たさないものがなければ、それ以外でも探す
-            if (alpha2s.isEmpty()) {
-                alpha2s = this.learning.stream().filter(ld -> !ld.checkKkt2()).collect(Collectors.toList());
+            // 2つめの変数α1を選択（すべてKKT条件を満たしていれば-1）
+            int alpha1 = this.findAlpha1(alpha2);
+            if (alpha1 < 0) {
+                break;
             }
             
-            // すべてKKT条件を満たしたので終了
-            if (alpha2s.isEmpty()) {
+            // 動かせなかったら、次も同じ組を選ぶだけなので止める（WSS2には他の候補がない）
+            if (!this.update(alpha1, alpha2)) {
                 break;
             }
             
-            // くるくるする
-            boolean isUpdate = true;
-            for (LearningData alpha2 : alpha2s) {
-                
-                // 2つめの変数α1を選択して更新（その1）
-                LearningData alpha1_1 = this.findAlpha1_1(alpha2);
-                if (this.update(alpha1_1, alpha2)) {
-                    break;  // continueしてもいいけど、alpha2sって一部変更かかるよね？
-                }
-                
-                // 2つめの変数α1を選択して更新（その21）
-                Optional<LearningData> alpha1_2 = this.findAlpha1_2(alpha2);
-                if (alpha1_2.isPresent() && this.update(alpha1_2.get(), alpha2)) {
+            if ((i + 1) % REPORT_INTERVAL == 0) {
+                monitor.report((int) (i + 1), (int) limit, this.objective(), this.violators());
+                if (monitor.isCancelled()) {
                     break;
                 }
-                
-                // 2つめの変数α1を選択して更新（その1）
-                LearningData alpha1_3 = this.findAlpha1_3(alpha2);
-                if (this.update(alpha1_3, alpha2)) {
-                    break;
-                }
-                
-                isUpdate = false;
-            }
-            
-            // 何も更新しなくなったら終わりでいい
-            if (!isUpdate) {
-                break;
             }
         }
     }
     
     /**
-     * 2つめの変数α1を探す（その1）
+     * 双対問題の目的関数（最小化の形） 1/2・∑(λ_n・t_n・y_n) - ∑λ
+     */
+    private double objective() {
+        double res = 0;
+        for (int n = 0; n < this.y.length; n++) {
+            res += this.lambda[n] * (this.lavel(n) * this.y[n] / 2 - 1);
+        }
+        return res;
+    }
+    
+    /**
+     * KKT条件を満たしていないデータの数
      * 
      * <pre>
-     * |E1-E2|を最大化する。
-     * これは必ずある。
+     * 増やせる側の-Eの最大と減らせる側の-Eの最小が EPS 以内に収まれば終わりなので、
+     * 相手側の範囲から EPS より外れているものを数える。
      * </pre>
      */
-    private LearningData findAlpha1_1(LearningData alpha2) {
-        return this.learning.stream().filter(ld -> ld != alpha2)  // 自身は除外
-                                      .sorted(Comparator.<LearningData>comparingDouble(ld -> Math.abs(ld.e() - alpha2.e())).reversed())
-                                      .findFirst().get();
+    private int violators() {
+    
+        double up = Double.NEGATIVE_INFINITY;
+        double low = Double.POSITIVE_INFINITY;
+        for (int t = 0; t < this.y.length; t++) {
+            if (this.isUp(t)) {
+                up = Math.max(up, -this.e(t));
+            }
+            if (this.isLow(t)) {
+                low = Math.min(low, -this.e(t));
+            }
+        }
+        
+        int res = 0;
+        for (int t = 0; t < this.y.length; t++) {
+            if ((this.isUp(t) && -this.e(t) > low + EPS) || (this.isLow(t) && -this.e(t) < up - EPS)) {
+                res++;
+            }
+        }
+        return res;
     }
     
     /**
-     * 2つめの変数α1を探す（その2）
+     * 1つめの変数α2を探す
      * 
      * <pre>
-     * 0＜λ＜C
-     * これはないかも？
+     * λを増やす方向（t=1ならλ＜C、t=-1ならλ＞0）に動かせるもののうち、-Eが最大のもの。
+     * なければ-1。
      * </pre>
      */
-    private Optional<LearningData> findAlpha1_2(LearningData alpha2) {
-        return this.learning.stream().filter(ld -> ld != alpha2)
-                                      .filter(ld -> ld.checkKkt1())
-                                      .findFirst();
+    private int findAlpha2() {
+        
+        int ans = -1;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int t = 0; t < this.y.length; t++) {
+            if (this.isUp(t) && -this.e(t) > max) {
+                max = -this.e(t);
+                ans = t;
+            }
+        }
+        return ans;
     }
     
     /**
-     * 2つめの変数α1を探す（その2）
+     * 2つめの変数α1を探す
      * 
      * <pre>
-     * ランダム
+     * λを減らす方向に動かせるもののうち、α2と組んだときに目的関数の減り方が
+     * 一番大きいと見込めるもの（2次近似で -b^2 / a が最小）。
+     * 違反の大きさ max(-E) - min(-E) が閾値より小さければKKT条件を満たしたとみなして-1。
      * </pre>
      */
-    private LearningData findAlpha1_3(LearningData alpha2) {
-        LearningData alpha1 = this.learning.get((int) (Math.random() * this.learning.size()));
-        return alpha1 != alpha2 ? alpha1 : this.findAlpha1_3(alpha2);
+    private int findAlpha1(int alpha2) {
+        
+        double[] row = this.cache.row(alpha2);
+        double max = -this.e(alpha2);
+        double min = Double.POSITIVE_INFINITY;
+        
+        int ans = -1;
+        double best = Double.POSITIVE_INFINITY;
+        for (int t = 0; t < this.y.length; t++) {
+            
+            if (!this.isLow(t)) {
+                continue;
+            }
+            min = Math.min(min, -this.e(t));
+            
+            double b = max + this.e(t);
+            if (b <= 0) {
+                continue;
+            }
+            
+            double a = this.cache.diagonal(alpha2) + this.cache.diagonal(t) - 2 * row[t];
+            double obj = -(b * b) / (a > 0 ? a : TAU);
+            if (obj < best) {
+                best = obj;
+                ans = t;
+            }
+        }
+        
+        return max - min < EPS ? -1 : ans;
+    }
+    
+    /**
+     * λを増やす方向（yを正の方向）に動かせるか
+     */
+    private boolean isUp(int i) {
+        return this.lavel(i) > 0 ? this.lambda[i] < C : this.lambda[i] > 0;
+    }
+    
+    /**
+     * λを減らす方向（yを負の方向）に動かせるか
+     */
+    private boolean isLow(int i) {
+        return this.lavel(i) > 0 ? this.lambda[i] > 0 : this.lambda[i] < C;
     }
     
     /**
      * λを更新する
      */
-    private boolean update(LearningData alpha1, LearningData alpha2) {
+    private boolean update(int alpha1, int alpha2) {
+    
+        int lavel1 = this.lavel(alpha1);
+        int lavel2 = this.lavel(alpha2);
         
         // ------ α1の計算 ------
         
         // 上限と下限を先に計算
         double low;
         double high;
-        if (alpha1.lavel != alpha2.lavel) {
-            low = Math.max(0, alpha1.lambda - alpha2.lambda);
-            high = Math.min(C, C - alpha1.lambda + alpha2.lambda);
+        if (lavel1 != lavel2) {
+            low = Math.max(0, this.lambda[alpha2] - this.lambda[alpha1]);
+            high = Math.min(C, C + this.lambda[alpha2] - this.lambda[alpha1]);
         } else {
-            low = Math.max(0, alpha1.lambda + alpha2.lambda - C);
-            high = Math.min(C, alpha1.lambda + alpha2.lambda);
+            low = Math.max(0, this.lambda[alpha1] + this.lambda[alpha2] - C);
+            high = Math.min(C, this.lambda[alpha1] + this.lambda[alpha2]);
         }
         
         // カーネルを計算
-        double k11 = this.kernel(alpha1.scalingFeature, alpha1.scalingFeature);
-        double k12 = this.kernel(alpha1.scalingFeature, alpha2.scalingFeature);
-        double k22 = this.kernel(alpha2.scalingFeature, alpha2.scalingFeature);
+        double k11 = this.cache.diagonal(alpha1);
+        double k12 = this.cache.get(alpha1, alpha2);
+        double k22 = this.cache.diagonal(alpha2);
         
-        // (k11 - 2 * k12 + k22) <= 0 ⇒ カーネルが負則の場合を考慮すべきなの？
-        if ((k11 - 2 * k12 + k22) <= 0) {
-            return false;
-        }
+        // (k11 - 2 * k12 + k22) <= 0 ⇒ 同じ点が2つあるときなど。小さい正の値にして進める
+        double eta = Math.max(k11 - 2 * k12 + k22, TAU);
         
         // α2のλを計算
-        double lambda2 = alpha2.lambda + alpha2.lavel * (alpha1.e() - alpha2.e()) / (k11 - 2 * k12 + k22);
+        double lambda2 = this.lambda[alpha2] + lavel2 * (this.e(alpha1) - this.e(alpha2)) / eta;
         lambda2 = Math.max(low, Math.min(high, lambda2));
         
-        // 更新量が小さい場合には更新しない
-        if (Math.abs(alpha2.lambda - lambda2) < EPS * (alpha2.lambda + lambda2 + EPS)) { 
-            return false; 
-        } 
-
-        // α1のλを計算 
-        double lambda1 = alpha1.lambda + alpha1.lavel * alpha2.lavel * (alpha2.lambda - lambda2);
+        // 動かなければ更新しない（λがCに近くても小さい更新は続ける）
+        if (!(Math.abs(this.lambda[alpha2] - lambda2) >= MIN_STEP)) {
+            return false;
+        }
         
-        // なんか変な値になったら更新しない
-        if (Double.isNaN(lambda1) || lambda1 < 0 || C < lambda1) { 
-            return false; 
-        } 
+        // α1のλを計算（丸め誤差で0～Cから少しはみ出した分は戻す）
+        double lambda1 = this.lambda[alpha1] + lavel1 * lavel2 * (this.lambda[alpha2] - lambda2);
+        lambda1 = Math.max(0, Math.min(C, lambda1));
+        
+        // 決定関数の値を差分だけ更新
+        double delta1 = (lambda1 - this.lambda[alpha1]) * lavel1;
+        double delta2 = (lambda2 - this.lambda[alpha2]) * lavel2;
+        double[] row1 = this.cache.row(alpha1);
+        double[] row2 = this.cache.row(alpha2);
+        for (int k = 0; k < this.y.length; k++) {
+            this.y[k] += delta1 * row1[k] + delta2 * row2[k];
+        }
         
-        alpha1.lambda = lambda1;
-        alpha2.lambda = lambda2;
+        this.lambda[alpha1] = lambda1;
+        this.lambda[alpha2] = lambda2;
         
         return true;
     }
     
-       /**
+    /**
+     * 共有している教師データから、サポートベクターだけ自分の教師データに写して共有をやめる
+     * 
+     * <pre>
+     * 判定とモデルの書き出しは、読み込んだモデルと同じく自分の教師データ（サポートベクターだけ）で済む。
+     * </pre>
+     */
+    private void detach() {
+    
+        int dimension = this.weight.length;
+        double[] features = this.shared.dataset.features();
+        double[] row = new double[dimension];
+        double[] lambda = new double[this.supportVectors.length];
+        double[] y = new double[this.supportVectors.length];
+        
+        this.dataset.clear();
+        for (int j = 0; j < this.supportVectors.length; j++) {
+            int sv = this.supportVectors[j];
+            System.arraycopy(features, this.rows[sv] * dimension, row, 0, dimension);
+            this.dataset.add(this.lavels[sv], row);
+            lambda[j] = this.lambda[sv];
+            y[j] = this.y[sv];
+        }
+        
+        this.setShared(null, null, null);
+        this.x = this.scaler.transform(this.dataset);
+        this.lambda = lambda;
+        this.y = y;
+        this.supportVectors = IntStream.range(0, lambda.length).toArray();
+    }
+    
+    /**
      * 重みベクトルを更新
      */
     private void updateWeightVector() {
-        
+    
         for (int i = 0; i < this.weight.length; i++) {
             final int idx = i;
-            this.weight[i] = supportVectors.stream()
-                                           .mapToDouble(ld -> ld.lambda * ld.lavel * ld.scalingFeature[idx])
-                                           .sum();
+            this.weight[i] = IntStream.of(this.supportVectors)
+                                      .mapToDouble(j -> this.lambda[j] * this.lavel(j) * this.x[this.offset(j) + idx])
+                                      .sum();
         }
     }
     
+    /**
+     * 判定用に詰め直す（サポートベクターとバイアスが決まってから呼ぶ）
+     */
+    private void compile() {
+        this.predictor = SvmPredictor.of(this.kernel, this.x, this.weight.length, this.supportVectors, this.lambda, this.dataset, this.bias);
+    }
+    
     /**
      * バイアスを更新（b = (1 / N_s)・∑(t_n - ∑λ_m・t_m・k(xn・xm)）
      */
     private void updateBias() {
+    
+        // 上限Cに張り付いていないもの（0<λ<C）で平均する（なければλ>0のもの全部）
+        int[] free = IntStream.of(this.supportVectors).filter(this::isSupportVector).toArray();
+        int[] base = free.length > 0 ? free : this.supportVectors;
         
+        // ∑λ_m・t_m・k(xn・xm) は学習中に持ち回っているyそのもの
         double sum = 0.;
-        for (int n = 0; n < supportVectors.size(); n++) {
-            LearningData nn = supportVectors.get(n);
-            double tmp = 0.;
-            for (int m = 0; m < supportVectors.size(); m++) {
-                LearningData mm = supportVectors.get(m);
-                tmp += mm.lambda * mm.lavel * this.kernel(nn.scalingFeature, mm.scalingFeature);
-            }
-            sum += nn.lavel - tmp;
+        for (int nn : base) {
+            sum += this.lavel(nn) - this.y[nn];
         }
-        this.bias = sum / supportVectors.size();
+        this.bias = base.length == 0 ? 0. : sum / base.length;
     }
     
     /**
      * カーネル
+     *
+     * @param x         特徴量（行優先）
+     * @param xOffset   xの開始位置
+     * @param y         特徴量（行優先）
+     * @param yOffset   yの開始位置
      */
-    protected double kernel(double[] x, double[] y) {
-//        return this.dot(x, y);  // 線形カーネル
-        return this.gauss(x, y, 5.0);  // ガウスカーネル
+    protected double kernel(double[] x, int xOffset, double[] y, int yOffset) {
+        return this.kernel.apply(x, xOffset, y, yOffset, this.weight.length);
     }
     
-    private double gauss(double[] x, double[] y, double sigma) {
-        
-        double sum = 0;
-        for (int i = 0; i < x.length; i++) {
-            sum += Math.pow(x[i] - y[i], 2);
-        }
-        
-        return Math.exp(-sum / 2.0 * Math.pow(sigma, 2));
+    /**
+     * i番目のデータの開始位置（共有している教師データで学習しているときは、その中の位置）
+     */
+    protected int offset(int i) {
+        return (this.rows != null ? this.rows[i] : i) * this.weight.length;
     }
     
     /**
-     * 入力データをスケーリングする
-     * 
-     * TODO スケールの幅をどう決めるか
-     * 
-     * @param data
-     * @return 
+     * i番目のデータのラベル（共有している教師データで学習しているときは、渡されたもの）
      */
-    private double[] scaling(double[] data) {
-        double[] res = new double[data.length];
-        for (int i = 0; i < data.length; i++) {
-            res[i] = data[i] / 200 - 1;
-        }
-        return res;
+    protected int lavel(int i) {
+        return this.lavels != null ? this.lavels[i] : this.dataset.lavel(i);
     }
     
     @Override
     public int predict(double[] data) {
-//        return this.sign(this.dot(this.scaling(data), weight) + bias);
-        return this.sign(this.decision(this.scaling(data)));
+        double[] row = this.scaled.get();
+        this.scaler.transform(data, 0, row, 0, 1);
+        return this.sign(this.decision(row, 0));
     }
     
-    protected double decision(double[] data) {
-        List<LearningData> ldList = this.supportVectors == null ? this.learning : this.supportVectors;
-        double sum = ldList.stream().mapToDouble(ld -> ld.lambda * ld.lavel * this.kernel(ld.scalingFeature, data)).sum();
-        return sum + this.bias;
+    /**
+     * 教師データ全部について決定関数を計算する
+     * 
+     * <pre>
+     * y = ∑(λ_m・t_m・k(x_m, x)) のうち、λ_m = 0の項は効かないので
+     * λ_m ≠ 0の行だけキャッシュから取り出して足しこむ。
+     * バイアスは学習が終わってから決めるので含めない。
+     * </pre>
+     */
+    private void updateDecision() {
+        
+        Arrays.fill(this.y, 0.);
+        for (int m = 0; m < this.y.length; m++) {
+            if (this.lambda[m] == 0) {
+                continue;
+            }
+            double coef = this.lambda[m] * this.lavel(m);
+            double[] row = this.cache.row(m);
+            for (int j = 0; j < this.y.length; j++) {
+                this.y[j] += coef * row[j];
+            }
+        }
     }
     
-    private int sign(double in) {
-        return in > 0 ? 1 : -1;
+    /**
+     * まとめて判定
+     */
+    @Override
+    public void predictBatch(double[] rowsFlat, int dim, int[] out) {
+        double[] decision = new double[out.length];
+        this.decisionBatch(rowsFlat, dim, decision);
+        for (int r = 0; r < out.length; r++) {
+            out[r] = this.sign(decision[r]);
+        }
     }
-
+    
+    /**
+     * まとめて決定関数の値を計算
+     * 
+     * <pre>
+     * 学習が終わっていれば、判定用に詰め直したもので計算する。
+     * 学習中はサポートベクターを外側のループにして、1本ずつ全部の行に足しこむ。
+     * サポートベクターを読むのは1回で済む。
+     * </pre>
+     */
     @Override
-    public void draw(GraphicsContext gc) {
+    public void decisionBatch(double[] rowsFlat, int dim, double[] out) {
         
-        gc.setStroke(Color.GREEN);
-        this.learning.stream().filter(ld -> ld.isSupportVector())
-                     .forEach(ld -> gc.strokeOval(ld.feature[0] - 2, ld.feature[1] - 2, 9, 9));
+        double[] scaled = new double[out.length * dim];
+        this.scaler.transform(rowsFlat, 0, scaled, 0, out.length);
+        if (this.predictor != null) {
+            this.predictor.decisionBatch(scaled, dim, out);
+            return;
+        }
         
-        int w = (int) gc.getCanvas().getWidth();
-        int h = (int) gc.getCanvas().getHeight();
+        int[] svs = this.supportVectors != null ? this.supportVectors : IntStream.range(0, this.lambda.length).toArray();
         
-        for (int x = 0; x < w; x += 2) {
-            for (int y = 0; y < h; y += 2) {
-                int ans = this.predict(new double[]{x, y});
-                gc.setFill(ans > 0 ? Color.BLUE : Color.RED);
-                gc.fillOval(x, y, 1, 1);
+        Arrays.fill(out, 0.);
+        for (int j : svs) {
+            double coef = this.lambda[j] * this.lavel(j);
+            int offset = this.offset(j);
+            for (int r = 0; r < out.length; r++) {
+                out[r] += coef * this.kernel(this.x, offset, scaled, r * dim);
+            }
+        }
+        for (int r = 0; r < out.length; r++) {
+            out[r] += this.bias;
+        }
+    }
+    
+    protected double decision(double[] data, int offset) {
+        if (this.predictor != null) {
+            return this.predictor.decision(data, offset);
+        }
+        double sum = 0.;
+        if (this.supportVectors == null) {
+            for (int j = 0; j < this.lambda.length; j++) {
+                sum += this.lambda[j] * this.lavel(j) * this.kernel(this.x, this.offset(j), data, offset);
+            }
+        } else {
+            for (int j : this.supportVectors) {
+                sum += this.lambda[j] * this.lavel(j) * this.kernel(this.x, this.offset(j), data, offset);
             }
         }
+        return sum + this.bias;
+    }
+    
+    private int sign(double in) {
+        return in > 0 ? 1 : -1;
+    }
+    
+    /**
+     * e = y - t
+     */
+    protected double e(int i) {
+        return this.y[i] - this.lavel(i);
+    }
+    
+    /**
+     * サポートベクター判定
+     */
+    protected boolean isSupportVector(int i) {
+        return 0. < this.lambda[i] && this.lambda[i] < C;
+    }
+    
+    /**
+     * サポートベクター（の候補）のインデックス
+     */
+    @Override
+    public int[] getSupportVectors() {
+        return IntStream.range(0, this.lambda.length).filter(this::isSupportVector).toArray();
     }
     
     @Override
     public void reset() {
-        this.learning.clear();
+        this.dataset.clear();
+        this.x = new double[0];
+        this.lambda = new double[0];
+        this.y = new double[0];
         this.supportVectors = null;
+        this.predictor = null;
+        this.cacheHits = 0;
+        this.cacheMisses = 0;
         this.weight = new double[this.weight.length];
         this.bias = 0.;
+        this.scaler = FeatureScaler.canvas(this.weight.length);
+    }
+    
+    /**
+     * モデルを書き出す
+     * 
+     * <pre>
+     * 判定に使うサポートベクター（元の特徴量、ラベル、未定乗数）とバイアスだけを書く。
+     * </pre>
+     */
+    @Override
+    public void writeModel(ModelFile.Writer out) {
+        
+        int[] svs = this.supportVectors != null ? this.supportVectors : IntStream.range(0, this.lambda.length).toArray();
+        double[] lambda = IntStream.of(svs).mapToDouble(i -> this.lambda[i]).toArray();
+        
+        out.writeInt(this.weight.length);
+        out.writeDouble(this.bias);
+        this.kernel.write(out);
+        out.writeDataset(this.dataset, svs);
+        out.writeDoubles(lambda, 0, lambda.length);
+        this.scaler.write(out);
+    }
+    
+    /**
+     * モデルを読み込む
+     * 
+     * <pre>
+     * 教師データはサポートベクターだけになる（追加して学習し直すと未定乗数は引き継ぐ）。
+     * </pre>
+     */
+    static SVM_SMO readModel(ModelFile.Reader in) {
+        
+        SVM_SMO svm = new SVM_SMO(in.readInt());
+        svm.bias = in.readDouble();
+        if (in.version() >= 2) {
+            svm.kernel = Kernel.read(in);
+        }
+        in.readDataset(svm.dataset);
+        svm.lambda = in.readDoubles();
+        svm.scaler = FeatureScaler.read(in, svm.weight.length);
+        
+        int n = svm.dataset.size();
+        svm.x = svm.scaler.transform(svm.dataset);
+        svm.supportVectors = IntStream.range(0, n).toArray();
+        svm.updateWeightVector();
+        svm.compile();
+        return svm;
     }
     
     @Override
@@ -321,81 +734,62 @@ public class SVM_SMO implements LearningMachine {
     }
     
     /**
-     * 学習データ
+     * 複数の学習機で共有する教師データ
+     * 
+     * <pre>
+     * 多クラスの学習で、教師データ全体を1回だけスケーリングして、カーネルキャッシュも1つだけ作る。
+     * それぞれの学習機は、このうち自分が使うデータの番号だけを持つ。
+     * </pre>
      */
-    protected static class LearningData {
-        
-        /** 分類ラベル */
-        protected final int lavel;
-        
-        /** 特徴量 */
-        protected final double[] feature;
-        
-        /** スケーリングした特徴量 */
-        protected double[] scalingFeature;
+    static final class Shared {
+    
+        /** 教師データ全体 */
+        final Dataset dataset;
         
-        /** 未定乗数 */
-        protected double lambda = 0.;
+        /** 特徴量のスケーリング */
+        final FeatureScaler scaler;
         
-        /** 現在の未定乗数で計算した決定関数 */
-        protected double y = 0.;
+        /** スケーリングした特徴量（行優先） */
+        final double[] x;
         
-        protected LearningData(int lavel, double[] feature) {
-            this.lavel = lavel;
-            this.feature = feature;
-        }
+        /** 教師データ全体のカーネルキャッシュ */
+        final KernelCache cache;
         
         /**
-         * KKT条件チェック1
+         * コンストラクタ
          * 
-         * <pre>
-         * 0＜λ＜C
-         *</pre>
+         * @param dataset   教師データ全体
+         * @param template  スケーリングの決め方とカーネルを揃える学習機
+         * @param cacheSize カーネルキャッシュの上限（MB）
          */
-        protected boolean checkKkt1() {
-            return 0 < this.lambda && this.lambda < C;
+        Shared(Dataset dataset, SVM_SMO template, double cacheSize) {
+            this.dataset = dataset;
+            this.scaler = FeatureScaler.fit(template.getScaling(), dataset);
+            this.x = this.scaler.transform(dataset);
+            this.cache = new KernelCache(dataset.size(), cacheSize, KernelCache.Source.of(template.getKernel(), this.x, dataset.dimension()));
         }
         
         /**
-         * KKT条件チェック2
+         * 一部の教師データのカーネルを、共有しているキャッシュから引く
          * 
-         * <pre>
-         * λ = 0   ⇒ ty≧1
-         * 0＜λ＜C ⇒ ty = 1
-         * λ = C   ⇒ ty ≦ 1
-        * </pre>
-        */
-        protected boolean checkKkt2() {
-
-            // λ = 0 のとき
-            if (this.lambda == 0) {
-                return this.lavel * this.y >= 1.; 
-
-            // 0 < λ < C のとき
-            } else if (0 < this.lambda && this.lambda < C) { 
-                return this.lavel * this.y == 1.; 
-
-            // λ = C のとき
-            } else if (this.lambda == C) { 
-                return this.lavel * this.y <= 1.; 
-            } 
-
-            // どれでもないのは 0 < λ < C のKTT条件を満たしてないからいいのかな？
-            return false; 
-        }
-        
-        /**
-         * e = y - t
-         */
-        protected double e() {
-            return this.y - this.lavel;
-        }
-        
-        /**
-         * サポートベクター判定
+         * @param rows  i番目が教師データ全体の何番目か
          */
-        protected boolean isSupportVector() {
-            return 0. < lambda && lambda < C;
+        KernelCache.Source view(int[] rows) {
+            KernelCache shared = this.cache;
+            return new KernelCache.Source() {
+                @Override
+                public double kernel(int i, int j) {
+                    return shared.get(rows[i], rows[j]);
+                }
+                
+                @Override
+                public void row(int i, int count, double[] out, int outOffset) {
+                    double[] row = shared.row(rows[i]);
+                    for (int j = 0; j < count; j++) {
+                        out[outOffset + j] = row[rows[j]];
+                    }
+                }
+            };
         }
     }
-}
\ No newline at end of file
+}
@@ -1,14 +1,6 @@
 package fxpractice;
 
-import java.util.ArrayList;
-import java.util.List;
-import javafx.scene.canvas.GraphicsContext;
-import javafx.scene.paint.Color;
-
-public class SinglePerceptron implements LearningMachine {
-
-    /** 認識したパターン */
-    private final List<LearningData> learningDataList = new ArrayList<>();
+public class SinglePerceptron extends LearningMachineBase implements OnlineLearner {
     
     /** 最大更新回数 */
     private int maxIteration = 1000;
@@ -19,13 +11,24 @@ public class SinglePerceptron implements LearningMachine {
     /** 学習率 */
     private final double learningRate = 0.3;
     
+    /** 逐次学習の入力ベクトル（使い回す） */
+    private double[] online = null;
+    
+    /** 特徴量のスケーリングの決め方（学習するたびに教師データから決める） */
+    private FeatureScaler.Method scaling = FeatureScaler.Method.MIN_MAX;
+    
+    /** 特徴量のスケーリング（学習するまでは画面の座標用、逐次学習ではそのまま使う） */
+    private FeatureScaler scaler;
+    
     /**
      * コンストラクタ
      * 
      * @param featureSize 入力（ベクトル）の次元
      */
     public SinglePerceptron(int featureSize) {
+        super(featureSize);
         this.weight = new double[featureSize + 1];  // +1はバイアスの重み
+        this.scaler = FeatureScaler.canvas(featureSize);
     }
     
     /**
@@ -37,11 +40,11 @@ public class SinglePerceptron implements LearningMachine {
     }
     
     /**
-     * 教師データを追加
+     * 特徴量のスケーリングの決め方を設定
      */
-    @Override
-    public void add(int lavel, double[] feature) {
-        this.learningDataList.add(new LearningData(lavel, feature));
+    public SinglePerceptron setScaling(FeatureScaler.Method scaling) {
+        this.scaling = scaling;
+        return this;
     }
     
     /** 
@@ -49,33 +52,59 @@ public class SinglePerceptron implements LearningMachine {
      */
     @Override
     public void learn() {
+        this.learn(TrainingMonitor.NONE);
+    }
+    
+    /**
+     * 学習（1周ごとに誤分類した割合を知らせる）
+     */
+    @Override
+    public void learn(TrainingMonitor monitor) {
+        
+        // 入力ベクトル（使い回す）
+        double[] input = new double[this.weight.length];
+        input[input.length - 1] = 1;
+        
+        double[] features = this.dataset.features();
+        int dimension = this.dataset.dimension();
+        
+        // スケーリングの係数は教師データから決める（逐次学習や読み込んだモデルで教師データがなければ今のまま）
+        if (this.dataset.size() > 0) {
+            this.scaler = FeatureScaler.fit(this.scaling, this.dataset);
+        }
         
         // 非線形分離の場合、解なしなので上限あり
         for (int j = 0; j < maxIteration; j++) {
             
-            boolean change = false;
-            for (LearningData ld : this.learningDataList) {
+            int mistakes = 0;
+            for (int n = 0; n < this.dataset.size(); n++) {
                 
                 // 入力ベクトルをスケーリングしてバイアスを足す
-                double[] input = this.addBias(this.scaling(ld.feature));
+                this.scaler.transform(features, n * dimension, input, 0, 1);
 
                 // 出力してみる
                 int answer = this.sign(this.dot(input, this.weight));
                 
                 // 出力とラベルが一致していれば更新する必要はない
-                if (answer == ld.lavel) {
+                int lavel = this.dataset.lavel(n);
+                if (answer == lavel) {
                     continue;
                 }
                 
                 // 重みベクトルを更新
                 for (int i = 0; i < this.weight.length; i++) {
-                    this.weight[i] += this.learningRate * ld.lavel * input[i];
+                    this.weight[i] += this.learningRate * lavel * input[i];
                 }
-                change = true;
+                mistakes++;
             }
             
             // すべての重みが更新されなくなったら終了
-            if (!change) {
+            if (mistakes == 0) {
+                return;
+            }
+            
+            monitor.report(j + 1, this.maxIteration, (double) mistakes / this.dataset.size(), -1);
+            if (monitor.isCancelled()) {
                 return;
             }
         }
@@ -88,7 +117,42 @@ public class SinglePerceptron implements LearningMachine {
      */
     @Override
     public int predict(double[] feature) {
-        return this.sign(this.dot(this.addBias(this.scaling(feature)), this.weight));
+        double res = this.weight[feature.length];   // バイアス
+        for (int i = 0; i < feature.length; i++) {
+            res += this.scaler.transform(i, feature[i]) * this.weight[i];
+        }
+        return this.sign(res);
+    }
+    
+    /**
+     * まとめて判定
+     */
+    @Override
+    public void predictBatch(double[] rowsFlat, int dim, int[] out) {
+        double[] decision = new double[out.length];
+        this.decisionBatch(rowsFlat, dim, decision);
+        for (int r = 0; r < out.length; r++) {
+            out[r] = this.sign(decision[r]);
+        }
+    }
+    
+    /**
+     * まとめて決定関数の値を計算
+     * 
+     * <pre>
+     * 1行ずつスケーリングしながら重みベクトルとの内積をとる。配列は作らない。
+     * </pre>
+     */
+    @Override
+    public void decisionBatch(double[] rowsFlat, int dim, double[] out) {
+        for (int r = 0; r < out.length; r++) {
+            int offset = r * dim;
+            double res = 0;
+            for (int i = 0; i < dim; i++) {
+                res += this.scaler.transform(i, rowsFlat[offset + i]) * this.weight[i];
+            }
+            out[r] = res + this.weight[dim];   // バイアス
+        }
     }
     
     /**
@@ -110,59 +174,63 @@ public class SinglePerceptron implements LearningMachine {
     }
 
     /**
-     * 描画する
+     * 逐次学習
+     * 
+     * <pre>
+     * 1件だけパーセプトロンの更新をする。教師データには追加しない。
+     * 間違えたときだけ重みが動くのはlearn()と同じ。
+     * </pre>
      */
     @Override
-    public void draw(GraphicsContext gc) {
+    public void partialFit(int lavel, double[] feature) {
+    
+        if (feature.length != this.weight.length - 1) {
+            throw new IllegalArgumentException("次元が違います: " + feature.length + " != " + (this.weight.length - 1));
+        }
         
-        int w = (int) gc.getCanvas().getWidth();
-        int h = (int) gc.getCanvas().getHeight();
+        // 入力ベクトルをスケーリングしてバイアスを足す（使い回す）
+        if (this.online == null) {
+            this.online = new double[this.weight.length];
+            this.online[this.online.length - 1] = 1;
+        }
+        this.scaler.transform(feature, 0, this.online, 0, 1);
         
-        for (int x = 0; x < w; x += 2) {
-            for (int y = 0; y < h; y += 2) {
-                int ans = this.predict(new double[]{x, y});
-                gc.setFill(ans > 0 ? Color.BLUE : Color.RED);
-                gc.fillOval(x, y, 1, 1);
-            }
+        if (this.sign(this.dot(this.online, this.weight)) == lavel) {
+            return;
+        }
+        for (int i = 0; i < this.weight.length; i++) {
+            this.weight[i] += this.learningRate * lavel * this.online[i];
         }
     }
     
     /**
-     * 特徴量をスケーリングする
-     * 
-     * <pre>
-     * 手抜きスケーリング。
-     * </pre>
+     * モデルを書き出す（重みベクトルだけ）
      */
-    private double[] scaling(double[] feature) {
-        double[] res = new double[feature.length];
-        for (int i = 0; i < feature.length; i++) {
-            res[i] = feature[i] / 200 - 1;
-        }
-        return res;
+    @Override
+    public void writeModel(ModelFile.Writer out) {
+        out.writeInt(this.weight.length - 1);
+        out.writeDoubles(this.weight, 0, this.weight.length);
+        this.scaler.write(out);
     }
     
     /**
-     * バイアスを追加
-     * 
-     * <pre>
-     * バイアスは前でも後ろでもいい。
-     * </pre>
+     * モデルを読み込む
      */
-    private double[] addBias(double[] feature) {
-        double[] d = new double[feature.length + 1];
-        System.arraycopy(feature, 0, d, 0, feature.length);
-        d[d.length - 1] = 1;
-        return d;
+    static SinglePerceptron readModel(ModelFile.Reader in) {
+        SinglePerceptron sp = new SinglePerceptron(in.readInt());
+        in.readDoubles(sp.weight);
+        sp.scaler = FeatureScaler.read(in, sp.weight.length - 1);
+        return sp;
     }
-
+    
     /**
      * この学習機をリセット
      */
     @Override
     public void reset() {
-        this.learningDataList.clear();
+        this.dataset.clear();
         this.weight = new double[this.weight.length];
+        this.scaler = FeatureScaler.canvas(this.weight.length - 1);
     }
     
     /**
@@ -172,27 +240,4 @@ public class SinglePerceptron implements LearningMachine {
     public String getTitle() {
         return "単純パーセプトロン";
     }
-    
-    /**
-     * 学習データ
-     */
-    private static class LearningData {
-        
-        /** 分類ラベル（式中の記号だとtと書かれることが多い） */
-        final int lavel;
-        
-        /** 特徴量（式中の記号だとxと書かれることが多い） */
-        final double[] feature;
-        
-        /**
-         * コンストラクタ
-         * 
-         * @param lavel     分類ラベル
-         * @param feature   特徴量
-         */
-        LearningData(int lavel, double[] feature) {
-            this.lavel = lavel;
-            this.feature = feature;
-        }
-    }
 }
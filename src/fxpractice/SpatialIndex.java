@@ -0,0 +1,126 @@
+package fxpractice;
+
+/**
+ * 近傍探索用の空間インデックス
+ * 
+ * <pre>
+ * 全件走査せずにk近傍を求めるためのもの。
+ * 構築後に点を追加することは考えていないので、追加されたら作り直すこと。
+ * （Hnswは例外で、近似だが点を追加していける）
+ * </pre>
+ */
+interface SpatialIndex {
+    
+    /**
+     * k近傍を探す
+     * 
+     * <pre>
+     * 結果のインデックスは構築時の配列のインデックス。
+     * 並び順は保証しないので、必要ならtopK.sort()すること。
+     * </pre>
+     * 
+     * @param query 問い合わせ点
+     * @param topK  近傍の候補（空にしてから渡すこと）
+     */
+    void search(double[] query, TopK topK);
+    
+    /**
+     * 平方ユークリッド距離
+     */
+    static double distance(double[] x, double[] y) {
+        double sum = 0;
+        for (int i = 0; i < x.length; i++) {
+            double d = x[i] - y[i];
+            sum += d * d;
+        }
+        return sum;
+    }
+    
+    /**
+     * 平方ユークリッド距離
+     * 
+     * @param features  特徴量（行優先）
+     * @param offset    xの開始位置
+     * @param y         もう一方の点
+     */
+    static double distance(double[] features, int offset, double[] y) {
+        double sum = 0;
+        for (int i = 0; i < y.length; i++) {
+            double d = features[offset + i] - y[i];
+            sum += d * d;
+        }
+        return sum;
+    }
+    
+    /**
+     * from～to-1番目の点で、広がりが最大の次元
+     * 
+     * @param features  特徴量（行優先）
+     * @param dimension 次元
+     * @param order     点の並び（featuresの何番目か）
+     * @param from      開始位置
+     * @param to        終了位置（含まない）
+     * @return 次元（全部同じ点なら-1）
+     */
+    static int widestDimension(double[] features, int dimension, int[] order, int from, int to) {
+        
+        int best = -1;
+        double bestSpread = 0;
+        for (int d = 0; d < dimension; d++) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = from; i < to; i++) {
+                double v = features[order[i] * dimension + d];
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+            }
+            if (max - min > bestSpread) {
+                bestSpread = max - min;
+                best = d;
+            }
+        }
+        return best;
+    }
+    
+    /**
+     * dim番目の特徴量でn番目に小さい点がn番目に来るように、orderのlo～hiを並べ替える（クイックセレクト）
+     * 
+     * @param features  特徴量（行優先）
+     * @param dimension 次元
+     * @param order     点の並び（featuresの何番目か）
+     * @param lo        開始位置
+     * @param hi        終了位置（含む）
+     * @param n         位置
+     * @param dim       比べる特徴量
+     */
+    static void select(double[] features, int dimension, int[] order, int lo, int hi, int n, int dim) {
+        
+        while (lo < hi) {
+            double pivot = features[order[(lo + hi) >>> 1] * dimension + dim];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (features[order[i] * dimension + dim] < pivot) {
+                    i++;
+                }
+                while (features[order[j] * dimension + dim] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int tmp = order[i];
+                    order[i] = order[j];
+                    order[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+            if (n <= j) {
+                hi = j;
+            } else if (n >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+}
@@ -1,22 +1,13 @@
 package fxpractice;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.Optional;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
-import javafx.scene.canvas.GraphicsContext;
-import javafx.scene.paint.Color;
+import java.util.Arrays;
+import java.util.stream.IntStream;
 
 /**
  * さぽーとべくたーましーん
  */
-public class SupportVectorMachine implements LearningMachine {
-    
-    /** 認識したパターン */
-    protected final List<LearningData> learning = new ArrayList<>();
-    
+public class SupportVectorMachine extends LearningMachineBase implements KernelMachine {
+
     /** 学習係数 */
     private final double learningRate = 0.2;
     
@@ -26,96 +17,306 @@ public class SupportVectorMachine implements LearningMachine {
     /** 最大更新回数 */
     protected final double maxIteration = 10000;
     
+    /** 経過を知らせる間隔（更新回数） */
+    private static final int REPORT_INTERVAL = 100;
+    
+    /** KKT条件を満たしているとみなす勾配の大きさ */
+    private static final double KKT_TOLERANCE = 0.001;
+    
     /** 重みベクトル（配列のサイズは入力ベクトルの次元） */
     protected double[] weight;
     
     /** バイアス */
     private double bias;
     
-    /** サポートベクター */
-    private List<LearningData> supportVectors = null;
+    /** スケーリングした特徴量（行優先） */
+    protected double[] x = new double[0];
+    
+    /** 未定乗数 */
+    protected double[] lambda = new double[0];
+    
+    /** サポートベクター（教師データのインデックス） */
+    private int[] supportVectors = null;
+    
+    /** 判定用に詰め直したもの（学習が終わるまではnull） */
+    private SvmPredictor predictor = null;
+    
+    /** カーネル（既定のγ=12.5はこれまでのσ=5の式と同じ値） */
+    private Kernel kernel = Kernel.rbf(12.5);
+    
+    /** グラム行列の上限（MB） */
+    private double gramSize = 100;
+    
+    /** グラム行列（学習中のみ、上限に収まらないときはnull） */
+    private GramMatrix gram = null;
+    
+    /** グラム行列に収まらないときのカーネルキャッシュ（学習中のみ） */
+    private KernelCache cache = null;
+    
+    /** 現在の未定乗数で計算した ∑(λ_m・t_m・k(x_n, x_m))（学習中のみ） */
+    private double[] y = new double[0];
+    
+    /** 特徴量のスケーリングの決め方（学習するたびに教師データから決める） */
+    private FeatureScaler.Method scaling = FeatureScaler.Method.MIN_MAX;
+    
+    /** 特徴量のスケーリング（学習するまでは画面の座標用） */
+    private FeatureScaler scaler;
+    
+    /** 判定でスケーリングした特徴量を書く配列（スレッドごとに使い回す） */
+    private final ThreadLocal<double[]> scaled;
     
     /**
      * コンストラクタ
      */
     public SupportVectorMachine(int futureSize) {
+        super(futureSize);
         this.weight = new double[futureSize];
+        this.scaler = FeatureScaler.canvas(futureSize);
+        this.scaled = ThreadLocal.withInitial(() -> new double[futureSize]);
     }
     
     /**
-     * 教師データを追加
+     * カーネルを設定
+     * 
+     * <pre>
+     * 線形カーネルのときはカーネル行列を作らず、SVM2と同じ双対座標降下法で学習する。
+     * </pre>
      */
-    @Override
-    public void add(int cls, double[] data) {
-        this.learning.add(new LearningData(cls, data));
+    public SupportVectorMachine setKernel(Kernel kernel) {
+        this.kernel = kernel;
+        return this;
     }
     
-    /** 
-     * 学習 
+    /**
+     * 特徴量のスケーリングの決め方を設定
+     */
+    public SupportVectorMachine setScaling(FeatureScaler.Method scaling) {
+        this.scaling = scaling;
+        return this;
+    }
+    
+    /**
+     * グラム行列の上限を設定
+     * 
+     * <pre>
+     * データ数nのグラム行列（下三角）は 8・n(n+1)/2 バイト。
+     * 収まらなければ、SVM_SMOと同じく行単位のカーネルキャッシュで同じ大きさだけ持つ。
+     * </pre>
+     * 
+     * @param gramSize  上限（MB）
+     */
+    public SupportVectorMachine setGramSize(double gramSize) {
+        this.gramSize = gramSize;
+        return this;
+    }
+    
+    /**
+     * 学習
      */
     @Override
     public void learn() {
+        this.learn(TrainingMonitor.NONE);
+    }
+    
+    /**
+     * 学習（一定の更新回数ごとに経過を知らせる）
+     */
+    @Override
+    public void learn(TrainingMonitor monitor) {
+    
+        int n = this.dataset.size();
+        
+        // 特徴量スケーリングする（係数は教師データから決める）
+        this.scaler = FeatureScaler.fit(this.scaling, this.dataset);
+        this.x = this.scaler.transform(this.dataset);
+        
+        // 前回の未定乗数は引き継ぐ（追加した分は1から）
+        int prev = this.lambda.length;
+        this.lambda = Arrays.copyOf(this.lambda, n);
+        Arrays.fill(this.lambda, Math.min(prev, n), n, 1.);
+        
+        // 学習中は全データで決定関数を計算する
+        this.supportVectors = null;
+        this.predictor = null;
+        
+        if (this.kernel instanceof Kernel.Linear) {
+            this.learnLinear(monitor);
+            return;
+        }
         
-        // 特徴量スケーリングする
-        this.learning.forEach(ld -> ld.scalingFeature = this.scaling(ld.feature));
+        // カーネルは上限に収まればグラム行列として先に全部計算しておく
+        KernelCache.Source source = KernelCache.Source.of(this.kernel, this.x, this.weight.length);
+        if (GramMatrix.bytes(n) <= this.gramSize * 1024 * 1024) {
+            this.gram = new GramMatrix(n, source);
+        } else {
+            this.cache = new KernelCache(n, this.gramSize, source);
+        }
         
         // 未定乗数を計算
-        this.caluculateLambda();
+        this.caluculateLambda(monitor);
+        
+        // 判定に使うものを抜き出し（上限Cに張り付いたものも効くので、λ>0をすべて使う）
+        this.supportVectors = IntStream.range(0, n).filter(i -> this.lambda[i] > 0).toArray();
+        
+        // 未定乗数は件数が多いと出しきれないので、数だけ確認
+        System.out.println("support vectors=" + this.supportVectors.length + " / " + n);
         
-        // 未定乗数を確認
-        System.out.println(this.learning.stream().map(ld -> String.valueOf(ld.lambda)).collect(Collectors.joining(" ")));
-
-        // サポートベクトルを抜き出し
-        this.supportVectors = this.learning.stream().filter(ld -> ld.isSupportVector()).collect(Collectors.toList());
-
         // 重みベクトルを更新
         this.updateWeightVector();
         
         // バイアスを更新（b = (1 / N_s)・∑(t_n - ∑λ_m・t_m・k(xn・xm)）
         this.updateBias();
+        
+        // 判定用に詰め直す
+        this.compile();
+        
+        // グラム行列は学習中しか使わないので捨てる
+        this.gram = null;
+        this.cache = null;
+        this.y = new double[0];
     }
     
     /**
-     * 未定乗数を計算
+     * 線形カーネルの学習
+     * 
+     * <pre>
+     * 重みベクトルを持ち回る双対座標降下法（LinearSolver）で解く。1周O(データ数×次元)。
+     * 上限Cに張り付いた未定乗数も重みベクトルに効くので、判定にはλ>0をすべて使う。
+     * </pre>
      */
-    protected void caluculateLambda() {
+    private void learnLinear(TrainingMonitor monitor) {
+    
+        int n = this.dataset.size();
+        LinearSolver solver = new LinearSolver(this.x, this.dataset.lavels(), n, this.weight.length).setC(C).setMonitor(monitor);
+        solver.solve(this.lambda);
+        this.bias = solver.getBias();
+        
+        // 未定乗数は件数が多いと出しきれないので、数だけ確認
+        System.out.println("epochs=" + solver.getEpochs() + " support vectors=" + this.getSupportVectors().length);
         
+        this.supportVectors = IntStream.range(0, n).filter(i -> this.lambda[i] > 0).toArray();
+        this.updateWeightVector();
+        this.compile();
+    }
+    
+    /**
+     * 未定乗数を計算
+     * 
+     * <pre>
+     * REPORT_INTERVAL回ごとに経過を知らせて、中止されていたら止める。
+     * </pre>
+     */
+    protected void caluculateLambda(TrainingMonitor monitor) {
+    
         // 正負のデータに分ける
-        Map<Boolean, List<LearningData>> partition = this.learning.stream()
-                                                                  .collect(Collectors.partitioningBy(ld -> ld.lavel >= 0));
-        List<LearningData> positive = partition.get(true);
-        List<LearningData> negative = partition.get(false);
+        int n = this.dataset.size();
+        int[] positive = IntStream.range(0, n).filter(i -> this.dataset.lavel(i) >= 0).toArray();
+        int[] negative = IntStream.range(0, n).filter(i -> this.dataset.lavel(i) < 0).toArray();
+        
+        // 正、負の順に並べたもの
+        int[] all = IntStream.concat(IntStream.of(positive), IntStream.of(negative)).toArray();
+        
+        // 現在のλで計算した値を保持しておく（あとはλが動くたびに差分だけ足す）
+        this.y = new double[n];
+        for (int m = 0; m < n; m++) {
+            if (this.lambda[m] != 0) {
+                this.addColumn(m, this.lambda[m] * this.dataset.lavel(m));
+            }
+        }
         
         // 勾配法で未定乗数を求める
         for (int i = 0; i < maxIteration; i++) {
-            this.gradient(positive, negative);
+            this.gradient(all, positive, negative);
+            
+            if ((i + 1) % REPORT_INTERVAL == 0) {
+                monitor.report(i + 1, (int) maxIteration, this.objective(), this.violators());
+                if (monitor.isCancelled()) {
+                    break;
+                }
+            }
+        }
+    }
+    
+    /**
+     * 双対問題の目的関数（最小化の形） 1/2・∑(λ_n・t_n・y_n) - ∑λ
+     */
+    private double objective() {
+        double res = 0;
+        for (int n = 0; n < this.y.length; n++) {
+            res += this.lambda[n] * (this.dataset.lavel(n) * this.y[n] / 2 - 1);
+        }
+        return res;
+    }
+    
+    /**
+     * KKT条件を満たしていないデータの数
+     * 
+     * <pre>
+     * まだλを増やせるのに勾配が正のもの、まだ減らせるのに勾配が負のもの。
+     * </pre>
+     */
+    private int violators() {
+        int res = 0;
+        for (int n = 0; n < this.y.length; n++) {
+            double d = this.lagrange_d(n);
+            if ((this.lambda[n] < C && d > KKT_TOLERANCE) || (this.lambda[n] > 0 && d < -KKT_TOLERANCE)) {
+                res++;
+            }
         }
+        return res;
     }
     
     /**
      * 勾配降下
+     * 
+     * <pre>
+     * 勾配はyから1つO(1)で求まり、λを動かしたときのyの更新がO(n)。
+     * 1回の更新でカーネルを計算し直すことはない。
+     * </pre>
      */
-    private void gradient(List<LearningData> positive, List<LearningData> negative) {
-        
-        List<LearningData> all = new ArrayList<>();
-        all.addAll(positive);
-        all.addAll(negative);
-        
+    private void gradient(int[] all, int[] positive, int[] negative) {
+    
         // ラムダを更新
-        all.stream().forEach(ld -> {
-            double delta = this.learningRate * this.lagrange_d(ld, all);
-            ld.lambda += delta;
-            ld.lambda = this.limit(ld.lambda, 0 , C);
-        });
+        for (int ld : all) {
+            double delta = this.learningRate * this.lagrange_d(ld);
+            this.setLambda(ld, this.limit(this.lambda[ld] + delta, 0 , C));
+        }
         
         // sum(λ*label)を計算
-        double sum = all.stream().mapToDouble(ld -> ld.lambda * ld.lavel).sum();
+        double sum = IntStream.of(all).mapToDouble(ld -> this.lambda[ld] * this.dataset.lavel(ld)).sum();
         
         // KKT条件を満たすために、どこかにしわ寄せする（限りなく0に近くはなるが、近似値なのは仕方ないということで）
-        LearningData any = ((sum > 0) ? negative : positive).stream().filter(ld -> ld.isSupportVector()).findAny().get();
-        any.lambda -= sum / any.lavel;
+        // （正定値でないカーネルなどで、寄せる先が残っていなければ何もしない）
+        IntStream.of((sum > 0) ? negative : positive).filter(this::isSupportVector).findAny()
+                 .ifPresent(any -> this.setLambda(any, this.lambda[any] - sum / this.dataset.lavel(any)));
+    }
+    
+    /**
+     * 未定乗数を変えて、yを差分だけ更新する
+     */
+    private void setLambda(int m, double value) {
+        double delta = value - this.lambda[m];
+        if (delta != 0) {
+            this.lambda[m] = value;
+            this.addColumn(m, delta * this.dataset.lavel(m));
+        }
     }
     
+    /**
+     * y[n] += scale・k(x_n, x_m)
+     */
+    private void addColumn(int m, double scale) {
+        if (this.gram != null) {
+            this.gram.addColumn(m, scale, this.y);
+        } else {
+            double[] row = this.cache.row(m);
+            for (int n = 0; n < this.y.length; n++) {
+                this.y[n] += scale * row[n];
+            }
+        }
+    }
+    
+    
     /**
      * 値を範囲内に丸める
      */
@@ -125,203 +326,227 @@ public class SupportVectorMachine implements LearningMachine {
     
     /**
      * ラグランジュ関数の微分
-     * 
+     *
      * ∂L/∂a_n = 1 - ∑(λ・tn・tm・k(xn・xm))
      */
-    private double lagrange_d(LearningData learningData, List<LearningData> all) {
-        
-        double sum = all.stream().mapToDouble(ld -> ld.lambda * learningData.lavel * ld.lavel * this.kernel(learningData.scalingFeature, ld.scalingFeature))
-                                 .sum();
-        
-        return 1 - sum;
+    private double lagrange_d(int n) {
+        return 1 - this.dataset.lavel(n) * this.y[n];
     }
     
     /**
      * 重みベクトルを更新
      */
     private void updateWeightVector() {
-        
+    
         for (int i = 0; i < this.weight.length; i++) {
             final int idx = i;
-            this.weight[i] = this.supportVectors.stream()
-                                                .mapToDouble(ld -> ld.lambda * ld.lavel * ld.scalingFeature[idx])
-                                                .sum();
+            this.weight[i] = IntStream.of(this.supportVectors)
+                                      .mapToDouble(ld -> this.lambda[ld] * this.dataset.lavel(ld) * this.x[this.offset(ld) + idx])
+                                      .sum();
         }
     }
     
+    /**
+     * 判定用に詰め直す（サポートベクターとバイアスが決まってから呼ぶ）
+     */
+    private void compile() {
+        this.predictor = SvmPredictor.of(this.kernel, this.x, this.weight.length, this.supportVectors, this.lambda, this.dataset, this.bias);
+    }
+    
     /**
      * バイアスを更新（b = (1 / N_s)・∑(t_n - ∑λ_m・t_m・k(xn・xm)）
      */
     private void updateBias() {
+    
+        // 上限Cに張り付いていないもの（0<λ<C）で平均する（なければλ>0のもの全部）
+        int[] free = IntStream.of(this.supportVectors).filter(this::isSupportVector).toArray();
+        int[] base = free.length > 0 ? free : this.supportVectors;
         
+        // ∑λ_m・t_m・k(xn・xm) は学習中に持ち回っているyそのもの
         double sum = 0.;
-        for (int n = 0; n < this.supportVectors.size(); n++) {
-            LearningData nn = this.supportVectors.get(n);
-            double tmp = 0.;
-            for (int m = 0; m < this.supportVectors.size(); m++) {
-                LearningData mm = this.supportVectors.get(m);
-                tmp += mm.lambda * mm.lavel * this.kernel(nn.scalingFeature, mm.scalingFeature);
-            }
-            sum += nn.lavel - tmp;
+        for (int nn : base) {
+            sum += this.dataset.lavel(nn) - this.y[nn];
         }
-        this.bias = sum / this.supportVectors.size();
+        this.bias = base.length == 0 ? 0. : sum / base.length;
     }
     
     /**
      * カーネル
      */
-    private double kernel(double[] x, double[] y) {
-//        return this.dot(x, y);  // 線形カーネル
-        return this.gauss(x, y, 5.0);  // ガウスカーネル
+    private double kernel(double[] x, int xOffset, double[] y, int yOffset) {
+        return this.kernel.apply(x, xOffset, y, yOffset, this.weight.length);
     }
     
     /**
-     * 内積
+     * i番目のデータの開始位置
      */
-    private double dot(double[] x, double[] y) {
-        double res = 0;
-        for (int i = 0; i < x.length; i++) {
-            res += x[i] * y[i];
-        }
-        return res;
+    protected int offset(int i) {
+        return i * this.weight.length;
     }
     
     /**
-     * ガウスカーネル
+     * 評価
      */
-    private double gauss(double[] x, double[] y, double sigma) {
-        
-        double sum = 0;
-        for (int i = 0; i < x.length; i++) {
-            sum += Math.pow(x[i] - y[i], 2);
-        }
-        
-        return Math.exp(-sum / 2.0 * Math.pow(sigma, 2));
+    @Override
+    public int predict(double[] data) {
+        double[] row = this.scaled.get();
+        this.scaler.transform(data, 0, row, 0, 1);
+        return this.sign(this.decision(row));
     }
     
     /**
-     * 入力データをスケーリングする
-     * 
-     * <pre>
-     * 相変わらずの手抜きスケーリング。
-     * </pre>
+     * まとめて判定
      */
-    private double[] scaling(double[] data) {
-        double[] res = new double[data.length];
-        for (int i = 0; i < data.length; i++) {
-            res[i] = data[i] / 200 - 1;
+    @Override
+    public void predictBatch(double[] rowsFlat, int dim, int[] out) {
+        double[] decision = new double[out.length];
+        this.decisionBatch(rowsFlat, dim, decision);
+        for (int r = 0; r < out.length; r++) {
+            out[r] = this.sign(decision[r]);
         }
-        return res;
     }
-
+    
     /**
-     * 評価
+     * まとめて決定関数の値を計算
+     * 
+     * <pre>
+     * 学習が終わっていれば、判定用に詰め直したもので計算する。
+     * 学習中はサポートベクターを外側のループにして、1本ずつ全部の行に足しこむ。
+     * サポートベクターを読むのは1回で済む。
+     * </pre>
      */
     @Override
-    public int predict(double[] data) {
-        return this.sign(this.decision(this.scaling(data)));
+    public void decisionBatch(double[] rowsFlat, int dim, double[] out) {
+        
+        double[] scaled = new double[out.length * dim];
+        this.scaler.transform(rowsFlat, 0, scaled, 0, out.length);
+        if (this.predictor != null) {
+            this.predictor.decisionBatch(scaled, dim, out);
+            return;
+        }
+        
+        int[] svs = this.supportVectors != null ? this.supportVectors : IntStream.range(0, this.lambda.length).toArray();
+        
+        Arrays.fill(out, 0.);
+        for (int j : svs) {
+            double coef = this.lambda[j] * this.dataset.lavel(j);
+            int offset = this.offset(j);
+            for (int r = 0; r < out.length; r++) {
+                out[r] += coef * this.kernel(this.x, offset, scaled, r * dim);
+            }
+        }
+        for (int r = 0; r < out.length; r++) {
+            out[r] += this.bias;
+        }
     }
     
     private double decision(double[] data) {
-        List<LearningData> ldList = this.supportVectors == null ? this.learning : this.supportVectors;
-        double sum = ldList.stream().mapToDouble(ld -> ld.lambda * ld.lavel * this.kernel(ld.scalingFeature, data)).sum();
+        if (this.predictor != null) {
+            return this.predictor.decision(data, 0);
+        }
+        double sum = 0.;
+        if (this.supportVectors == null) {
+            for (int j = 0; j < this.dataset.size(); j++) {
+                sum += this.lambda[j] * this.dataset.lavel(j) * this.kernel(this.x, this.offset(j), data, 0);
+            }
+        } else {
+            for (int j : this.supportVectors) {
+                sum += this.lambda[j] * this.dataset.lavel(j) * this.kernel(this.x, this.offset(j), data, 0);
+            }
+        }
         return sum + this.bias;
     }
     
     private int sign(double in) {
         return in > 0 ? 1 : -1;
     }
-
+    
+    /**
+     * サポートベクター判定
+     *
+     * <pre>
+     * 確定したわけではなく、候補として残っているという判定であることに注意。
+     * 最後まで残っていれば晴れてサポートベクターとして生きていくことになる。
+     * </pre>
+     */
+    private boolean isSupportVector(int i) {
+        return 0. < this.lambda[i] && this.lambda[i] < C;
+    }
+    
     /**
-     * 描画する
+     * サポートベクター（の候補）のインデックス
      */
     @Override
-    public void draw(GraphicsContext gc) {
-        
-        // 全部消す
-        gc.clearRect(0, 0, 400, 400);
-        
-        // 枠だけつくる
-        gc.setFill(Color.WHITE);
-        gc.setStroke(Color.GREEN);
-        gc.fillRect(0, 0, 400, 400);
-        gc.strokeRect(0, 0, 400, 400);
-        
-        // 画面に描画
-        this.learning.stream().forEach(ld -> {
-            gc.setFill(ld.lavel > 0 ? Color.BLUE : Color.RED);
-            gc.fillOval(ld.feature[0], ld.feature[1], 5, 5);
-        });
-        
-        // サポートベクターを丸で囲う
-        gc.setStroke(Color.GREEN);
-        this.learning.stream().filter(ld -> ld.isSupportVector())
-                     .forEach(ld -> gc.strokeOval(ld.feature[0] - 2, ld.feature[1] - 2, 9, 9));
-        
-        int w = (int) gc.getCanvas().getWidth();
-        int h = (int) gc.getCanvas().getHeight();
-        
-        for (int x = 0; x < w; x += 2) {
-            for (int y = 0; y < h; y += 2) {
-                int ans = this.predict(new double[]{x, y});
-                gc.setFill(ans > 0 ? Color.BLUE : Color.RED);
-                gc.fillOval(x, y, 1, 1);
-            }
-        }
+    public int[] getSupportVectors() {
+        return IntStream.range(0, this.lambda.length).filter(this::isSupportVector).toArray();
     }
-
+    
     /**
      * この学習機をリセット
      */
     @Override
     public void reset() {
-        this.learning.clear();
+        this.dataset.clear();
+        this.x = new double[0];
+        this.lambda = new double[0];
+        this.supportVectors = null;
+        this.predictor = null;
         this.weight = new double[this.weight.length];
+        this.scaler = FeatureScaler.canvas(this.weight.length);
     }
     
     /**
-     * タイトル
+     * モデルを書き出す
+     * 
+     * <pre>
+     * 判定に使うサポートベクター（元の特徴量、ラベル、未定乗数）とバイアスだけを書く。
+     * </pre>
      */
     @Override
-    public String getTitle() {
-        return "SVM(SGD)";
+    public void writeModel(ModelFile.Writer out) {
+        
+        int[] svs = this.supportVectors != null ? this.supportVectors : IntStream.range(0, this.lambda.length).toArray();
+        double[] lambda = IntStream.of(svs).mapToDouble(i -> this.lambda[i]).toArray();
+        
+        out.writeInt(this.weight.length);
+        out.writeDouble(this.bias);
+        this.kernel.write(out);
+        out.writeDataset(this.dataset, svs);
+        out.writeDoubles(lambda, 0, lambda.length);
+        this.scaler.write(out);
     }
     
     /**
-     * 学習データ
+     * モデルを読み込む
+     * 
+     * <pre>
+     * 教師データはサポートベクターだけになる（追加して学習し直すと未定乗数は引き継ぐ）。
+     * </pre>
      */
-    protected static class LearningData {
-        
-        /** 分類ラベル */
-        final int lavel;
+    static SupportVectorMachine readModel(ModelFile.Reader in) {
         
-        /** 特徴量 */
-        final double[] feature;
-        
-        /** スケーリングした特徴量 */
-        double[] scalingFeature;
-        
-        /** 未定乗数 */
-        double lambda = 1.0;
-        
-        /**
-         * コンストラクタ
-         */
-        LearningData(int lavel, double[] feature) {
-            this.lavel = lavel;
-            this.feature = feature;
+        SupportVectorMachine svm = new SupportVectorMachine(in.readInt());
+        svm.bias = in.readDouble();
+        if (in.version() >= 2) {
+            svm.kernel = Kernel.read(in);
         }
+        in.readDataset(svm.dataset);
+        svm.lambda = in.readDoubles();
+        svm.scaler = FeatureScaler.read(in, svm.weight.length);
         
-        /**
-         * サポートベクター判定
-         * 
-         * <pre>
-         * 確定したわけではなく、候補として残っているという判定であることに注意。
-         * 最後まで残っていれば晴れてサポートベクターとして生きていくことになる。
-         * </pre>
-         */
-        boolean isSupportVector() {
-            return 0. < lambda && lambda < C;
-        }
+        int n = svm.dataset.size();
+        svm.x = svm.scaler.transform(svm.dataset);
+        svm.supportVectors = IntStream.range(0, n).toArray();
+        svm.updateWeightVector();
+        svm.compile();
+        return svm;
+    }
+    
+    /**
+     * タイトル
+     */
+    @Override
+    public String getTitle() {
+        return "SVM(SGD)";
     }
 }
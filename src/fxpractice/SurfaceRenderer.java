@@ -0,0 +1,167 @@
+package fxpractice;
+
+import java.util.function.IntUnaryOperator;
+import java.util.function.ToIntFunction;
+import javafx.animation.AnimationTimer;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.scene.paint.Color;
+
+/**
+ * 判定結果を画面全体に描画する
+ * 
+ * <pre>
+ * 格子点ごとの判定は ProgressiveSurface で粗い格子から細かくしていき、
+ * 1段ごとにARGBのバッファに書いてから1枚の画像として描画する。
+ * 最初の段（COARSE px おき）はすぐに描き、残りの段は1フレームに1段ずつ描き足す。
+ * 格子点以外は透明にしておくので、先に描いた教師データは隠れない。
+ * </pre>
+ */
+final class SurfaceRenderer {
+    
+    /** 青 */
+    static final int BLUE = 0xFF0000FF;
+    
+    /** 赤 */
+    static final int RED = 0xFFFF0000;
+    
+    /** 塗らない */
+    static final int NONE = 0x00000000;
+    
+    /** 格子の間隔（px） */
+    static final int STEP = 2;
+    
+    /** 最初の段の格子の間隔（px） */
+    private static final int COARSE = 16;
+    
+    /** 描き足している途中のタイマー（キャンバスのプロパティに置く） */
+    private static final Object TIMER = new Object();
+    
+    private SurfaceRenderer() {
+    }
+    
+    /**
+     * 描画する
+     * 
+     * <pre>
+     * predictorは複数のスレッドから同時に呼ばれるので、状態を書き換えないこと。
+     * 渡す配列は使い回すので、predictor側で持ち回らないこと。
+     * 最初の段だけ描いて戻り、残りはFXスレッドのフレームごとに描き足す。
+     * 同じキャンバスに描き足している途中のものは止める。
+     * </pre>
+     * 
+     * @param gc        描画先
+     * @param predictor 判定（座標を受け取って分類ラベルを返す）
+     * @param color     分類ラベルから色（ARGB）への変換
+     */
+    static void draw(GraphicsContext gc, ToIntFunction<double[]> predictor, IntUnaryOperator color) {
+        
+        stop(gc);
+        
+        int w = (int) gc.getCanvas().getWidth();
+        int h = (int) gc.getCanvas().getHeight();
+        ProgressiveSurface surface = new ProgressiveSurface(w, h, STEP, COARSE / STEP, predictor);
+        int[] buffer = new int[w * h];
+        
+        // 最初の段はすぐに描く
+        surface.next();
+        paint(gc, surface, color, buffer, w, h);
+        if (surface.isDone()) {
+            return;
+        }
+        
+        // 残りは1フレームに1段
+        AnimationTimer timer = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                surface.next();
+                paint(gc, surface, color, buffer, w, h);
+                if (surface.isDone()) {
+                    SurfaceRenderer.stop(gc);
+                }
+            }
+        };
+        gc.getCanvas().getProperties().put(TIMER, timer);
+        timer.start();
+    }
+    
+    /**
+     * 描き足している途中ならば止める
+     * 
+     * <pre>
+     * キャンバスを消す前に呼ぶこと（止めないと消した後に描き足される）。
+     * </pre>
+     */
+    static void stop(GraphicsContext gc) {
+        Object timer = gc.getCanvas().getProperties().remove(TIMER);
+        if (timer != null) {
+            ((AnimationTimer) timer).stop();
+        }
+    }
+    
+    /**
+     * 今の段の判定結果を格子点に塗って描画する
+     */
+    private static void paint(GraphicsContext gc, ProgressiveSurface surface, IntUnaryOperator color, int[] buffer, int w, int h) {
+    
+        int[] preview = surface.preview();
+        int columns = surface.columns();
+        for (int gy = 0; gy < surface.rows(); gy++) {
+            for (int gx = 0; gx < columns; gx++) {
+                buffer[gy * STEP * w + gx * STEP] = color.applyAsInt(preview[gy * columns + gx]);
+            }
+        }
+        
+        // まとめて描画
+        WritableImage image = new WritableImage(w, h);
+        image.getPixelWriter().setPixels(0, 0, w, h, PixelFormat.getIntArgbInstance(), buffer, 0, w);
+        gc.drawImage(image, 0, 0);
+    }
+    
+    /**
+     * 全部消して、枠と教師データを描き直す
+     * 
+     * @param gc        描画先
+     * @param dataset   教師データ（ラベルが正なら青、それ以外は赤）
+     */
+    static void redraw(GraphicsContext gc, Dataset dataset) {
+        
+        // 全部消す（k-近傍法の描き足し用に覚えているものも捨てる）
+        NeighborSurface.invalidate(gc);
+        gc.clearRect(0, 0, 400, 400);
+        
+        // 枠だけつくる
+        gc.setFill(Color.WHITE);
+        gc.setStroke(Color.GREEN);
+        gc.fillRect(0, 0, 400, 400);
+        gc.strokeRect(0, 0, 400, 400);
+        
+        // 画面に描画
+        for (int i = 0; i < dataset.size(); i++) {
+            gc.setFill(dataset.lavel(i) > 0 ? Color.BLUE : Color.RED);
+            gc.fillOval(dataset.get(i, 0), dataset.get(i, 1), 5, 5);
+        }
+    }
+    
+    /**
+     * 教師データを丸で囲う（サポートベクター用）
+     * 
+     * @param gc        描画先
+     * @param dataset   教師データ
+     * @param indexes   囲うデータのインデックス
+     */
+    static void circle(GraphicsContext gc, Dataset dataset, int[] indexes) {
+        gc.setStroke(Color.GREEN);
+        for (int i : indexes) {
+            gc.strokeOval(dataset.get(i, 0) - 2, dataset.get(i, 1) - 2, 9, 9);
+        }
+    }
+    
+    /**
+     * 正なら青、それ以外は赤
+     */
+    static int sign(int ans) {
+        return ans > 0 ? BLUE : RED;
+    }
+}
@@ -0,0 +1,140 @@
+package fxpractice;
+
+/**
+ * 判定専用に詰め直したSVM
+ * 
+ * <pre>
+ * 学習が終わったら判定に要るものだけを配列に詰めておく。
+ *   サポートベクター  スケーリングした特徴量を1本の配列に並べたもの
+ *   係数              λ・t（毎回掛け算しない）
+ *   ノルム            ガウスカーネル用に |x|^2 を先に計算しておく
+ * ガウスカーネルは |x - y|^2 = |x|^2 + |y|^2 - 2x・y で計算するので、
+ * 1本あたり内積1回とexp1回で済む。
+ * 線形カーネルは ∑(λ・t・x)・y = w・y なので、サポートベクターを持たずに内積1回にする。
+ * それ以外のカーネルはサポートベクターごとに Kernel.apply を呼ぶ。
+ * 入力はスケーリング済みのものを渡すこと。
+ * </pre>
+ */
+final class SvmPredictor {
+
+    /** 次元 */
+    private final int dimension;
+    
+    /** サポートベクター（行優先、線形カーネルのときは重みベクトル1本） */
+    private final double[] vectors;
+    
+    /** λ・t（線形カーネルのときは1） */
+    private final double[] coef;
+    
+    /** サポートベクターの |x|^2 */
+    private final double[] norms;
+    
+    /** カーネル（線形カーネルのときはnull） */
+    private final Kernel kernel;
+    
+    /** ガウスカーネルの exp(-γ|x - y|^2) のγ（ガウスカーネル以外はNaN） */
+    private final double gamma;
+    
+    /** バイアス */
+    private final double bias;
+    
+    private SvmPredictor(int dimension, double[] vectors, double[] coef, double[] norms, Kernel kernel, double bias) {
+        this.dimension = dimension;
+        this.vectors = vectors;
+        this.coef = coef;
+        this.norms = norms;
+        this.kernel = kernel;
+        this.gamma = kernel instanceof Kernel.Rbf ? ((Kernel.Rbf) kernel).getGamma() : Double.NaN;
+        this.bias = bias;
+    }
+    
+    /**
+     * 線形カーネル
+     * 
+     * @param weight    重みベクトル（コピーする）
+     * @param bias      バイアス
+     */
+    static SvmPredictor linear(double[] weight, double bias) {
+        return new SvmPredictor(weight.length, weight.clone(), new double[] { 1 }, new double[] { 0 }, null, bias);
+    }
+    
+    /**
+     * サポートベクターから作る
+     * 
+     * @param kernel    カーネル
+     * @param x         スケーリングした特徴量（行優先）
+     * @param dimension 次元
+     * @param svs       サポートベクター（xのインデックス）
+     * @param lambda    未定乗数（xのインデックスで引く）
+     * @param dataset   教師データ（ラベルを引く）
+     * @param bias      バイアス
+     */
+    static SvmPredictor of(Kernel kernel, double[] x, int dimension, int[] svs, double[] lambda, Dataset dataset, double bias) {
+    
+        // 線形カーネルは重みベクトル1本にまとめる
+        if (kernel instanceof Kernel.Linear) {
+            double[] weight = new double[dimension];
+            for (int j : svs) {
+                double coef = lambda[j] * dataset.lavel(j);
+                for (int i = 0; i < dimension; i++) {
+                    weight[i] += coef * x[j * dimension + i];
+                }
+            }
+            return linear(weight, bias);
+        }
+    
+        double[] vectors = new double[svs.length * dimension];
+        double[] coef = new double[svs.length];
+        double[] norms = new double[svs.length];
+        for (int j = 0; j < svs.length; j++) {
+            System.arraycopy(x, svs[j] * dimension, vectors, j * dimension, dimension);
+            coef[j] = lambda[svs[j]] * dataset.lavel(svs[j]);
+            norms[j] = Kernel.dot(vectors, j * dimension, vectors, j * dimension, dimension);
+        }
+        return new SvmPredictor(dimension, vectors, coef, norms, kernel, bias);
+    }
+    
+    /**
+     * 決定関数
+     * 
+     * @param data      スケーリングした特徴量
+     * @param offset    dataの開始位置
+     */
+    double decision(double[] data, int offset) {
+    
+        // 線形カーネル
+        if (this.kernel == null) {
+            return Kernel.dot(this.vectors, 0, data, offset, this.dimension) + this.bias;
+        }
+        
+        // ガウスカーネル以外
+        if (Double.isNaN(this.gamma)) {
+            double sum = 0;
+            for (int j = 0; j < this.coef.length; j++) {
+                sum += this.coef[j] * this.kernel.apply(this.vectors, j * this.dimension, data, offset, this.dimension);
+            }
+            return sum + this.bias;
+        }
+        
+        double norm = Kernel.dot(data, offset, data, offset, this.dimension);
+        double sum = 0;
+        for (int j = 0; j < this.coef.length; j++) {
+            double distance = norm + this.norms[j] - 2 * Kernel.dot(this.vectors, j * this.dimension, data, offset, this.dimension);
+            sum += this.coef[j] * Math.exp(-this.gamma * Math.max(0, distance));
+        }
+        return sum + this.bias;
+    }
+    
+    /**
+     * まとめて決定関数を計算
+     * 
+     * @param rowsFlat  スケーリングした特徴量（行優先）
+     * @param dim       次元
+     * @param out       決定関数の値（行数分）
+     */
+    void decisionBatch(double[] rowsFlat, int dim, double[] out) {
+        for (int r = 0; r < out.length; r++) {
+            out[r] = this.decision(rowsFlat, r * dim);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package fxpractice;
+
+import java.util.Random;
+
+/**
+ * 人工データ
+ * 
+ * <pre>
+ * 2つの正規分布の塊をクラス0/1として作る。
+ * 画面と同じく特徴量はおおよそ0～400に収まるようにする（中心200、標準偏差40）。
+ * 塊の中心は(1,1,...,1)方向に separation×標準偏差 だけ離す。
+ * separationが小さいほど重なって分離しにくくなる。
+ * </pre>
+ */
+final class SyntheticData {
+
+    /** 中心 */
+    private static final double CENTER = 200;
+    
+    /** 標準偏差 */
+    private static final double SIGMA = 40;
+    
+    private SyntheticData() {
+    }
+    
+    /**
+     * 2クラスのデータを作る
+     * 
+     * @param size          件数
+     * @param dimension     次元
+     * @param separation    塊の中心の距離（標準偏差の何倍か）
+     * @param seed          乱数の種
+     * @return クラス番号(0/1)をラベルにした教師データ
+     */
+    static Dataset blobs(int size, int dimension, double separation, long seed) {
+    
+        Random random = new Random(seed);
+        double shift = separation * SIGMA / 2 / Math.sqrt(dimension);
+        
+        Dataset dataset = new Dataset(dimension);
+        double[] row = new double[dimension];
+        for (int n = 0; n < size; n++) {
+            int cls = n % 2;
+            for (int i = 0; i < dimension; i++) {
+                row[i] = CENTER + (cls == 0 ? -shift : shift) + random.nextGaussian() * SIGMA;
+            }
+            dataset.add(cls, row);
+        }
+        return dataset;
+    }
+}
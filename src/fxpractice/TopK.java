@@ -0,0 +1,179 @@
+package fxpractice;
+
+/**
+ * 距離の小さい順に上位k個を選ぶ
+ * 
+ * <pre>
+ * 距離とインデックスを並列の配列で持つ最大ヒープ。
+ * 先頭がk番目（候補の中で一番遠いもの）になる。
+ * 使い回せばアロケーションしないが、スレッドセーフではないのでスレッドごとに持つこと。
+ * </pre>
+ */
+final class TopK {
+    
+    /** 採用数 */
+    private final int k;
+    
+    /** 距離 */
+    private final double[] distance;
+    
+    /** インデックス */
+    private final int[] index;
+    
+    /** 現在の候補数 */
+    private int size = 0;
+    
+    /**
+     * コンストラクタ
+     * 
+     * @param k 採用数
+     */
+    TopK(int k) {
+        this.k = k;
+        this.distance = new double[k];
+        this.index = new int[k];
+    }
+    
+    /**
+     * 空にする
+     */
+    void clear() {
+        this.size = 0;
+    }
+    
+    /**
+     * 候補数
+     */
+    int size() {
+        return this.size;
+    }
+    
+    /**
+     * 採用数
+     */
+    int capacity() {
+        return this.k;
+    }
+    
+    /**
+     * k個埋まっているか
+     */
+    boolean isFull() {
+        return this.size == this.k;
+    }
+    
+    /**
+     * k番目の距離（埋まっていなければ無限大）
+     * 
+     * <pre>
+     * これより遠いものは候補にならないので、枝刈りに使う。
+     * </pre>
+     */
+    double worst() {
+        return this.size < this.k ? Double.POSITIVE_INFINITY : this.distance[0];
+    }
+    
+    /**
+     * 候補を追加
+     * 
+     * <pre>
+     * 同じ距離でも別の点として扱う。
+     * 距離が同じならインデックスの小さい方を近いとみなすので、
+     * 追加する順番によらず同じ候補が残る。
+     * </pre>
+     * 
+     * @param dist  距離
+     * @param idx   インデックス
+     */
+    void offer(double dist, int idx) {
+        
+        if (this.size < this.k) {
+            
+            // 末尾に入れて上に上げる
+            int i = this.size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!this.farther(dist, idx, parent)) {
+                    break;
+                }
+                this.distance[i] = this.distance[parent];
+                this.index[i] = this.index[parent];
+                i = parent;
+            }
+            this.distance[i] = dist;
+            this.index[i] = idx;
+            
+        } else if (this.k > 0 && this.farther(this.distance[0], this.index[0], dist, idx)) {
+            this.siftDown(0, dist, idx, this.size);
+        }
+    }
+    
+    /**
+     * 根から下に下ろす
+     */
+    private void siftDown(int i, double dist, int idx, int n) {
+        
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= n) {
+                break;
+            }
+            if (child + 1 < n && this.farther(this.distance[child + 1], this.index[child + 1], child)) {
+                child++;
+            }
+            if (!this.farther(this.distance[child], this.index[child], dist, idx)) {
+                break;
+            }
+            this.distance[i] = this.distance[child];
+            this.index[i] = this.index[child];
+            i = child;
+        }
+        this.distance[i] = dist;
+        this.index[i] = idx;
+    }
+    
+    /**
+     * (d1, i1)がヒープのj番目より遠いか
+     */
+    private boolean farther(double d1, int i1, int j) {
+        return this.farther(d1, i1, this.distance[j], this.index[j]);
+    }
+    
+    /**
+     * (d1, i1)が(d2, i2)より遠いか
+     */
+    private boolean farther(double d1, int i1, double d2, int i2) {
+        return d1 > d2 || (d1 == d2 && i1 > i2);
+    }
+    
+    /**
+     * 近い順に並べ替える（ヒープソート）
+     * 
+     * <pre>
+     * 並べ替えた後はヒープではなくなるので、offerする前にclearすること。
+     * </pre>
+     */
+    void sort() {
+        for (int n = this.size - 1; n > 0; n--) {
+            double dist = this.distance[n];
+            int idx = this.index[n];
+            this.distance[n] = this.distance[0];
+            this.index[n] = this.index[0];
+            this.siftDown(0, dist, idx, n);
+        }
+    }
+    
+    /**
+     * i番目の候補の距離
+     */
+    double distance(int i) {
+        return this.distance[i];
+    }
+    
+    /**
+     * i番目の候補のインデックス
+     */
+    int index(int i) {
+        return this.index[i];
+    }
+}
@@ -0,0 +1,44 @@
+package fxpractice;
+
+/**
+ * 学習の途中経過の受け取りと中止
+ * 
+ * <pre>
+ * 学習機は学習ループの中で report() を呼び、isCancelled() がtrueになったらループを抜ける。
+ * 別スレッドで学習するときに、画面に経過を出したり途中で止めたりするのに使う。
+ * 学習機からはJavaFXに依存しないように、受け取り側はこのインターフェースだけにする。
+ * report() は学習しているスレッドから呼ばれるので、画面に出すなら受け取り側で切り替えること。
+ * 
+ * 中止したときの学習機は途中までの状態なので、判定には使わずに捨てること。
+ * </pre>
+ */
+public interface TrainingMonitor {
+
+    /** 何もしない（中止もしない） */
+    TrainingMonitor NONE = new TrainingMonitor() {
+    
+        @Override
+        public void report(int step, int maxStep, double loss, int violators) {
+        }
+        
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+    
+    /**
+     * 途中経過
+     * 
+     * @param step      何回目か（エポック数や更新回数）
+     * @param maxStep   最大の回数
+     * @param loss      誤差（SVMは双対問題を最小化の形にした目的関数の値、なければNaN）
+     * @param violators KKT条件を満たしていないデータの数（SVM以外は-1）
+     */
+    void report(int step, int maxStep, double loss, int violators);
+    
+    /**
+     * 中止されたか
+     */
+    boolean isCancelled();
+}
@@ -0,0 +1,80 @@
+package fxpractice;
+
+/**
+ * 学習の結果
+ * 
+ * <pre>
+ * 何エポック回して、最後の誤差がいくつで、なぜ止まったかを持つ。
+ * </pre>
+ */
+public final class TrainingResult {
+
+    /**
+     * 止まった理由
+     */
+    public enum Reason {
+    
+        /** 最大エポック数まで回した */
+        MAX_EPOCH,
+        
+        /** 誤差が許容値を下回った */
+        CONVERGED,
+        
+        /** 誤差が一定エポック改善しなかった */
+        NO_IMPROVEMENT,
+        
+        /** 制限時間を超えた */
+        TIME_LIMIT,
+        
+        /** 中止された */
+        CANCELLED
+    }
+    
+    /** 回したエポック数 */
+    private final int epochs;
+    
+    /** 最後のエポックの誤差 */
+    private final double loss;
+    
+    /** 学習にかかった時間（ミリ秒） */
+    private final long elapsed;
+    
+    /** 止まった理由 */
+    private final Reason reason;
+    
+    /**
+     * コンストラクタ
+     * 
+     * @param epochs    回したエポック数
+     * @param loss      最後のエポックの誤差
+     * @param elapsed   学習にかかった時間（ミリ秒）
+     * @param reason    止まった理由
+     */
+    TrainingResult(int epochs, double loss, long elapsed, Reason reason) {
+        this.epochs = epochs;
+        this.loss = loss;
+        this.elapsed = elapsed;
+        this.reason = reason;
+    }
+    
+    public int getEpochs() {
+        return this.epochs;
+    }
+    
+    public double getLoss() {
+        return this.loss;
+    }
+    
+    public long getElapsed() {
+        return this.elapsed;
+    }
+    
+    public Reason getReason() {
+        return this.reason;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("epochs=%d loss=%.6f elapsed=%dms reason=%s", this.epochs, this.loss, this.elapsed, this.reason);
+    }
+}
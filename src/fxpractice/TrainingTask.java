@@ -0,0 +1,50 @@
+package fxpractice;
+
+import javafx.concurrent.Task;
+
+/**
+ * 学習機を別スレッドで学習するタスク
+ * 
+ * <pre>
+ * 学習機の learn(TrainingMonitor) にこのタスク自身を渡す。
+ *   経過  updateProgress / updateMessage でFXスレッドに渡す（まとめて間引かれる）
+ *   中止  cancel() すると学習機がループの中で isCancelled() を見て止まる
+ * 学習が終わったら学習機を値として返すので、onSucceeded で差し替えること。
+ * 学習中の学習機はこのタスクのスレッドだけが触るので、画面側の学習機とは別のものを渡すこと。
+ * </pre>
+ */
+final class TrainingTask extends Task<LearningMachine> implements TrainingMonitor {
+
+    /** 学習する学習機 */
+    private final LearningMachine lm;
+    
+    /**
+     * コンストラクタ
+     * 
+     * @param lm    学習する学習機（教師データを追加済みのもの）
+     */
+    TrainingTask(LearningMachine lm) {
+        this.lm = lm;
+    }
+    
+    @Override
+    protected LearningMachine call() {
+        this.lm.learn(this);
+        return this.lm;
+    }
+    
+    /**
+     * 経過を画面に渡す
+     */
+    @Override
+    public void report(int step, int maxStep, double loss, int violators) {
+        this.updateProgress(step, maxStep);
+        if (Double.isNaN(loss)) {
+            this.updateMessage(String.format("%d / %d", step, maxStep));
+        } else if (violators < 0) {
+            this.updateMessage(String.format("%d / %d  誤差 %.6f", step, maxStep, loss));
+        } else {
+            this.updateMessage(String.format("%d / %d  目的関数 %.6f  KKT違反 %d", step, maxStep, loss, violators));
+        }
+    }
+}
@@ -6,11 +6,11 @@
 package fxpractice;
 
 import java.util.Iterator;
+import java.util.Objects;
 import java.util.Spliterator;
 import java.util.Spliterators;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
-import javafx.util.Pair;
 
 /**
  *
@@ -36,7 +36,7 @@ public class Util {
             }
             @Override
             public Pair<T, S> next() {
-                return new Pair(fite.next(), site.next());
+                return new Pair<>(fite.next(), site.next());
             }
         };
         
@@ -44,4 +44,50 @@ public class Util {
                 Spliterators.spliteratorUnknownSize(
                         iterator, Spliterator.NONNULL | Spliterator.ORDERED), false);
     }
+    
+    /**
+     * 2つの値の組
+     * 
+     * <pre>
+     * javafx.util.Pairの代わり（計算の部分はJavaFXに依存させないため）。
+     * </pre>
+     */
+    public static final class Pair<T, S> {
+        
+        private final T key;
+        
+        private final S value;
+        
+        public Pair(T key, S value) {
+            this.key = key;
+            this.value = value;
+        }
+        
+        public T getKey() {
+            return this.key;
+        }
+        
+        public S getValue() {
+            return this.value;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Pair)) {
+                return false;
+            }
+            Pair<?, ?> other = (Pair<?, ?>) obj;
+            return Objects.equals(this.key, other.key) && Objects.equals(this.value, other.value);
+        }
+        
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.key, this.value);
+        }
+        
+        @Override
+        public String toString() {
+            return this.key + "=" + this.value;
+        }
+    }
 }